@@ -0,0 +1,75 @@
+package ch.uzh.ifi.hase.soprafs22.benchmark;
+
+import ch.uzh.ifi.hase.soprafs22.Application;
+import ch.uzh.ifi.hase.soprafs22.service.PasswordHasher;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.context.event.ApplicationStartedEvent;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Starts the application without a web server against its own in-memory H2 database, or any given database,
+ * optionally seeded with a given number of users named 'user-0000000', 'user-0000001', ... that all share the
+ * password {@value #PASSWORD}.
+ */
+public final class BenchmarkApplication {
+
+  public static final String PASSWORD = "password";
+
+  private static final int SEED_BATCH_SIZE = 10_000;
+
+  private BenchmarkApplication() {
+  }
+
+  public static ConfigurableApplicationContext start(String database, int users, String... properties) {
+    return startWithUrl("jdbc:h2:mem:" + database + ";DB_CLOSE_DELAY=-1", users, properties);
+  }
+
+  public static ConfigurableApplicationContext startWithUrl(String url, int users, String... properties) {
+    List<String> args = new ArrayList<>(List.of(
+            "--spring.datasource.url=" + url,
+            "--spring.jpa.properties.hibernate.generate_statistics=false",
+            "--users.password.bcrypt-strength=4",
+            "--users.access-log.sample-rate=0",
+            "--logging.level.root=WARN"));
+    for (String property : properties)
+      args.add("--" + property);
+    // seeding happens before the application is ready, so that the username index is warmed with all users
+    return new SpringApplicationBuilder(Application.class)
+            .web(WebApplicationType.NONE)
+            .listeners(event -> {
+              if (event instanceof ApplicationStartedEvent startedEvent)
+                seed(startedEvent.getApplicationContext(), users);
+            })
+            .run(args.toArray(String[]::new));
+  }
+
+  public static String username(long index) {
+    return String.format("user-%07d", index);
+  }
+
+  private static void seed(ConfigurableApplicationContext context, int users) {
+    if (users == 0)
+      return;
+    JdbcTemplate jdbcTemplate = new JdbcTemplate(context.getBean(DataSource.class));
+    String hash = context.getBean(PasswordHasher.class).hash(PASSWORD);
+    Date today = new Date(System.currentTimeMillis());
+    Timestamp now = new Timestamp(System.currentTimeMillis());
+    for (int start = 0; start < users; start += SEED_BATCH_SIZE) {
+      List<Object[]> rows = new ArrayList<>(SEED_BATCH_SIZE);
+      for (int i = start; i < Math.min(start + SEED_BATCH_SIZE, users); i++)
+        rows.add(new Object[]{i + 1L, username(i), hash, today, false, 0L, now});
+      jdbcTemplate.batchUpdate("INSERT INTO users (id, username, password, creation_date, logged_in, version, "
+              + "last_modified) VALUES (?, ?, ?, ?, ?, ?, ?)", rows);
+    }
+    // the pooled-lo optimizer hands out the fetched sequence value and the IDs above it
+    jdbcTemplate.execute("ALTER SEQUENCE user_seq RESTART WITH " + (users + 1));
+  }
+}
@@ -0,0 +1,89 @@
+package ch.uzh.ifi.hase.soprafs22.benchmark;
+
+import ch.uzh.ifi.hase.soprafs22.model.User;
+import ch.uzh.ifi.hase.soprafs22.service.UserService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Startup and query times of the 'prod' profile against a file-backed database seeded with a realistic number
+ * of users. Every fork measures a single start in a fresh JVM, i.e. a truly cold start including class loading,
+ * the schema validation and the warm-up of the in-memory indexes, followed by the first query. The warm query
+ * time is measured against an application that has been running for the whole trial. The iteration settings of
+ * the Gradle build override the ones below, see the 'jmh' block there for how to measure cold starts.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StartupBenchmark {
+
+  @Param({"10000", "100000"})
+  private int users;
+
+  private Path directory;
+
+  private String url;
+
+  private ConfigurableApplicationContext context;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    directory = Files.createTempDirectory("users-startup");
+    url = "jdbc:h2:file:" + directory.resolve("users") + ";QUERY_CACHE_SIZE=64";
+    BenchmarkApplication.startWithUrl(url, users, "spring.profiles.active=prod").close();
+  }
+
+  @TearDown(Level.Iteration)
+  public void stop() {
+    if (context != null)
+      context.close();
+    context = null;
+  }
+
+  @TearDown(Level.Trial)
+  public void teardown() throws IOException {
+    FileSystemUtils.deleteRecursively(directory);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @Fork(5)
+  @Warmup(iterations = 0)
+  @Measurement(iterations = 1)
+  public List<User> coldStartAndFirstQuery() {
+    context = BenchmarkApplication.startWithUrl(url, 0, "spring.profiles.active=prod");
+    return context.getBean(UserService.class).getUsersAfter(BenchmarkApplication.username(users / 2), 100);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public List<User> warmQuery(RunningApplication application) {
+    return application.userService.getUsersAfter(BenchmarkApplication.username(users / 2), 100);
+  }
+
+  @State(Scope.Benchmark)
+  public static class RunningApplication {
+
+    private ConfigurableApplicationContext context;
+
+    private UserService userService;
+
+    @Setup(Level.Trial)
+    public void setup(StartupBenchmark benchmark) {
+      context = BenchmarkApplication.startWithUrl(benchmark.url, 0, "spring.profiles.active=prod");
+      userService = context.getBean(UserService.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+      context.close();
+    }
+  }
+}
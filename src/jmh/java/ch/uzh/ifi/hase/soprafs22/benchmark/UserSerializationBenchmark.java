@@ -0,0 +1,107 @@
+package ch.uzh.ifi.hase.soprafs22.benchmark;
+
+import ch.uzh.ifi.hase.soprafs22.model.User;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.module.blackbird.BlackbirdModule;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Jackson serialization of user lists, configured like the ObjectMapper of the application. Run with
+ * '-prof gc' to compare the allocations of buffering the whole list with streaming it into the response. The
+ * size of a response on the wire, with and without gzip, is printed after each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UserSerializationBenchmark {
+
+  @Param({"100", "10000", "100000"})
+  private int users;
+
+  private ObjectMapper objectMapper;
+
+  private ObjectMapper blackbirdMapper;
+
+  private List<User> userList;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    objectMapper = Jackson2ObjectMapperBuilder.json().build();
+    blackbirdMapper = Jackson2ObjectMapperBuilder.json().modulesToInstall(new BlackbirdModule()).build();
+    userList = new ArrayList<>(users);
+    for (int i = 0; i < users; i++) {
+      User user = new User();
+      user.setId((long) i);
+      user.setUsername(BenchmarkApplication.username(i));
+      user.setPassword(BenchmarkApplication.PASSWORD);
+      user.setCreationDate(new Date());
+      user.setLoggedIn(i % 2 == 0);
+      userList.add(user);
+    }
+  }
+
+  @Benchmark
+  public byte[] serializeUserList() throws JsonProcessingException {
+    return objectMapper.writeValueAsBytes(userList);
+  }
+
+  /**
+   * Like Spring MVC's message converter, which writes through a generator into the response output stream.
+   */
+  @Benchmark
+  public long streamUserList() throws IOException {
+    return write(objectMapper, new ByteCount());
+  }
+
+  @Benchmark
+  public long streamUserListBlackbird() throws IOException {
+    return write(blackbirdMapper, new ByteCount());
+  }
+
+  /**
+   * Like a response compressed by the server, at the default compression level of Tomcat and Reactor Netty.
+   */
+  @Benchmark
+  public long streamUserListGzip() throws IOException {
+    ByteCount count = new ByteCount();
+    try (OutputStream gzip = new GZIPOutputStream(count, 8192)) {
+      blackbirdMapper.writeValue(gzip, userList);
+    }
+    return count.bytes;
+  }
+
+  @TearDown(Level.Trial)
+  public void reportSizes() throws IOException {
+    System.out.printf("%nResponse of %d users: %d bytes, %d bytes with gzip%n", users,
+            write(objectMapper, new ByteCount()), streamUserListGzip());
+  }
+
+  private long write(ObjectMapper mapper, ByteCount count) throws IOException {
+    mapper.writeValue(count, userList);
+    return count.bytes;
+  }
+
+  private static class ByteCount extends OutputStream {
+    private long bytes;
+
+    @Override
+    public void write(int b) {
+      bytes++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      bytes += len;
+    }
+  }
+}
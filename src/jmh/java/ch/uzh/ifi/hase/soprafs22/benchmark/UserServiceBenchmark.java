@@ -0,0 +1,171 @@
+package ch.uzh.ifi.hase.soprafs22.benchmark;
+
+import ch.uzh.ifi.hase.soprafs22.model.User;
+import ch.uzh.ifi.hase.soprafs22.model.UserDTO;
+import ch.uzh.ifi.hase.soprafs22.model.UserIdentity;
+import ch.uzh.ifi.hase.soprafs22.model.UserSummary;
+import ch.uzh.ifi.hase.soprafs22.repository.UserRepository;
+import ch.uzh.ifi.hase.soprafs22.service.UserSearchIndex;
+import ch.uzh.ifi.hase.soprafs22.service.UserService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hot paths of {@link UserService} against an embedded H2 database seeded with a realistic number of users.
+ * Password hashing runs with a low BCrypt cost, so that the measured time is dominated by the data access.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UserServiceBenchmark {
+
+  private static final int SEARCH_LIMIT = 10;
+
+  @Param({"10000", "100000", "1000000"})
+  private int users;
+
+  private ConfigurableApplicationContext context;
+
+  private UserService userService;
+
+  private UserRepository userRepository;
+
+  private UserSearchIndex searchIndex;
+
+  private EntityManager entityManager;
+
+  private TransactionTemplate transactionTemplate;
+
+  private TransactionTemplate readOnlyTransactionTemplate;
+
+  private String storedPassword;
+
+  private final AtomicLong createdUsers = new AtomicLong();
+
+  @Setup(Level.Trial)
+  public void setup() {
+    context = BenchmarkApplication.start("service-" + users, users);
+    userService = context.getBean(UserService.class);
+    userRepository = context.getBean(UserRepository.class);
+    searchIndex = context.getBean(UserSearchIndex.class);
+    entityManager = context.getBean(EntityManager.class);
+    transactionTemplate = context.getBean(TransactionTemplate.class);
+    readOnlyTransactionTemplate = new TransactionTemplate(transactionTemplate.getTransactionManager());
+    readOnlyTransactionTemplate.setReadOnly(true);
+    storedPassword = userRepository.findByUsername(randomUsername()).orElseThrow().getPassword();
+  }
+
+  @TearDown(Level.Trial)
+  public void teardown() {
+    context.close();
+  }
+
+  @Benchmark
+  public User createUser() {
+    UserDTO userDTO = new UserDTO();
+    userDTO.setUsername("new-user-" + createdUsers.incrementAndGet());
+    userDTO.setPassword(BenchmarkApplication.PASSWORD);
+    return userService.createUser(userDTO);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public Optional<User> getUserByCredentialsAndLogIn() {
+    return userService.getUserByCredentialsAndLogIn(randomCredentials());
+  }
+
+  /**
+   * The previous login implementation, kept as a baseline: a bulk UPDATE matching username and password, with
+   * forced flush and persistence context clear, followed by a second SELECT with the same predicate in its own
+   * read-only transaction. The previous implementation compared the stored password with the submitted one, so the
+   * seeded hash is submitted to match the rows.
+   */
+  @Benchmark
+  @Threads(8)
+  public Optional<User> updateThenSelectLoginBaseline() {
+    String username = randomUsername();
+    transactionTemplate.executeWithoutResult(status -> {
+      entityManager.flush();
+      entityManager.createQuery("UPDATE User SET loggedIn = true WHERE username = :username AND password = :password")
+              .setParameter("username", username)
+              .setParameter("password", storedPassword)
+              .executeUpdate();
+      entityManager.clear();
+    });
+    return readOnlyTransactionTemplate.execute(status -> entityManager
+            .createQuery("SELECT u FROM User u WHERE u.username = :username AND u.password = :password", User.class)
+            .setParameter("username", username)
+            .setParameter("password", storedPassword)
+            .getResultStream()
+            .findFirst());
+  }
+
+  @Benchmark
+  public boolean isExistingUsername() {
+    return userService.isExistingUsername(randomUsername());
+  }
+
+  @Benchmark
+  public boolean existsByUsernameQuery() {
+    return userRepository.existsByUsername(randomUsername());
+  }
+
+  @Benchmark
+  public List<User> getAllUsers() {
+    return userService.getAllUsers();
+  }
+
+  @Benchmark
+  public List<UserSummary> getAllUserSummaries() {
+    return userService.getAllUserSummaries();
+  }
+
+  @Benchmark
+  public List<User> getUsersPage() {
+    return userService.getUsersAfter(randomUsername(), 100);
+  }
+
+  @Benchmark
+  public List<Long> searchIndexPrefix() {
+    return searchIndex.search(randomPrefix(), SEARCH_LIMIT);
+  }
+
+  /**
+   * Usernames with one changed digit, which are no prefix of any username and only found by trigram similarity.
+   */
+  @Benchmark
+  public List<Long> searchIndexFuzzy() {
+    return searchIndex.search(randomUsername().replace('0', '9') + "x", SEARCH_LIMIT);
+  }
+
+  @Benchmark
+  public List<UserIdentity> searchLikeQuery() {
+    return userRepository.findByUsernameStartingWithIgnoreCaseOrderByUsername(randomPrefix(),
+            PageRequest.of(0, SEARCH_LIMIT));
+  }
+
+  private String randomPrefix() {
+    String username = randomUsername();
+    return username.substring(0, username.length() - 2);
+  }
+
+  private String randomUsername() {
+    return BenchmarkApplication.username(ThreadLocalRandom.current().nextInt(users));
+  }
+
+  private UserDTO randomCredentials() {
+    UserDTO userDTO = new UserDTO();
+    userDTO.setUsername(randomUsername());
+    userDTO.setPassword(BenchmarkApplication.PASSWORD);
+    return userDTO;
+  }
+}
@@ -0,0 +1,192 @@
+package ch.uzh.ifi.hase.soprafs22.load;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.IntStream;
+
+/**
+ * Closed-model load test against a running server: each of N clients sends a request, waits for the response
+ * and immediately sends the next one, for a fixed duration per step. Reports throughput and p50/p99 latency per
+ * number of clients, on the console and as CSV. Run it once per execution mode to compare them: platform
+ * threads, virtual threads (see VirtualThreadConfiguration) or the 'reactive' profile (see ReactiveUserController).
+ * <p>
+ * Arguments: base URL, comma-separated client counts, seconds per step, request path, label, result file, and
+ * an optional JSON body, which turns the requests into POST requests (e.g. for '/users/validate').
+ */
+public class ClosedModelLoadTest {
+
+  private static final Duration WARMUP = Duration.ofSeconds(5);
+
+  private static final int SEED_USERS = 1000;
+
+  private static final int SEED_CONCURRENCY = 16;
+
+  public static void main(String[] args) throws Exception {
+    URI baseUrl = URI.create(argument(args, 0, "http://localhost:8080"));
+    int[] steps = Arrays.stream(argument(args, 1, "1000,2500,5000,10000").split(","))
+            .mapToInt(step -> Integer.parseInt(step.trim())).toArray();
+    Duration duration = Duration.ofSeconds(Long.parseLong(argument(args, 2, "30")));
+    String label = argument(args, 4, "server");
+    Path resultFile = args.length > 5 && !args[5].isBlank() ? Path.of(args[5]) : null;
+    String body = argument(args, 6, null);
+    HttpRequest.Builder requestBuilder = HttpRequest.newBuilder(baseUrl.resolve(argument(args, 3, "/users?limit=20")));
+    HttpRequest request = body == null ? requestBuilder.GET().build() : requestBuilder
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString(body))
+            .build();
+
+    ExecutorService callbacks = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 2);
+    HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10))
+            .executor(callbacks)
+            .build();
+    try {
+      seed(client, baseUrl);
+      StringBuilder csv = new StringBuilder("label,clients,requests,errors,throughput,p50_ms,p99_ms\n");
+      System.out.printf("%-10s %8s %10s %8s %10s %8s %8s%n", "label", "clients", "requests", "errors", "req/s", "p50 ms", "p99 ms");
+      for (int clients : steps) {
+        run(client, request, clients, WARMUP, callbacks);
+        Result result = run(client, request, clients, duration, callbacks);
+        System.out.printf("%-10s %8d %10d %8d %10.0f %8.2f %8.2f%n", label, clients, result.requests, result.errors,
+                result.throughput(duration), result.percentileMillis(0.5), result.percentileMillis(0.99));
+        csv.append(String.format("%s,%d,%d,%d,%.0f,%.3f,%.3f%n", label, clients, result.requests, result.errors,
+                result.throughput(duration), result.percentileMillis(0.5), result.percentileMillis(0.99)));
+      }
+      if (resultFile != null) {
+        Files.createDirectories(resultFile.toAbsolutePath().getParent());
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(resultFile))) {
+          writer.print(csv);
+        }
+      }
+    } finally {
+      callbacks.shutdownNow();
+    }
+  }
+
+  /**
+   * Register some users via the bulk import, or one by one if the server has no bulk import (the 'reactive'
+   * profile), so that listed pages are not empty. Users that already exist from a previous run are ignored.
+   */
+  private static void seed(HttpClient client, URI baseUrl) throws IOException, InterruptedException {
+    List<String> users = IntStream.range(0, SEED_USERS)
+            .mapToObj(i -> String.format("{\"username\":\"load-%05d\",\"password\":\"password\"}", i))
+            .toList();
+    HttpRequest bulkRequest = HttpRequest.newBuilder(baseUrl.resolve("/users/bulk"))
+            .header("Content-Type", "application/x-ndjson")
+            .POST(HttpRequest.BodyPublishers.ofString(String.join("\n", users)))
+            .build();
+    int status = client.send(bulkRequest, HttpResponse.BodyHandlers.discarding()).statusCode();
+    if (status != 404 && status != 405 && status != 415) {
+      if (status >= 400)
+        throw new IllegalStateException("Seeding users failed with status " + status);
+      return;
+    }
+    // registrations hash passwords one by one, so only a few are sent at once to stay within the server's limits
+    for (int first = 0; first < users.size(); first += SEED_CONCURRENCY) {
+      List<CompletableFuture<HttpResponse<Void>>> registrations = users.subList(first, Math.min(first + SEED_CONCURRENCY, users.size()))
+              .stream()
+              .map(user -> HttpRequest.newBuilder(baseUrl.resolve("/users"))
+                      .header("Content-Type", "application/json")
+                      .POST(HttpRequest.BodyPublishers.ofString(user))
+                      .build())
+              .map(request -> client.sendAsync(request, HttpResponse.BodyHandlers.discarding()))
+              .toList();
+      for (CompletableFuture<HttpResponse<Void>> registration : registrations) {
+        status = registration.join().statusCode();
+        if (status >= 400 && status != 409)
+          throw new IllegalStateException("Seeding users failed with status " + status);
+      }
+    }
+  }
+
+  private static Result run(HttpClient client, HttpRequest request, int clients, Duration duration,
+                            ExecutorService callbacks) throws InterruptedException {
+    long deadline = System.nanoTime() + duration.toNanos();
+    CountDownLatch done = new CountDownLatch(clients);
+    Recorder[] recorders = new Recorder[clients];
+    for (int i = 0; i < clients; i++) {
+      recorders[i] = new Recorder();
+      send(client, request, recorders[i], deadline, done, callbacks);
+    }
+    done.await();
+    return Result.of(recorders);
+  }
+
+  private static void send(HttpClient client, HttpRequest request, Recorder recorder, long deadline,
+                           CountDownLatch done, ExecutorService callbacks) {
+    long start = System.nanoTime();
+    if (start >= deadline) {
+      done.countDown();
+      return;
+    }
+    client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenCompleteAsync((response, error) -> {
+      recorder.record(System.nanoTime() - start, error == null && response.statusCode() < 400);
+      send(client, request, recorder, deadline, done, callbacks);
+    }, callbacks);
+  }
+
+  private static String argument(String[] args, int index, String defaultValue) {
+    return args.length > index && !args[index].isBlank() ? args[index] : defaultValue;
+  }
+
+  /**
+   * Latencies of a single client. Its requests are sent one after another, so it is never written concurrently.
+   */
+  private static class Recorder {
+    private long[] latencies = new long[1024];
+    private int count;
+    private int errors;
+
+    void record(long latencyNanos, boolean success) {
+      if (count == latencies.length)
+        latencies = Arrays.copyOf(latencies, count * 2);
+      latencies[count++] = latencyNanos;
+      if (!success)
+        errors++;
+    }
+  }
+
+  private static class Result {
+    private final long[] latencies;
+    private final long requests;
+    private final long errors;
+
+    private Result(long[] latencies, long errors) {
+      this.latencies = latencies;
+      this.requests = latencies.length;
+      this.errors = errors;
+    }
+
+    static Result of(Recorder[] recorders) {
+      long[] latencies = Arrays.stream(recorders)
+              .flatMapToLong(recorder -> Arrays.stream(recorder.latencies, 0, recorder.count))
+              .sorted().toArray();
+      return new Result(latencies, Arrays.stream(recorders).mapToLong(recorder -> recorder.errors).sum());
+    }
+
+    double throughput(Duration duration) {
+      return requests / (duration.toNanos() / 1e9);
+    }
+
+    double percentileMillis(double percentile) {
+      if (latencies.length == 0)
+        return Double.NaN;
+      int index = (int) Math.ceil(percentile * latencies.length) - 1;
+      return latencies[Math.max(index, 0)] / 1e6;
+    }
+  }
+}
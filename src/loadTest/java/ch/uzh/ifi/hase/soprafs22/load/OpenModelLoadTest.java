@@ -0,0 +1,359 @@
+package ch.uzh.ifi.hase.soprafs22.load;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+/**
+ * Open-model load test: requests arrive at a fixed average rate with exponentially distributed gaps, whether or
+ * not earlier requests have been answered, like requests of many independent users. Each request is picked
+ * from a weighted mix of operations. Latencies are measured from the time a request was scheduled, not sent, so
+ * a stalling server is not hidden by a stalling load generator (coordinated omission). Per arrival rate, the
+ * throughput, error rate and p50/p99/p999 latency of every operation are printed and written as CSV, and the
+ * full latency distribution as HdrHistogram percentile output ('.hgrm').
+ * <p>
+ * Unless a base URL is given, the application is started in a separate JVM on a free port against a fresh
+ * in-memory H2 database, with rate limiting disabled, and stopped afterwards; no network access is needed.
+ * Both the mix and the arrival times are drawn from a seeded random generator, so runs are reproducible.
+ * <p>
+ * Arguments: base URL or empty, comma-separated arrival rates per second, seconds per rate, mix (e.g.
+ * 'list=30,get=35,validate=20,login=10,register=5'), label, result directory, seed and the classpath of the
+ * application.
+ */
+public class OpenModelLoadTest {
+
+  private static final Duration WARMUP = Duration.ofSeconds(5);
+
+  private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(10);
+
+  private static final Duration STARTUP_TIMEOUT = Duration.ofMinutes(2);
+
+  private static final int SEED_USERS = 1000;
+
+  /**
+   * Requests scheduled while this many are unanswered are counted as errors without being sent, so that an
+   * overloaded server cannot make the load generator run out of memory.
+   */
+  private static final int MAX_IN_FLIGHT = 20_000;
+
+  private static final long HIGHEST_LATENCY_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+  private static final Pattern ID = Pattern.compile("\"id\":(\\d+)");
+
+  enum Operation {
+    REGISTER, VALIDATE, LOGIN, LIST, GET
+  }
+
+  public static void main(String[] args) throws Exception {
+    String url = argument(args, 0, null);
+    int[] rates = parseInts(argument(args, 1, "50,100,200"));
+    Duration duration = Duration.ofSeconds(Long.parseLong(argument(args, 2, "30")));
+    Mix mix = Mix.parse(argument(args, 3, "list=30,get=35,validate=20,login=10,register=5"));
+    String label = argument(args, 4, "open");
+    Path resultDirectory = Path.of(argument(args, 5, "benchmark-results/open-" + label));
+    long seed = Long.parseLong(argument(args, 6, "42"));
+    String serverClasspath = argument(args, 7, System.getProperty("java.class.path"));
+
+    ExecutorService callbacks = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 2);
+    HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10))
+            .executor(callbacks)
+            .build();
+    Files.createDirectories(resultDirectory);
+    Process server = null;
+    try {
+      URI baseUrl;
+      if (url == null) {
+        int port = freePort();
+        server = startServer(serverClasspath, port, resultDirectory.resolve("server.log"));
+        baseUrl = URI.create("http://localhost:" + port);
+        awaitReady(client, baseUrl, server);
+      } else {
+        baseUrl = URI.create(url);
+      }
+      Traffic traffic = new Traffic(baseUrl, importUsers(client, baseUrl), mix, seed);
+
+      StringBuilder csv = new StringBuilder("label,rate,operation,requests,errors,throughput,p50_ms,p99_ms,p999_ms,max_ms\n");
+      System.out.printf("%-10s %6s %-9s %9s %7s %9s %8s %8s %8s %8s%n",
+              "label", "rate", "operation", "requests", "errors", "req/s", "p50 ms", "p99 ms", "p999 ms", "max ms");
+      for (int rate : rates) {
+        run(client, traffic, rate, WARMUP, callbacks);
+        Map<Operation, Result> results = run(client, traffic, rate, duration, callbacks);
+        Result total = new Result();
+        results.values().forEach(total::add);
+        for (Map.Entry<Operation, Result> result : results.entrySet())
+          report(csv, label, rate, result.getKey().name().toLowerCase(Locale.ROOT), result.getValue(), duration);
+        report(csv, label, rate, "total", total, duration);
+        try (PrintStream hgrm = new PrintStream(Files.newOutputStream(resultDirectory.resolve(rate + "rps.hgrm")))) {
+          // latencies are recorded in nanoseconds and written in milliseconds
+          total.latencies.outputPercentileDistribution(hgrm, 1e6);
+        }
+      }
+      try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(resultDirectory.resolve("summary.csv")))) {
+        writer.print(csv);
+      }
+      System.out.println("Results written to " + resultDirectory.toAbsolutePath());
+    } finally {
+      callbacks.shutdownNow();
+      if (server != null) {
+        server.destroy();
+        if (!server.waitFor(30, TimeUnit.SECONDS))
+          server.destroyForcibly();
+      }
+    }
+  }
+
+  private static void report(StringBuilder csv, String label, int rate, String operation, Result result,
+                             Duration duration) {
+    Histogram latencies = result.latencies;
+    double throughput = latencies.getTotalCount() / (duration.toNanos() / 1e9);
+    System.out.printf("%-10s %6d %-9s %9d %7d %9.1f %8.2f %8.2f %8.2f %8.2f%n", label, rate, operation,
+            latencies.getTotalCount(), result.errors, throughput, millis(latencies, 50), millis(latencies, 99),
+            millis(latencies, 99.9), latencies.getMaxValue() / 1e6);
+    csv.append(String.format(Locale.ROOT, "%s,%d,%s,%d,%d,%.1f,%.3f,%.3f,%.3f,%.3f%n", label, rate, operation,
+            latencies.getTotalCount(), result.errors, throughput, millis(latencies, 50), millis(latencies, 99),
+            millis(latencies, 99.9), latencies.getMaxValue() / 1e6));
+  }
+
+  private static double millis(Histogram latencies, double percentile) {
+    return latencies.getTotalCount() == 0 ? Double.NaN : latencies.getValueAtPercentile(percentile) / 1e6;
+  }
+
+  private static Process startServer(String classpath, int port, Path log) throws IOException {
+    String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+    return new ProcessBuilder(java, "-Xmx1g", "-cp", classpath, "ch.uzh.ifi.hase.soprafs22.Application",
+            "--server.port=" + port,
+            "--spring.datasource.url=jdbc:h2:mem:load;DB_CLOSE_ON_EXIT=FALSE",
+            "--users.rate-limit.enabled=false")
+            .redirectErrorStream(true)
+            .redirectOutput(log.toFile())
+            .start();
+  }
+
+  private static void awaitReady(HttpClient client, URI baseUrl, Process server) throws InterruptedException {
+    HttpRequest health = HttpRequest.newBuilder(baseUrl.resolve("/actuator/health")).timeout(Duration.ofSeconds(1)).build();
+    long deadline = System.nanoTime() + STARTUP_TIMEOUT.toNanos();
+    while (System.nanoTime() < deadline) {
+      if (!server.isAlive())
+        throw new IllegalStateException("Server exited with status " + server.exitValue() + " during startup");
+      try {
+        if (client.send(health, HttpResponse.BodyHandlers.discarding()).statusCode() == 200)
+          return;
+      } catch (IOException e) {
+        // not listening yet
+      }
+      Thread.sleep(200);
+    }
+    throw new IllegalStateException("Server did not start within " + STARTUP_TIMEOUT);
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  /**
+   * Import the users that are validated, logged in and fetched by ID.
+   * @return  IDs of the imported users
+   */
+  private static List<Long> importUsers(HttpClient client, URI baseUrl) throws IOException, InterruptedException {
+    List<String> users = IntStream.range(0, SEED_USERS)
+            .mapToObj(i -> String.format("{\"username\":\"%s\",\"password\":\"password\"}", Traffic.seedUsername(i)))
+            .toList();
+    HttpRequest bulkRequest = HttpRequest.newBuilder(baseUrl.resolve("/users/bulk"))
+            .header("Content-Type", "application/x-ndjson")
+            .POST(HttpRequest.BodyPublishers.ofString(String.join("\n", users)))
+            .build();
+    HttpResponse<String> response = client.send(bulkRequest, HttpResponse.BodyHandlers.ofString());
+    if (response.statusCode() >= 400)
+      throw new IllegalStateException("Seeding users failed with status " + response.statusCode());
+    List<Long> ids = new ArrayList<>();
+    Matcher matcher = ID.matcher(response.body());
+    while (matcher.find())
+      ids.add(Long.parseLong(matcher.group(1)));
+    if (ids.isEmpty())
+      throw new IllegalStateException("No users were imported, run against a fresh server");
+    return ids;
+  }
+
+  private static Map<Operation, Result> run(HttpClient client, Traffic traffic, int rate, Duration duration,
+                                            ExecutorService callbacks) throws InterruptedException {
+    Map<Operation, Recorder> recorders = new EnumMap<>(Operation.class);
+    Map<Operation, AtomicLong> errors = new EnumMap<>(Operation.class);
+    for (Operation operation : Operation.values()) {
+      recorders.put(operation, new Recorder(HIGHEST_LATENCY_NANOS, 3));
+      errors.put(operation, new AtomicLong());
+    }
+    AtomicInteger inFlight = new AtomicInteger();
+    long start = System.nanoTime();
+    long end = start + duration.toNanos();
+    long scheduled = start;
+    while ((scheduled += traffic.nextGapNanos(rate)) < end) {
+      long delay = scheduled - System.nanoTime();
+      if (delay > 0)
+        LockSupport.parkNanos(delay);
+      Operation operation = traffic.nextOperation();
+      if (inFlight.get() >= MAX_IN_FLIGHT) {
+        errors.get(operation).incrementAndGet();
+        continue;
+      }
+      inFlight.incrementAndGet();
+      long intended = scheduled;
+      client.sendAsync(traffic.request(operation), HttpResponse.BodyHandlers.discarding())
+              .whenCompleteAsync((response, error) -> {
+                recorders.get(operation).recordValue(Math.min(System.nanoTime() - intended, HIGHEST_LATENCY_NANOS));
+                if (error != null || response.statusCode() >= 400)
+                  errors.get(operation).incrementAndGet();
+                inFlight.decrementAndGet();
+              }, callbacks);
+    }
+    // unanswered requests complete exceptionally once their timeout elapsed
+    long drainDeadline = System.nanoTime() + REQUEST_TIMEOUT.toNanos() + TimeUnit.SECONDS.toNanos(1);
+    while (inFlight.get() > 0 && System.nanoTime() < drainDeadline)
+      Thread.sleep(10);
+
+    Map<Operation, Result> results = new EnumMap<>(Operation.class);
+    for (Operation operation : Operation.values()) {
+      Result result = new Result();
+      result.latencies.add(recorders.get(operation).getIntervalHistogram());
+      result.errors = errors.get(operation).get();
+      if (result.latencies.getTotalCount() > 0 || result.errors > 0)
+        results.put(operation, result);
+    }
+    return results;
+  }
+
+  private static int[] parseInts(String values) {
+    return Arrays.stream(values.split(",")).mapToInt(value -> Integer.parseInt(value.trim())).toArray();
+  }
+
+  private static String argument(String[] args, int index, String defaultValue) {
+    return args.length > index && !args[index].isBlank() ? args[index] : defaultValue;
+  }
+
+  /**
+   * Weights of the operations, e.g. 'list=30,get=70'. Operations without a weight are not sent.
+   */
+  private record Mix(Operation[] operations, int[] cumulativeWeights) {
+
+    static Mix parse(String mix) {
+      List<Operation> operations = new ArrayList<>();
+      List<Integer> cumulativeWeights = new ArrayList<>();
+      int total = 0;
+      for (String entry : mix.split(",")) {
+        String[] parts = entry.split("=");
+        if (parts.length != 2)
+          throw new IllegalArgumentException("Invalid mix entry '" + entry + "', expected operation=weight");
+        total += Integer.parseInt(parts[1].trim());
+        operations.add(Operation.valueOf(parts[0].trim().toUpperCase(Locale.ROOT)));
+        cumulativeWeights.add(total);
+      }
+      if (total <= 0)
+        throw new IllegalArgumentException("The weights of the mix must add up to more than 0");
+      return new Mix(operations.toArray(Operation[]::new), cumulativeWeights.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    Operation pick(Random random) {
+      int value = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+      int index = 0;
+      while (value >= cumulativeWeights[index])
+        index++;
+      return operations[index];
+    }
+  }
+
+  /**
+   * Source of the requests. Only the dispatching thread draws from the random generator, so the sequence of
+   * operations and arrival gaps only depends on the seed.
+   */
+  private static class Traffic {
+    private final URI baseUrl;
+    private final List<Long> ids;
+    private final Mix mix;
+    private final Random random;
+    private final String registrationPrefix = "open-" + Long.toString(System.currentTimeMillis(), 36) + "-";
+    private long registrations;
+
+    Traffic(URI baseUrl, List<Long> ids, Mix mix, long seed) {
+      this.baseUrl = baseUrl;
+      this.ids = ids;
+      this.mix = mix;
+      this.random = new Random(seed);
+    }
+
+    static String seedUsername(int index) {
+      return String.format("open-seed-%05d", index);
+    }
+
+    long nextGapNanos(int rate) {
+      return (long) (-Math.log(1 - random.nextDouble()) / rate * 1e9);
+    }
+
+    Operation nextOperation() {
+      return mix.pick(random);
+    }
+
+    HttpRequest request(Operation operation) {
+      String username = seedUsername(random.nextInt(ids.size()));
+      return switch (operation) {
+        case REGISTER -> post("/users/register",
+                "{\"username\":\"" + registrationPrefix + registrations++ + "\",\"password\":\"password\"}");
+        case VALIDATE -> post("/users/validate", "{\"username\":\"" + username + "\"}");
+        case LOGIN -> post("/users/login", "{\"username\":\"" + username + "\",\"password\":\"password\"}");
+        case LIST -> get("/users?limit=20");
+        case GET -> get("/users/" + ids.get(random.nextInt(ids.size())));
+      };
+    }
+
+    private HttpRequest get(String path) {
+      return HttpRequest.newBuilder(baseUrl.resolve(path)).timeout(REQUEST_TIMEOUT).GET().build();
+    }
+
+    private HttpRequest post(String path, String body) {
+      return HttpRequest.newBuilder(baseUrl.resolve(path))
+              .timeout(REQUEST_TIMEOUT)
+              .header("Content-Type", "application/json")
+              .POST(HttpRequest.BodyPublishers.ofString(body))
+              .build();
+    }
+  }
+
+  private static class Result {
+    private final Histogram latencies = new Histogram(HIGHEST_LATENCY_NANOS, 3);
+    private long errors;
+
+    void add(Result other) {
+      latencies.add(other.latencies);
+      errors += other.errors;
+    }
+  }
+}
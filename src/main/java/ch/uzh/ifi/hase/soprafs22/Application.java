@@ -2,17 +2,27 @@ package ch.uzh.ifi.hase.soprafs22;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.metrics.buffering.BufferingApplicationStartup;
+import org.springframework.cache.annotation.EnableCaching;
 import org.springframework.context.annotation.Bean;
+import org.springframework.http.HttpHeaders;
 import org.springframework.lang.NonNull;
-import org.springframework.web.filter.CommonsRequestLoggingFilter;
+import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
+@EnableCaching
+@EnableScheduling
 @SpringBootApplication
 public class Application {
 
+  private static final int STARTUP_STEP_CAPACITY = 4096;
+
   public static void main(String[] args) {
-    SpringApplication.run(Application.class, args);
+    SpringApplication application = new SpringApplication(Application.class);
+    // keeps the startup steps for the StartupReport and the 'startup' actuator endpoint
+    application.setApplicationStartup(new BufferingApplicationStartup(STARTUP_STEP_CAPACITY));
+    application.run(args);
   }
 
   @Bean
@@ -20,18 +30,8 @@ public class Application {
     return new WebMvcConfigurer() {
       @Override
       public void addCorsMappings(@NonNull CorsRegistry registry) {
-        registry.addMapping("/**").allowedOrigins("*").allowedMethods("*");
+        registry.addMapping("/**").allowedOrigins("*").allowedMethods("*").exposedHeaders(HttpHeaders.AUTHORIZATION);
       }
     };
   }
-
-  @Bean
-  public CommonsRequestLoggingFilter logFilter() {
-    CommonsRequestLoggingFilter filter = new CommonsRequestLoggingFilter();
-    filter.setIncludeQueryString(true);
-    filter.setIncludePayload(true);
-    filter.setMaxPayloadLength(10000);
-    filter.setIncludeHeaders(false);
-    return filter;
-  }
 }
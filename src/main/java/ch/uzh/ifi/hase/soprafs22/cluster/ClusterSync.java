@@ -0,0 +1,218 @@
+package ch.uzh.ifi.hase.soprafs22.cluster;
+
+import ch.uzh.ifi.hase.soprafs22.cluster.InvalidationMessage.Kind;
+import ch.uzh.ifi.hase.soprafs22.model.SessionEvent;
+import ch.uzh.ifi.hase.soprafs22.model.UserEvent;
+import ch.uzh.ifi.hase.soprafs22.model.UserSummary;
+import ch.uzh.ifi.hase.soprafs22.service.PresenceBuffer;
+import ch.uzh.ifi.hase.soprafs22.service.SessionStore;
+import ch.uzh.ifi.hase.soprafs22.service.UserSearchIndex;
+import ch.uzh.ifi.hase.soprafs22.service.UserService;
+import ch.uzh.ifi.hase.soprafs22.service.UsernameIndex;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps the in-memory state of this node consistent with the other nodes of a cluster, which share the database.
+ * Committed user changes and started or ended sessions are published on the {@link InvalidationChannel};
+ * changes received from other nodes evict the cached user, update the username and search indexes, replicate
+ * sessions and are pushed to the local subscribers of 'GET /users/events'.
+ * <p>
+ * Messages may arrive late, twice or out of order. Data changes are only applied if they carry a higher
+ * version than the last one seen for the user, presence changes if they were made later than the last one
+ * seen, by the clock of the originating node. The latest data and presence seen are merged per user, and remote
+ * events carry the merged state, so a message that is newer in one part only never brings back the other part.
+ * The database stays the source of truth: an evicted user is simply loaded again, and a session start or end that
+ * is lost or arrives out of order is corrected by the SessionStore from the database.
+ */
+@Slf4j
+@Component
+@ConditionalOnExpression("'${users.cluster.channel:none}' != 'none'")
+public class ClusterSync {
+
+  private final Map<Long, Stamp> stamps = new ConcurrentHashMap<>();
+
+  private final String nodeId;
+
+  private final InvalidationChannel channel;
+
+  private final Cache usersCache;
+
+  private final UsernameIndex usernameIndex;
+
+  private final UserSearchIndex searchIndex;
+
+  private final PresenceBuffer presenceBuffer;
+
+  private final SessionStore sessionStore;
+
+  private final ApplicationEventPublisher eventPublisher;
+
+  private final LongSupplier clock;
+
+  private final Counter sent;
+
+  private final Counter applied;
+
+  private final Counter stale;
+
+  @Autowired
+  public ClusterSync(@Value("${users.cluster.node-id:}") String nodeId, InvalidationChannel channel,
+                     CacheManager cacheManager, UsernameIndex usernameIndex, UserSearchIndex searchIndex,
+                     PresenceBuffer presenceBuffer, SessionStore sessionStore,
+                     ApplicationEventPublisher eventPublisher, MeterRegistry meterRegistry) {
+    this(nodeId.isEmpty() ? UUID.randomUUID().toString() : nodeId, channel, cacheManager.getCache(UserService.USERS_CACHE),
+            usernameIndex, searchIndex, presenceBuffer, sessionStore, eventPublisher, meterRegistry,
+            System::currentTimeMillis);
+  }
+
+  ClusterSync(String nodeId, InvalidationChannel channel, Cache usersCache, UsernameIndex usernameIndex,
+              UserSearchIndex searchIndex, PresenceBuffer presenceBuffer, SessionStore sessionStore,
+              ApplicationEventPublisher eventPublisher, MeterRegistry meterRegistry, LongSupplier clock) {
+    this.nodeId = nodeId;
+    this.channel = channel;
+    this.usersCache = usersCache;
+    this.usernameIndex = usernameIndex;
+    this.searchIndex = searchIndex;
+    this.presenceBuffer = presenceBuffer;
+    this.sessionStore = sessionStore;
+    this.eventPublisher = eventPublisher;
+    this.clock = clock;
+    this.sent = meterRegistry.counter("users.cluster.messages", "result", "sent");
+    this.applied = meterRegistry.counter("users.cluster.messages", "result", "applied");
+    this.stale = meterRegistry.counter("users.cluster.messages", "result", "stale");
+    channel.setReceiver(this::receive);
+    log.info("Joined cluster as node {}", nodeId);
+  }
+
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  /**
+   * Called after the publishing transaction committed, or right away if it was published outside of one.
+   */
+  @TransactionalEventListener(fallbackExecution = true)
+  public void onUserEvent(UserEvent event) {
+    if (event.isRemote())
+      return;
+    UserSummary user = event.getUser();
+    // the stamp of a buffered change, as its node writes it, so that all nodes fingerprint the user list the same
+    long presenceStamp = presenceBuffer.getStamp(user.getId()).orElseGet(clock);
+    // later messages of other nodes about older versions must not undo this change
+    boolean data = event.getType() != UserEvent.Type.LOGGED_IN;
+    stamps.compute(user.getId(), (id, stamp) -> Stamp.merge(stamp, data, event.getVersion(), user.getUsername(),
+            presenceStamp, user.isLoggedIn()));
+    Kind kind = switch (event.getType()) {
+      case CREATED -> Kind.USER_CREATED;
+      case UPDATED -> Kind.USER_UPDATED;
+      case LOGGED_IN -> Kind.USER_LOGGED_IN;
+    };
+    publish(new InvalidationMessage(nodeId, kind, user.getId(), event.getVersion(), user.getUsername(),
+            event.getPreviousUsername(), user.isLoggedIn(), presenceStamp, null));
+  }
+
+  @EventListener
+  public void onSessionEvent(SessionEvent event) {
+    Kind kind = event.isRevoked() ? Kind.SESSION_REVOKED : Kind.SESSION_CREATED;
+    publish(InvalidationMessage.session(nodeId, kind, event.getTokenHash(), event.getUserId()));
+  }
+
+  private void publish(InvalidationMessage message) {
+    channel.publish(message);
+    sent.increment();
+  }
+
+  void receive(InvalidationMessage message) {
+    if (nodeId.equals(message.nodeId()))
+      return;
+    switch (message.kind()) {
+      case SESSION_CREATED -> sessionStore.addReplica(message.tokenHash(), message.userId());
+      case SESSION_REVOKED -> sessionStore.removeReplica(message.tokenHash());
+      default -> {
+        applyUserChange(message);
+        return;
+      }
+    }
+    applied.increment();
+  }
+
+  private void applyUserChange(InvalidationMessage message) {
+    Long userId = message.userId();
+    boolean data = message.kind() != Kind.USER_LOGGED_IN;
+    Stamp[] previous = new Stamp[1];
+    Stamp merged = stamps.compute(userId, (id, stamp) -> {
+      previous[0] = stamp;
+      return Stamp.merge(stamp, data, message.version(), message.username(), message.presenceStamp(),
+              message.loggedIn());
+    });
+    boolean newerData = data && (previous[0] == null || message.version() > previous[0].version);
+    boolean newerPresence = previous[0] == null || message.presenceStamp() > previous[0].presenceStamp;
+    if (!newerData && !newerPresence) {
+      stale.increment();
+      return;
+    }
+    if (newerData) {
+      if (message.previousUsername() != null) {
+        usernameIndex.rename(message.previousUsername(), message.username());
+        searchIndex.rename(userId, message.previousUsername(), message.username());
+      } else {
+        usernameIndex.add(message.username());
+        searchIndex.add(userId, message.username());
+      }
+    }
+    if (newerPresence)
+      presenceBuffer.applyRemote(userId, message.loggedIn(), message.presenceStamp());
+    if (usersCache != null)
+      usersCache.evict(userId);
+    UserEvent.Type type = switch (message.kind()) {
+      case USER_CREATED -> newerData ? UserEvent.Type.CREATED : UserEvent.Type.UPDATED;
+      case USER_LOGGED_IN -> UserEvent.Type.LOGGED_IN;
+      default -> UserEvent.Type.UPDATED;
+    };
+    // the merged state, as only the newer parts of the message were applied
+    eventPublisher.publishEvent(new UserEvent(type, new UserSummary(userId, merged.username, merged.loggedIn),
+            merged.version < 0 ? message.version() : merged.version, newerData ? message.previousUsername() : null,
+            true));
+    applied.increment();
+  }
+
+  /**
+   * Latest data and presence seen for a user.
+   * @param version         version of the latest data change, -1 if only presence changes were seen
+   * @param username        username as of the latest data change, or of the first presence change
+   * @param presenceStamp   time of the latest presence change on its originating node
+   * @param loggedIn        presence flag as of the latest presence change
+   */
+  private record Stamp(long version, String username, long presenceStamp, boolean loggedIn) {
+
+    /**
+     * @param data    true if the change carries data, false if it is a presence change only, whose version and
+     *                username are merely copied from the user at the time
+     */
+    static Stamp merge(Stamp stamp, boolean data, long version, String username, long presenceStamp,
+                       boolean loggedIn) {
+      if (stamp == null)
+        return new Stamp(data ? version : -1, username, presenceStamp, loggedIn);
+      boolean newerData = data && version > stamp.version;
+      boolean newerPresence = presenceStamp > stamp.presenceStamp;
+      return new Stamp(newerData ? version : stamp.version, newerData ? username : stamp.username,
+              newerPresence ? presenceStamp : stamp.presenceStamp, newerPresence ? loggedIn : stamp.loggedIn);
+    }
+  }
+}
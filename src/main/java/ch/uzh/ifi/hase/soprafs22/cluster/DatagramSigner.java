@@ -0,0 +1,59 @@
+package ch.uzh.ifi.hase.soprafs22.cluster;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Signs datagrams with an HMAC-SHA256 keyed by a secret shared by all nodes of a cluster. A signed datagram is
+ * the {@value #SIGNATURE_LENGTH} byte signature followed by the message.
+ */
+class DatagramSigner {
+
+  static final int SIGNATURE_LENGTH = 32;
+
+  private static final String ALGORITHM = "HmacSHA256";
+
+  private final SecretKeySpec key;
+
+  DatagramSigner(String secret) {
+    this.key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+  }
+
+  /**
+   * @return  datagram with the signature of the given message, followed by the message
+   */
+  byte[] sign(byte[] message) {
+    byte[] datagram = new byte[SIGNATURE_LENGTH + message.length];
+    System.arraycopy(mac(message, 0, message.length), 0, datagram, 0, SIGNATURE_LENGTH);
+    System.arraycopy(message, 0, datagram, SIGNATURE_LENGTH, message.length);
+    return datagram;
+  }
+
+  /**
+   * @return  true if the datagram starts with a valid signature of the rest of the datagram
+   */
+  boolean verify(byte[] datagram, int offset, int length) {
+    if (length <= SIGNATURE_LENGTH)
+      return false;
+    byte[] expected = mac(datagram, offset + SIGNATURE_LENGTH, length - SIGNATURE_LENGTH);
+    // constant-time comparison, so a signature cannot be guessed byte by byte
+    return MessageDigest.isEqual(expected, Arrays.copyOfRange(datagram, offset, offset + SIGNATURE_LENGTH));
+  }
+
+  private byte[] mac(byte[] data, int offset, int length) {
+    try {
+      // Mac instances are not thread-safe, and creating one is cheap compared to sending a datagram
+      Mac mac = Mac.getInstance(ALGORITHM);
+      mac.init(key);
+      mac.update(data, offset, length);
+      return mac.doFinal();
+    } catch (GeneralSecurityException e) {
+      // every Java platform supports HmacSHA256
+      throw new IllegalStateException(e);
+    }
+  }
+}
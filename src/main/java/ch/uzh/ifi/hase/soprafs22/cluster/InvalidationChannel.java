@@ -0,0 +1,22 @@
+package ch.uzh.ifi.hase.soprafs22.cluster;
+
+import java.util.function.Consumer;
+
+/**
+ * Transport of {@link InvalidationMessage}s between the nodes of a cluster, selected with
+ * 'users.cluster.channel'. Delivery is best effort: messages may be lost, duplicated or reordered, which
+ * receivers must tolerate, see ClusterSync.
+ */
+public interface InvalidationChannel {
+
+  /**
+   * Send a message to all other nodes, without waiting for them to receive it.
+   */
+  void publish(InvalidationMessage message);
+
+  /**
+   * Set the callback for messages from other nodes. Messages published by this channel itself may be passed
+   * to it as well.
+   */
+  void setReceiver(Consumer<InvalidationMessage> receiver);
+}
@@ -0,0 +1,29 @@
+package ch.uzh.ifi.hase.soprafs22.cluster;
+
+/**
+ * Change broadcast between the nodes of a cluster, serialized as JSON.
+ * @param nodeId            ID of the node that made the change
+ * @param kind              kind of the change
+ * @param userId            ID of the changed user, or of the user owning the session
+ * @param version           version of the changed user, see User.getVersion()
+ * @param username          username of the changed user, null for sessions
+ * @param previousUsername  username before a rename, otherwise null
+ * @param loggedIn          presence flag of the changed user
+ * @param presenceStamp     time of the change on the originating node, in milliseconds since the epoch
+ * @param tokenHash         hash of the session token, see SessionStore.hashToken(String), null for users
+ */
+public record InvalidationMessage(String nodeId, Kind kind, Long userId, long version, String username,
+                                  String previousUsername, boolean loggedIn, long presenceStamp, String tokenHash) {
+
+  public enum Kind {
+    USER_CREATED,
+    USER_UPDATED,
+    USER_LOGGED_IN,
+    SESSION_CREATED,
+    SESSION_REVOKED
+  }
+
+  public static InvalidationMessage session(String nodeId, Kind kind, String tokenHash, Long userId) {
+    return new InvalidationMessage(nodeId, kind, userId, 0, null, null, false, 0, tokenHash);
+  }
+}
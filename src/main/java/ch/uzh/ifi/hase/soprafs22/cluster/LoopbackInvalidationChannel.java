@@ -0,0 +1,49 @@
+package ch.uzh.ifi.hase.soprafs22.cluster;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Channel between application contexts within the same JVM, e.g. several nodes started by a test. Messages
+ * are delivered synchronously to all channels with the same 'users.cluster.loopback.group'.
+ */
+@Component
+@ConditionalOnProperty(name = "users.cluster.channel", havingValue = "loopback")
+public class LoopbackInvalidationChannel implements InvalidationChannel {
+
+  private static final Map<String, Set<LoopbackInvalidationChannel>> GROUPS = new ConcurrentHashMap<>();
+
+  private final Set<LoopbackInvalidationChannel> group;
+
+  private volatile Consumer<InvalidationMessage> receiver = message -> {};
+
+  public LoopbackInvalidationChannel(@Value("${users.cluster.loopback.group:users}") String group) {
+    this.group = GROUPS.computeIfAbsent(group, g -> ConcurrentHashMap.newKeySet());
+    this.group.add(this);
+  }
+
+  @Override
+  public void publish(InvalidationMessage message) {
+    for (LoopbackInvalidationChannel channel : group) {
+      if (channel != this)
+        channel.receiver.accept(message);
+    }
+  }
+
+  @Override
+  public void setReceiver(Consumer<InvalidationMessage> receiver) {
+    this.receiver = receiver;
+  }
+
+  @PreDestroy
+  public void close() {
+    group.remove(this);
+  }
+}
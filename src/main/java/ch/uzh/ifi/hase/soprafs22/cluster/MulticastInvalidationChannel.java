@@ -0,0 +1,114 @@
+package ch.uzh.ifi.hase.soprafs22.cluster;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.function.Consumer;
+
+/**
+ * Channel between nodes in the same network, sending every message as a single UDP multicast datagram. Messages
+ * are small and fire-and-forget, a lost datagram only delays a change until the cached user expires.
+ * <p>
+ * Every datagram starts with an HMAC-SHA256 of the message, keyed with the shared secret
+ * 'users.cluster.multicast.secret', and datagrams without a valid signature are dropped, so only nodes that know
+ * the secret can replicate sessions or invalidate users. The channel refuses to start without a secret. Messages
+ * are signed but not encrypted; they identify sessions only by the hash of their token.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "users.cluster.channel", havingValue = "multicast")
+public class MulticastInvalidationChannel implements InvalidationChannel {
+
+  private static final int MAX_DATAGRAM_SIZE = 1400;
+
+  private final DatagramSigner signer;
+
+  private final MulticastSocket socket;
+
+  private final InetSocketAddress group;
+
+  private final ObjectMapper objectMapper;
+
+  private final Counter rejected;
+
+  private final Thread receiverThread;
+
+  private volatile Consumer<InvalidationMessage> receiver = message -> {};
+
+  public MulticastInvalidationChannel(@Value("${users.cluster.multicast.group:239.1.1.1}") String group,
+                                      @Value("${users.cluster.multicast.port:45600}") int port,
+                                      @Value("${users.cluster.multicast.interface:}") String networkInterface,
+                                      @Value("${users.cluster.multicast.secret:}") String secret,
+                                      ObjectMapper objectMapper, MeterRegistry meterRegistry) throws IOException {
+    if (secret.isBlank())
+      throw new IllegalStateException("The multicast cluster channel requires 'users.cluster.multicast.secret'");
+    this.signer = new DatagramSigner(secret);
+    this.group = new InetSocketAddress(InetAddress.getByName(group), port);
+    this.objectMapper = objectMapper;
+    this.rejected = meterRegistry.counter("users.cluster.messages", "result", "rejected");
+    this.socket = new MulticastSocket(port);
+    NetworkInterface nic = networkInterface.isEmpty() ? null : NetworkInterface.getByName(networkInterface);
+    if (nic != null)
+      socket.setNetworkInterface(nic);
+    socket.joinGroup(this.group, nic);
+    this.receiverThread = new Thread(this::receive, "cluster-receiver");
+    receiverThread.setDaemon(true);
+    receiverThread.start();
+  }
+
+  @Override
+  public void publish(InvalidationMessage message) {
+    try {
+      byte[] data = signer.sign(objectMapper.writeValueAsBytes(message));
+      socket.send(new DatagramPacket(data, data.length, group));
+    } catch (IOException e) {
+      log.warn("Could not send {}", message.kind(), e);
+    }
+  }
+
+  @Override
+  public void setReceiver(Consumer<InvalidationMessage> receiver) {
+    this.receiver = receiver;
+  }
+
+  private void receive() {
+    byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+    while (!socket.isClosed()) {
+      DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+      try {
+        socket.receive(packet);
+        if (!signer.verify(packet.getData(), packet.getOffset(), packet.getLength())) {
+          rejected.increment();
+          log.debug("Dropped unsigned or forged datagram from {}", packet.getSocketAddress());
+          continue;
+        }
+        receiver.accept(objectMapper.readValue(packet.getData(), packet.getOffset() + DatagramSigner.SIGNATURE_LENGTH,
+                packet.getLength() - DatagramSigner.SIGNATURE_LENGTH, InvalidationMessage.class));
+      } catch (SocketException e) {
+        // closed on shutdown
+      } catch (IOException e) {
+        log.warn("Could not read invalidation message", e);
+      } catch (RuntimeException e) {
+        log.warn("Could not apply invalidation message", e);
+      }
+    }
+  }
+
+  @PreDestroy
+  public void close() {
+    socket.close();
+  }
+}
@@ -0,0 +1,62 @@
+package ch.uzh.ifi.hase.soprafs22.config;
+
+import ch.uzh.ifi.hase.soprafs22.model.User;
+import org.springframework.boot.autoconfigure.cache.CacheProperties;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.cache.Cache;
+import org.springframework.cache.caffeine.CaffeineCache;
+import org.springframework.cache.caffeine.CaffeineCacheManager;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.lang.NonNull;
+
+/**
+ * Caffeine caches configured by the 'spring.cache' properties like Spring Boot's own cache manager, except that
+ * cached users are copied when they are put and again when they are read. Users are mutable entities, which the
+ * services change in place, e.g. the presence flag on login; with the copies, no caller ever holds the instance
+ * stored in the cache, so a cached user only changes when a new copy is put.
+ */
+@Configuration(proxyBeanMethods = false)
+@EnableConfigurationProperties(CacheProperties.class)
+public class CacheConfiguration {
+
+  @Bean
+  public CaffeineCacheManager cacheManager(CacheProperties cacheProperties) {
+    CaffeineCacheManager cacheManager = new CaffeineCacheManager() {
+      @NonNull
+      @Override
+      protected Cache adaptCaffeineCache(@NonNull String name,
+                                         @NonNull com.github.benmanes.caffeine.cache.Cache<Object, Object> cache) {
+        return new CopyingCaffeineCache(name, cache, isAllowNullValues());
+      }
+    };
+    if (cacheProperties.getCaffeine().getSpec() != null)
+      cacheManager.setCacheSpecification(cacheProperties.getCaffeine().getSpec());
+    if (!cacheProperties.getCacheNames().isEmpty())
+      cacheManager.setCacheNames(cacheProperties.getCacheNames());
+    return cacheManager;
+  }
+
+  static class CopyingCaffeineCache extends CaffeineCache {
+
+    CopyingCaffeineCache(String name, com.github.benmanes.caffeine.cache.Cache<Object, Object> cache,
+                         boolean allowNullValues) {
+      super(name, cache, allowNullValues);
+    }
+
+    @NonNull
+    @Override
+    protected Object toStoreValue(Object userValue) {
+      return super.toStoreValue(copy(userValue));
+    }
+
+    @Override
+    protected Object fromStoreValue(Object storeValue) {
+      return copy(super.fromStoreValue(storeValue));
+    }
+
+    private static Object copy(Object value) {
+      return value instanceof User user ? user.copy() : value;
+    }
+  }
+}
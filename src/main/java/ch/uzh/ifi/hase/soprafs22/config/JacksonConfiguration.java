@@ -0,0 +1,23 @@
+package ch.uzh.ifi.hase.soprafs22.config;
+
+import com.fasterxml.jackson.databind.Module;
+import com.fasterxml.jackson.module.blackbird.BlackbirdModule;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Customizations of the ObjectMapper that Spring Boot builds for all JSON requests and responses, in both the
+ * servlet and the 'reactive' stack. Module beans are registered with it automatically.
+ */
+@Configuration(proxyBeanMethods = false)
+public class JacksonConfiguration {
+
+  /**
+   * Access properties through generated lambdas instead of reflection, which serializes large user lists about
+   * 10% faster, see UserSerializationBenchmark.
+   */
+  @Bean
+  public Module blackbirdModule() {
+    return new BlackbirdModule();
+  }
+}
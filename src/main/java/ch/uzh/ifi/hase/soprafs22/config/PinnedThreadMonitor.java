@@ -0,0 +1,65 @@
+package ch.uzh.ifi.hase.soprafs22.config;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingStream;
+
+/**
+ * Records virtual threads that stay pinned to their carrier thread for longer than the configured threshold,
+ * using the JDK flight recorder, into the timer 'users.virtual-threads.pinned'. Long pins are logged with the
+ * offending stack frame, so that blocking calls inside synchronized code can be tracked down.
+ */
+@Slf4j
+@Lazy(false)
+@Component
+@ConditionalOnProperty(name = "users.virtual-threads.enabled", havingValue = "true")
+public class PinnedThreadMonitor {
+
+  private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+
+  private final RecordingStream recording = new RecordingStream();
+
+  private final Duration threshold;
+
+  private final Timer pinned;
+
+  public PinnedThreadMonitor(@Value("${users.virtual-threads.pinned-threshold:20ms}") Duration threshold,
+                             MeterRegistry meterRegistry) {
+    this.threshold = threshold;
+    this.pinned = Timer.builder("users.virtual-threads.pinned").register(meterRegistry);
+  }
+
+  @PostConstruct
+  public void start() {
+    recording.enable(PINNED_EVENT).withThreshold(threshold).withStackTrace();
+    recording.onEvent(PINNED_EVENT, this::record);
+    recording.startAsync();
+  }
+
+  private void record(RecordedEvent event) {
+    pinned.record(event.getDuration());
+    if (event.getStackTrace() == null)
+      return;
+    // the top frames are the JDK's parking code, report the first caller outside of it
+    event.getStackTrace().getFrames().stream()
+            .map(frame -> frame.getMethod().getType().getName() + "." + frame.getMethod().getName())
+            .filter(method -> !method.startsWith("java.") && !method.startsWith("jdk."))
+            .findFirst()
+            .ifPresent(method -> log.warn("Virtual thread pinned for {} ms in {}", event.getDuration().toMillis(), method));
+  }
+
+  @PreDestroy
+  public void stop() {
+    recording.close();
+  }
+}
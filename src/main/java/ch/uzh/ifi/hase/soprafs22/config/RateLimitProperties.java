@@ -0,0 +1,46 @@
+package ch.uzh.ifi.hase.soprafs22.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Limits of the 'users.rate-limit' properties, see application.yml. Routes are given by their path, and each
+ * client may send up to 'capacity' requests to a route at once, refilled with 'refill-per-second'. A route with
+ * a 'method' only limits requests with that HTTP method.
+ */
+@Data
+@Component
+@ConfigurationProperties("users.rate-limit")
+public class RateLimitProperties {
+
+  private boolean enabled = true;
+
+  /**
+   * Number of tracked clients above which idle clients are evicted right away instead of by the periodic sweep.
+   */
+  private int maxClients = 100_000;
+
+  private Map<String, Limit> routes = new LinkedHashMap<>();
+
+  /**
+   * Bounds of the number of concurrent requests to the limited routes, which is lowered while the mean latency
+   * of repository calls is above the threshold and raised again while it is below.
+   */
+  private int minConcurrency = 4;
+
+  private int maxConcurrency = 64;
+
+  private Duration latencyThreshold = Duration.ofMillis(50);
+
+  @Data
+  public static class Limit {
+    private String method;
+    private int capacity;
+    private double refillPerSecond;
+  }
+}
@@ -0,0 +1,109 @@
+package ch.uzh.ifi.hase.soprafs22.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import io.r2dbc.spi.ConnectionFactory;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.web.embedded.netty.NettyReactiveWebServerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.data.convert.ReadingConverter;
+import org.springframework.data.convert.WritingConverter;
+import org.springframework.data.r2dbc.convert.R2dbcCustomConversions;
+import org.springframework.data.r2dbc.dialect.DialectResolver;
+import org.springframework.lang.NonNull;
+import org.springframework.web.reactive.config.CorsRegistry;
+import org.springframework.web.reactive.config.WebFluxConfigurer;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Infrastructure of the 'reactive' profile, which serves the user API through WebFlux and R2DBC instead of
+ * Spring MVC and JPA (see application-reactive.yml).
+ */
+@Configuration(proxyBeanMethods = false)
+@Profile("reactive")
+public class ReactiveConfiguration {
+
+  /**
+   * Serve requests on Netty's event loops. Tomcat is on the classpath for the servlet stack and would otherwise
+   * be picked as the reactive server as well, running on its worker pool.
+   */
+  @Bean
+  public NettyReactiveWebServerFactory nettyReactiveWebServerFactory() {
+    return new NettyReactiveWebServerFactory();
+  }
+
+  /**
+   * The JDBC data source backs off as soon as an R2DBC connection factory exists, but JPA still creates the
+   * schema and warms up the shared components, so it is declared explicitly from the same properties.
+   */
+  @Bean
+  @ConfigurationProperties("spring.datasource")
+  public DataSourceProperties dataSourceProperties() {
+    return new DataSourceProperties();
+  }
+
+  @Bean
+  @ConfigurationProperties("spring.datasource.hikari")
+  public HikariDataSource dataSource(DataSourceProperties dataSourceProperties) {
+    return dataSourceProperties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+  }
+
+  /**
+   * The entity uses java.util.Date, which R2DBC drivers neither bind nor return, so dates are written as local
+   * date-times (the database truncates them for DATE columns, as with JPA) and read back from either type.
+   */
+  @Bean
+  public R2dbcCustomConversions r2dbcCustomConversions(ConnectionFactory connectionFactory) {
+    return R2dbcCustomConversions.of(DialectResolver.getDialect(connectionFactory), List.of(
+            DateToLocalDateTimeConverter.INSTANCE, LocalDateTimeToDateConverter.INSTANCE, LocalDateToDateConverter.INSTANCE));
+  }
+
+  @Bean
+  public WebFluxConfigurer reactiveCorsConfigurer() {
+    return new WebFluxConfigurer() {
+      @Override
+      public void addCorsMappings(@NonNull CorsRegistry registry) {
+        registry.addMapping("/**").allowedOrigins("*").allowedMethods("*");
+      }
+    };
+  }
+
+  @WritingConverter
+  enum DateToLocalDateTimeConverter implements Converter<Date, LocalDateTime> {
+    INSTANCE;
+
+    @Override
+    public LocalDateTime convert(@NonNull Date date) {
+      return LocalDateTime.ofInstant(Instant.ofEpochMilli(date.getTime()), ZoneId.systemDefault());
+    }
+  }
+
+  @ReadingConverter
+  enum LocalDateTimeToDateConverter implements Converter<LocalDateTime, Date> {
+    INSTANCE;
+
+    @Override
+    public Date convert(@NonNull LocalDateTime dateTime) {
+      return Date.from(dateTime.atZone(ZoneId.systemDefault()).toInstant());
+    }
+  }
+
+  @ReadingConverter
+  enum LocalDateToDateConverter implements Converter<LocalDate, Date> {
+    INSTANCE;
+
+    @Override
+    public Date convert(@NonNull LocalDate date) {
+      return Date.from(date.atStartOfDay(ZoneId.systemDefault()).toInstant());
+    }
+  }
+}
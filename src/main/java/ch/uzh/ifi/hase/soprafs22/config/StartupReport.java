@@ -0,0 +1,82 @@
+package ch.uzh.ifi.hase.soprafs22.config;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.boot.context.metrics.buffering.BufferingApplicationStartup;
+import org.springframework.boot.context.metrics.buffering.StartupTimeline;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.metrics.StartupStep;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.support.ServletRequestHandledEvent;
+
+import java.lang.management.ManagementFactory;
+import java.util.Comparator;
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reports where the startup time goes: once the application is ready, the slowest startup steps recorded by a
+ * {@link BufferingApplicationStartup} are logged (all steps are available from the 'startup' actuator endpoint
+ * with the 'monitoring' profile), and the time from the JVM start to the first handled request is logged and
+ * published as the gauge 'application.first.request.time', next to Spring Boot's 'application.started.time' and
+ * 'application.ready.time'.
+ * <p>
+ * With 'users.startup.exit-when-ready' the application exits right after it is ready, e.g. for a training run
+ * that dumps a class data sharing archive, see the 'cdsArchive' task of the Gradle build.
+ */
+@Slf4j
+@Lazy(false)
+@Component
+public class StartupReport {
+
+  private static final int REPORTED_STEPS = 10;
+
+  private final AtomicLong firstRequestMillis = new AtomicLong(-1);
+
+  private final boolean exitWhenReady;
+
+  public StartupReport(@Value("${users.startup.exit-when-ready:false}") boolean exitWhenReady,
+                       MeterRegistry meterRegistry) {
+    this.exitWhenReady = exitWhenReady;
+    TimeGauge.builder("application.first.request.time", firstRequestMillis, TimeUnit.MILLISECONDS, AtomicLong::get)
+            .description("Time from the start of the JVM until the first request was handled")
+            .register(meterRegistry);
+  }
+
+  @EventListener
+  public void onReady(ApplicationReadyEvent event) {
+    ConfigurableApplicationContext context = event.getApplicationContext();
+    if (context.getApplicationStartup() instanceof BufferingApplicationStartup startup) {
+      StartupTimeline timeline = startup.getBufferedTimeline();
+      timeline.getEvents().stream()
+              .sorted(Comparator.comparing(StartupTimeline.TimelineEvent::getDuration).reversed())
+              .limit(REPORTED_STEPS)
+              .forEach(step -> log.info("Startup step {} took {} ms {}", step.getStartupStep().getName(),
+                      step.getDuration().toMillis(), tagsOf(step.getStartupStep())));
+    }
+    if (exitWhenReady)
+      System.exit(SpringApplication.exit(context));
+  }
+
+  private static String tagsOf(StartupStep step) {
+    StringJoiner tags = new StringJoiner(", ", "[", "]");
+    step.getTags().forEach(tag -> tags.add(tag.getKey() + "=" + tag.getValue()));
+    return tags.toString();
+  }
+
+  @EventListener
+  public void onRequestHandled(ServletRequestHandledEvent event) {
+    if (firstRequestMillis.get() >= 0)
+      return;
+    long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+    if (firstRequestMillis.compareAndSet(-1, uptime))
+      log.info("First request handled {} ms after the JVM started", uptime);
+  }
+}
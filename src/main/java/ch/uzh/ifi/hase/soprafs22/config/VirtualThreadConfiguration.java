@@ -0,0 +1,84 @@
+package ch.uzh.ifi.hase.soprafs22.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+import org.springframework.lang.NonNull;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Opt-in execution mode serving every request (and async MVC work such as streamed responses) on its own
+ * virtual thread instead of Tomcat's bounded worker pool, enabled with 'users.virtual-threads.enabled=true'.
+ * Virtual threads are final as of Java 21 while this build still targets Java 17, so the executor is looked up
+ * reflectively and the application refuses to start if the mode is enabled on a JDK that does not provide it.
+ * Password hashing stays on its own bounded pool (see PasswordHasher), so CPU-heavy work remains capped.
+ */
+@Slf4j
+@Configuration(proxyBeanMethods = false)
+@ConditionalOnProperty(name = "users.virtual-threads.enabled", havingValue = "true")
+public class VirtualThreadConfiguration {
+
+  static final String PARALLELISM_PROPERTY = "jdk.virtualThreadScheduler.parallelism";
+
+  @Bean(destroyMethod = "shutdown")
+  public ExecutorService virtualThreadExecutor(@Value("${spring.datasource.hikari.maximum-pool-size:10}")
+                                               int connectionPoolSize) {
+    reserveCarrierThreads(connectionPoolSize);
+    ExecutorService executor = newVirtualThreadPerTaskExecutor();
+    log.info("Serving requests on virtual threads with {} carrier threads", System.getProperty(PARALLELISM_PROPERTY));
+    return executor;
+  }
+
+  @Bean
+  public TomcatProtocolHandlerCustomizer<?> virtualThreadProtocolHandlerCustomizer(ExecutorService virtualThreadExecutor) {
+    return protocolHandler -> protocolHandler.setExecutor(virtualThreadExecutor);
+  }
+
+  @Bean
+  public WebMvcConfigurer virtualThreadAsyncConfigurer(ExecutorService virtualThreadExecutor) {
+    return new WebMvcConfigurer() {
+      @Override
+      public void configureAsyncSupport(@NonNull AsyncSupportConfigurer configurer) {
+        configurer.setTaskExecutor(new TaskExecutorAdapter(virtualThreadExecutor));
+      }
+    };
+  }
+
+  /**
+   * Guard against pinning: the JDBC driver, Hibernate and the connection pool block inside synchronized code,
+   * which pins a virtual thread to its carrier thread until it leaves that code. Waiting for a free connection
+   * does not pin, so at most one carrier per pooled connection can be pinned at any time. Keeping more carriers
+   * than connections ensures that pinned threads can never stall requests that do not touch the database.
+   * The scheduler reads this property once, when the first virtual thread is created, and an explicitly
+   * configured value is always kept.
+   * @param connectionPoolSize  maximal number of pooled JDBC connections
+   */
+  static void reserveCarrierThreads(int connectionPoolSize) {
+    if (System.getProperty(PARALLELISM_PROPERTY) != null)
+      return;
+    int parallelism = Math.max(Runtime.getRuntime().availableProcessors(), connectionPoolSize + 1);
+    System.setProperty(PARALLELISM_PROPERTY, String.valueOf(parallelism));
+  }
+
+  /**
+   * @return  new executor starting a virtual thread per task
+   * @throws IllegalStateException  when the running JDK does not support virtual threads (before Java 21)
+   */
+  static ExecutorService newVirtualThreadPerTaskExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+      throw new IllegalStateException("Virtual threads require Java 21 or newer, but running on Java "
+              + Runtime.version().feature() + "; disable 'users.virtual-threads.enabled' or upgrade the JDK", e);
+    }
+  }
+}
@@ -0,0 +1,169 @@
+package ch.uzh.ifi.hase.soprafs22.controller;
+
+import ch.uzh.ifi.hase.soprafs22.model.User;
+import ch.uzh.ifi.hase.soprafs22.model.UserDTO;
+import ch.uzh.ifi.hase.soprafs22.service.ReactiveUserService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.context.annotation.Profile;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.util.UriComponentsBuilder;
+import org.springframework.web.util.UriUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+
+import static ch.uzh.ifi.hase.soprafs22.controller.UserController.*;
+
+/**
+ * Non-blocking counterpart of {@link UserController} for the 'reactive' profile, serving the same routes with
+ * the same status codes on a few event-loop threads. Bulk imports and conditional requests on the user list
+ * are only supported by {@link UserController}.
+ */
+@Profile("reactive")
+@RestController
+@RequestMapping("/users")
+public class ReactiveUserController {
+
+  private final ReactiveUserService userService;
+
+  private final Counter createdRegistrations;
+
+  private final Counter conflictingRegistrations;
+
+  private final Counter successfulLogins;
+
+  private final Counter failedLogins;
+
+  public ReactiveUserController(ReactiveUserService userService, MeterRegistry meterRegistry) {
+    this.userService = userService;
+    this.createdRegistrations = meterRegistry.counter("users.registrations", "result", "created");
+    this.conflictingRegistrations = meterRegistry.counter("users.registrations", "result", "conflict");
+    this.successfulLogins = meterRegistry.counter("users.logins", "result", "success");
+    this.failedLogins = meterRegistry.counter("users.logins", "result", "failure");
+  }
+
+  /**
+   * @see UserController#getAllUsers(String, Integer, java.util.Set, org.springframework.web.context.request.WebRequest)
+   */
+  @GetMapping
+  public Mono<ResponseEntity<List<User>>> getAllUsers(@RequestParam(required = false) String after,
+                                                      @RequestParam(required = false) Integer limit,
+                                                      ServerWebExchange exchange) {
+    if (after == null && limit == null)
+      return userService.getAllUsers().collectList().map(ResponseEntity::ok);
+    int pageSize = limit == null ? DEFAULT_PAGE_SIZE : limit;
+    if (pageSize < 1 || pageSize > MAX_PAGE_SIZE)
+      return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "Limit must be between 1 and " + MAX_PAGE_SIZE));
+
+    return userService.getUsersAfter(after, pageSize).collectList().map(page -> {
+      if (page.size() < pageSize)
+        return ResponseEntity.ok(page);
+      // see UserController.pageOf(List, int, Function)
+      String cursor = UriUtils.encode(page.get(page.size() - 1).getUsername(), StandardCharsets.UTF_8);
+      String next = UriComponentsBuilder.fromUri(exchange.getRequest().getURI())
+              .replaceQueryParam("after", cursor)
+              .replaceQueryParam("limit", pageSize)
+              .build(true).toUriString();
+      return ResponseEntity.ok().header(HttpHeaders.LINK, "<" + next + ">; rel=\"next\"").body(page);
+    });
+  }
+
+  /**
+   * @see UserController#streamAllUsers(org.springframework.web.context.request.WebRequest)
+   */
+  @GetMapping(produces = APPLICATION_NDJSON_VALUE)
+  public Flux<User> streamAllUsers() {
+    return userService.getAllUsers();
+  }
+
+  /**
+   * @see UserController#createUser(UserDTO)
+   */
+  @PostMapping
+  @ResponseStatus(HttpStatus.CREATED)
+  public Mono<User> createUser(@RequestBody UserDTO newUser) {
+    if (StringUtils.isAnyEmpty(newUser.getUsername(), newUser.getPassword()))
+      return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "Must provide non-empty username and password"));
+    return userService.isExistingUsername(newUser.getUsername())
+            .flatMap(exists -> exists ? Mono.error(conflict(newUser)) : userService.createUser(newUser))
+            // a concurrent registration may have taken the username after the check
+            .onErrorMap(DataIntegrityViolationException.class, e -> conflict(newUser))
+            .doOnSuccess(user -> createdRegistrations.increment());
+  }
+
+  /**
+   * @see UserController#getUserById(Long, java.util.Set, org.springframework.web.context.request.WebRequest)
+   */
+  @GetMapping("/{userId}")
+  public Mono<ResponseEntity<User>> getUserById(@PathVariable Long userId, ServerWebExchange exchange) {
+    return findUserById(userId).map(user -> {
+      Instant lastModified = user.getLastModified() == null ? Instant.EPOCH : user.getLastModified().toInstant();
+      if (exchange.checkNotModified(user.toETag(), lastModified))
+        return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(user.toETag()).build();
+      return ResponseEntity.ok(user);
+    });
+  }
+
+  /**
+   * @see UserController#updateUserData(Long, UserDTO, Long, String)
+   * @throws ResponseStatusException    with status 409, when the user was changed concurrently
+   */
+  @PutMapping("/{userId}")
+  @ResponseStatus(HttpStatus.NO_CONTENT)
+  public Mono<Void> updateUserData(@PathVariable Long userId, @RequestBody UserDTO updatedUser) {
+    return findUserById(userId)
+            .flatMap(currentUser -> userService.updateUserData(currentUser, updatedUser))
+            .onErrorMap(OptimisticLockingFailureException.class,
+                    e -> new ResponseStatusException(HttpStatus.CONFLICT, e.getMessage()))
+            .then();
+  }
+
+  /**
+   * @see UserController#login(UserDTO)
+   */
+  @PostMapping("/login")
+  public Mono<User> login(@RequestBody UserDTO user) {
+    return userService.getUserByCredentialsAndLogIn(user)
+            .doOnNext(loggedInUser -> successfulLogins.increment())
+            .switchIfEmpty(Mono.fromRunnable(failedLogins::increment)
+                    .then(Mono.error(new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Invalid username or password"))));
+  }
+
+  /**
+   * @see UserController#register(UserDTO)
+   */
+  @PostMapping("/register")
+  public Mono<User> register(@RequestBody UserDTO newUser) {
+    return createUser(newUser);
+  }
+
+  /**
+   * @see UserController#isAvailableUsername(UserDTO)
+   */
+  @PostMapping("/validate")
+  public Mono<Boolean> isAvailableUsername(@RequestBody UserDTO newUser) {
+    return userService.isExistingUsername(newUser.getUsername()).map(exists -> !exists);
+  }
+
+  private Mono<User> findUserById(Long userId) {
+    return userService.getUserById(userId).switchIfEmpty(
+            Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "No user found with ID: " + userId)));
+  }
+
+  private ResponseStatusException conflict(UserDTO newUser) {
+    conflictingRegistrations.increment();
+    return new ResponseStatusException(HttpStatus.CONFLICT, "Username " + newUser.getUsername() + " is not available");
+  }
+}
@@ -1,30 +1,196 @@
 package ch.uzh.ifi.hase.soprafs22.controller;
 
+import ch.uzh.ifi.hase.soprafs22.filter.SessionFilter;
 import ch.uzh.ifi.hase.soprafs22.model.User;
 import ch.uzh.ifi.hase.soprafs22.model.UserDTO;
+import ch.uzh.ifi.hase.soprafs22.model.UserImportResult;
+import ch.uzh.ifi.hase.soprafs22.model.UserListVersion;
+import ch.uzh.ifi.hase.soprafs22.model.UserSummary;
+import ch.uzh.ifi.hase.soprafs22.service.SessionStore;
+import ch.uzh.ifi.hase.soprafs22.service.UserEventBroadcaster;
 import ch.uzh.ifi.hase.soprafs22.service.UserService;
-import lombok.AllArgsConstructor;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.*;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.apache.commons.lang3.StringUtils;
+import org.springframework.context.annotation.Profile;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+import org.springframework.web.util.UriUtils;
 
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
 
-@AllArgsConstructor
+@Profile("!reactive")
 @RestController
 @RequestMapping("/users")
 public class UserController {
 
-  private UserService userService;
+  public static final String APPLICATION_NDJSON_VALUE = "application/x-ndjson";
+
+  public static final int DEFAULT_PAGE_SIZE = 100;
+
+  public static final int MAX_PAGE_SIZE = 1000;
+
+  public static final int DEFAULT_SEARCH_LIMIT = 10;
+
+  private static final Set<String> USER_FIELDS = Set.of("id", "username", "creationDate", "loggedIn", "birthday");
+
+  private final UserService userService;
+
+  private final ObjectMapper objectMapper;
+
+  private final SessionStore sessionStore;
+
+  private final UserEventBroadcaster eventBroadcaster;
+
+  private final Counter createdRegistrations;
+
+  private final Counter conflictingRegistrations;
+
+  private final Counter successfulLogins;
+
+  private final Counter failedLogins;
+
+  public UserController(UserService userService, ObjectMapper objectMapper, SessionStore sessionStore,
+                        UserEventBroadcaster eventBroadcaster, MeterRegistry meterRegistry) {
+    this.userService = userService;
+    this.objectMapper = objectMapper;
+    this.sessionStore = sessionStore;
+    this.eventBroadcaster = eventBroadcaster;
+    this.createdRegistrations = meterRegistry.counter("users.registrations", "result", "created");
+    this.conflictingRegistrations = meterRegistry.counter("users.registrations", "result", "conflict");
+    this.successfulLogins = meterRegistry.counter("users.logins", "result", "success");
+    this.failedLogins = meterRegistry.counter("users.logins", "result", "failure");
+  }
 
   /**
-   * Fetch all stored users. Note that the serialized User object does not contain a 'password' field.
-   * @return  list of serialized User objects
+   * Fetch all stored users, or a single page of them when 'after' or 'limit' are given. Pages are ordered by
+   * username, and a 'Link' header with rel="next" points to the following page as long as the page is full.
+   * Responds with status 304 and no body if the list did not change since the given ETag or modification date.
+   * Note that the serialized User object does not contain a 'password' field.
+   * @param after   username of the last user of the previous page, omitted for the first page
+   * @param limit   maximal page size, between 1 and {@value #MAX_PAGE_SIZE}
+   * @param fields  names of the needed fields, all if omitted; the response may contain further fields
+   * @return        list of serialized User objects, or of UserSummary objects if no other fields are needed
+   * @throws ResponseStatusException    with status 400, when the limit is out of range or a field is unknown
    */
   @GetMapping
-  public List<User> getAllUsers() {
-    return userService.getAllUsers();
+  public ResponseEntity<List<?>> getAllUsers(@RequestParam(required = false) String after,
+                                             @RequestParam(required = false) Integer limit,
+                                             @RequestParam(required = false) Set<String> fields,
+                                             WebRequest webRequest) {
+    boolean summaries = isSummary(fields);
+    if (isListNotModified(webRequest))
+      return null;
+    if (after == null && limit == null)
+      return ResponseEntity.ok(summaries ? userService.getAllUserSummaries() : userService.getAllUsers());
+    int pageSize = limit == null ? DEFAULT_PAGE_SIZE : limit;
+    if (pageSize < 1 || pageSize > MAX_PAGE_SIZE)
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Limit must be between 1 and " + MAX_PAGE_SIZE);
+
+    if (summaries)
+      return pageOf(userService.getUserSummariesAfter(after, pageSize), pageSize, UserSummary::getUsername);
+    return pageOf(userService.getUsersAfter(after, pageSize), pageSize, User::getUsername);
+  }
+
+  /**
+   * Fetch many users by ID at once, e.g. the members of a list, instead of one request per user.
+   * @param ids     IDs of the users, at most {@value #MAX_PAGE_SIZE}; unknown IDs are skipped
+   * @param fields  names of the needed fields, all if omitted; the response may contain further fields
+   * @return        list of serialized User objects in the order of the given IDs, each user once, or of
+   *                UserSummary objects if no other fields are needed
+   * @throws ResponseStatusException    with status 400, when too many IDs are given or a field is unknown
+   */
+  @GetMapping(params = "ids")
+  public List<?> getUsersByIds(@RequestParam List<Long> ids, @RequestParam(required = false) Set<String> fields) {
+    boolean summaries = isSummary(fields);
+    if (ids.size() > MAX_PAGE_SIZE)
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Must provide at most " + MAX_PAGE_SIZE + " IDs");
+    List<User> users = userService.getUsersByIds(ids);
+    return summaries ? users.stream().map(UserSummary::of).toList() : users;
+  }
+
+  /**
+   * Same as {@link #getUsersByIds(List, Set)}, for lists of IDs too long for a URL.
+   * @param ids     JSON array of user IDs
+   */
+  @PostMapping("/batch")
+  public List<?> getUsersByIdsBatch(@RequestBody List<Long> ids, @RequestParam(required = false) Set<String> fields) {
+    return getUsersByIds(ids, fields);
+  }
+
+  /**
+   * Search users by username, ignoring case: users whose username starts with the query come first, followed
+   * by users with a similar username, e.g. with a typo.
+   * @param q       part of a username
+   * @param limit   maximal number of results, between 1 and {@value #MAX_PAGE_SIZE}, {@value #DEFAULT_SEARCH_LIMIT} if omitted
+   * @return        list of serialized User objects, best match first
+   * @throws ResponseStatusException    with status 400, when the query is blank or the limit is out of range
+   */
+  @GetMapping("/search")
+  public List<User> searchUsers(@RequestParam String q, @RequestParam(required = false) Integer limit) {
+    if (StringUtils.isBlank(q))
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Must provide a non-empty search query");
+    int resultSize = limit == null ? DEFAULT_SEARCH_LIMIT : limit;
+    if (resultSize < 1 || resultSize > MAX_PAGE_SIZE)
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Limit must be between 1 and " + MAX_PAGE_SIZE);
+    return userService.searchUsers(q.trim(), resultSize);
+  }
+
+  /**
+   * Stream all stored users as newline-delimited JSON, ordered by username. Users are written to the response
+   * as they are read from the database, so memory use does not depend on the number of stored users.
+   * @return  response body writing one serialized User object per line
+   * @see #getAllUsers(String, Integer, Set, WebRequest)   for conditional requests
+   */
+  @GetMapping(produces = APPLICATION_NDJSON_VALUE)
+  public StreamingResponseBody streamAllUsers(WebRequest webRequest) {
+    if (isListNotModified(webRequest))
+      return null;
+    ObjectWriter writer = objectMapper.writerFor(User.class).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    return outputStream -> {
+      try (JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream)) {
+        generator.setRootValueSeparator(null);
+        userService.streamAllUsers(user -> {
+          try {
+            writer.writeValue(generator, user);
+            generator.writeRaw('\n');
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+      }
+    };
+  }
+
+  /**
+   * Subscribe to changes of users as server-sent events, instead of polling {@link #getAllUsers}: 'created',
+   * 'updated' and 'loggedIn' events carry the changed user as a serialized UserSummary. A 'resync' event means
+   * that events were dropped, after which the client should fetch the whole list once, like at the start.
+   * @param lastEventId   ID of the last event received before a reconnect, sent by the EventSource of browsers
+   * @return              emitter of the event stream
+   */
+  @GetMapping(value = "/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+  public SseEmitter streamUserEvents(@RequestHeader(name = "Last-Event-ID", required = false) String lastEventId) {
+    return eventBroadcaster.subscribe(lastEventId != null);
   }
 
   /**
@@ -39,48 +205,125 @@ public class UserController {
   public User createUser(@RequestBody UserDTO newUser) {
     if (StringUtils.isAnyEmpty(newUser.getUsername(), newUser.getPassword()))
       throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Must provide non-empty username and password");
-    if (userService.isExistingUsername(newUser.getUsername()))
+    if (userService.isExistingUsername(newUser.getUsername())) {
+      conflictingRegistrations.increment();
       throw new ResponseStatusException(HttpStatus.CONFLICT, "Username " + newUser.getUsername() + " is not available");
-    return userService.createUser(newUser);
+    }
+    User createdUser = userService.createUser(newUser);
+    createdRegistrations.increment();
+    return createdUser;
+  }
+
+  /**
+   * Register many users at once, given either as a JSON array or as newline-delimited JSON. Users are imported
+   * in chunks, each with its own transaction, so rows of earlier chunks stay imported even if later rows fail.
+   * @param request   request with a body containing DTO objects with the desired credentials
+   * @return          one result per given user, with the status a single registration would have received
+   * @throws ResponseStatusException    with status 400, when the request body is not valid JSON
+   */
+  @PostMapping(value = "/bulk", consumes = {MediaType.APPLICATION_JSON_VALUE, APPLICATION_NDJSON_VALUE})
+  public List<UserImportResult> importUsers(HttpServletRequest request) throws IOException {
+    try (MappingIterator<UserDTO> newUsers = objectMapper.readerFor(UserDTO.class).readValues(request.getInputStream())) {
+      return userService.importUsers(newUsers);
+    } catch (JsonProcessingException | RuntimeJsonMappingException e) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid user import: " + e.getMessage());
+    } catch (RuntimeException e) {
+      // parse errors while iterating are wrapped in an unchecked exception by the MappingIterator
+      if (e.getCause() instanceof JsonProcessingException)
+        throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid user import: " + e.getCause().getMessage());
+      throw e;
+    }
   }
 
   /**
-   * Find an existing User in the database by its unique ID and return it, if exists.
+   * Find an existing User in the database by its unique ID and return it, if exists. Responds with status 304
+   * and no body if the user did not change since the given ETag or modification date.
    * @param userId    ID value to search by
-   * @return          serialized User object with the given ID, if exists
+   * @param fields    names of the needed fields, all if omitted; the response may contain further fields
+   * @return          serialized User object with the given ID, if exists, or a UserSummary if no other fields are needed
    * @throws ResponseStatusException    with status 404, when no user was found for the given ID
+   * @throws ResponseStatusException    with status 400, when a field is unknown
    */
   @GetMapping("/{userId}")
-  public User getUserById(@PathVariable Long userId) {
-    return userService.getUserById(userId)
-            .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "No user found with ID: " + userId));
+  public ResponseEntity<?> getUserById(@PathVariable Long userId, @RequestParam(required = false) Set<String> fields,
+                                       WebRequest webRequest) {
+    boolean summary = isSummary(fields);
+    // users are served from the entity cache, so the summary is taken from the cached entity as well
+    User user = findUserById(userId);
+    if (webRequest.checkNotModified(user.toETag(), lastModifiedOf(user)))
+      return null;
+    return ResponseEntity.ok(summary ? UserSummary.of(user) : user);
   }
 
   /**
    * Update the stored username and/or birthday values of an existing user. Note that empty values are
    * allowed, however an empty username will be ignored while an empty birthday value will be stored.
-   * @param userId        ID value of the existing User to update
-   * @param updatedUser   DTO with the updated username and/or birthday values
-   * @see #getUserById(Long)    for exceptions
+   * Clients can make the update conditional by sending the user's ETag in an 'If-Match' header. Only the user
+   * itself may update its data, authenticated by the session token issued on login.
+   * @param userId          ID value of the existing User to update
+   * @param updatedUser     DTO with the updated username and/or birthday values
+   * @param sessionUserId   ID of the user owning the request's session, null if no valid session token was sent
+   * @param invalidSession  true if the request's session token was unknown or expired, as flagged by the SessionFilter
+   * @param ifMatch         ETags of the user as last seen by the client, or null to update unconditionally
+   * @return                empty response with the new ETag of the user
+   * @throws ResponseStatusException    with status 401, when the request carries no, an invalid or an expired session token
+   * @throws ResponseStatusException    with status 403, when the session belongs to another user
+   * @throws ResponseStatusException    with status 412, when the user does not match any of the given ETags
+   * @throws ResponseStatusException    with status 409, when the user was changed concurrently and no ETag was given
+   * @see #getUserById(Long, Set, WebRequest)    for further exceptions
    */
   @PutMapping("/{userId}")
-  @ResponseStatus(HttpStatus.NO_CONTENT)
-  public void updateUserData(@PathVariable Long userId, @RequestBody UserDTO updatedUser) {
-    User currentUser = getUserById(userId);
-    userService.updateUserData(currentUser, updatedUser);
+  public ResponseEntity<Void> updateUserData(@PathVariable Long userId, @RequestBody UserDTO updatedUser,
+                                             @RequestAttribute(name = SessionFilter.USER_ID_ATTRIBUTE, required = false) Long sessionUserId,
+                                             @RequestAttribute(name = SessionFilter.INVALID_SESSION_ATTRIBUTE, required = false) Boolean invalidSession,
+                                             @RequestHeader(name = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
+    if (Boolean.TRUE.equals(invalidSession))
+      throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Invalid or expired session");
+    if (sessionUserId == null)
+      throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Log in to update a user");
+    if (!sessionUserId.equals(userId))
+      throw new ResponseStatusException(HttpStatus.FORBIDDEN, "Cannot update another user");
+    User currentUser = findUserById(userId);
+    if (ifMatch != null && !matchesETag(ifMatch, currentUser.toETag()))
+      throw new ResponseStatusException(HttpStatus.PRECONDITION_FAILED, "User " + userId + " was changed");
+    try {
+      return ResponseEntity.noContent().eTag(userService.updateUserData(currentUser, updatedUser).toETag()).build();
+    } catch (OptimisticLockingFailureException e) {
+      throw new ResponseStatusException(ifMatch != null ? HttpStatus.PRECONDITION_FAILED : HttpStatus.CONFLICT,
+              e.getMessage());
+    }
   }
 
   /**
    * Check if the given credentials (username and password) exist in the database, and if yes mark
-   * the stored User object as logged in and return it.
+   * the stored User object as logged in and return it, together with a new session token in the
+   * 'Authorization' header. Subsequent requests authenticate by sending this header back.
    * @param user    DTO object containing login credentials
    * @return        serialized User object matching the given credentials, if exists
    * @throws ResponseStatusException    with status 401, when no user was found for the given credentials
    */
   @PostMapping("/login")
-  public User login(@RequestBody UserDTO user) {
-    return userService.getUserByCredentialsAndLogIn(user)
+  public ResponseEntity<User> login(@RequestBody UserDTO user) {
+    Optional<User> loggedInUser = userService.getUserByCredentialsAndLogIn(user);
+    (loggedInUser.isPresent() ? successfulLogins : failedLogins).increment();
+    User found = loggedInUser
             .orElseThrow(() -> new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Invalid username or password"));
+    return ResponseEntity.ok()
+            .header(HttpHeaders.AUTHORIZATION, "Bearer " + sessionStore.create(found.getId()))
+            .body(found);
+  }
+
+  /**
+   * End the session of the request's 'Authorization' header, without any database access.
+   * @param token   session token, as validated by the SessionFilter
+   * @throws ResponseStatusException    with status 401, when the request carries no session token
+   */
+  @PostMapping("/logout")
+  @ResponseStatus(HttpStatus.NO_CONTENT)
+  public void logout(@RequestAttribute(name = SessionFilter.TOKEN_ATTRIBUTE, required = false) String token) {
+    if (token == null)
+      throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "No valid session to log out of");
+    sessionStore.revoke(token);
   }
 
   /**
@@ -100,4 +343,62 @@ public class UserController {
   public boolean isAvailableUsername(@RequestBody UserDTO newUser) {
     return !userService.isExistingUsername(newUser.getUsername());
   }
+
+  /**
+   * Check an 'If-Match' header against the ETag of a user. This deliberately deviates from RFC 7232, which asks
+   * for the strong comparison and so would never match a weak tag: the ETags of users are weak only because their
+   * responses differ in field projection and compression, see {@link User#toETag()}, while the tag itself names
+   * exactly one stored version of the user. Tags are therefore compared ignoring their 'W/' prefix, so clients
+   * can send back the ETag they received, with or without the prefix.
+   */
+  private static boolean matchesETag(String ifMatch, String eTag) {
+    String opaqueTag = StringUtils.removeStart(eTag, "W/");
+    for (String tag : ifMatch.split(",")) {
+      String trimmed = tag.trim();
+      if (trimmed.equals("*") || StringUtils.removeStart(trimmed, "W/").equals(opaqueTag))
+        return true;
+    }
+    return false;
+  }
+
+  private User findUserById(Long userId) {
+    return userService.getUserById(userId)
+            .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "No user found with ID: " + userId));
+  }
+
+  /**
+   * Check if the requested fields are all part of a {@link UserSummary}.
+   * @throws ResponseStatusException    with status 400, when a field is no field of a serialized User object
+   */
+  private static boolean isSummary(Set<String> fields) {
+    if (fields == null || fields.isEmpty())
+      return false;
+    for (String field : fields) {
+      if (!USER_FIELDS.contains(field))
+        throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unknown field: " + field);
+    }
+    return UserSummary.FIELDS.containsAll(fields);
+  }
+
+  private static <T> ResponseEntity<List<?>> pageOf(List<T> page, int pageSize, Function<T, String> usernameOf) {
+    if (page.size() < pageSize)
+      return ResponseEntity.ok(page);
+    // the query of the current request is encoded already; the cursor is encoded completely, as reserved
+    // characters of usernames, like '+' or '&', would otherwise be read differently
+    String cursor = UriUtils.encode(usernameOf.apply(page.get(page.size() - 1)), StandardCharsets.UTF_8);
+    String next = ServletUriComponentsBuilder.fromCurrentRequest()
+            .replaceQueryParam("after", cursor)
+            .replaceQueryParam("limit", pageSize)
+            .build(true).toUriString();
+    return ResponseEntity.ok().header(HttpHeaders.LINK, "<" + next + ">; rel=\"next\"").body(page);
+  }
+
+  private boolean isListNotModified(WebRequest webRequest) {
+    UserListVersion listVersion = userService.getUserListVersion();
+    return webRequest.checkNotModified(listVersion.toETag(), listVersion.getLastModifiedMillis());
+  }
+
+  private static long lastModifiedOf(User user) {
+    return user.getLastModified() == null ? -1 : user.getLastModified().getTime();
+  }
 }
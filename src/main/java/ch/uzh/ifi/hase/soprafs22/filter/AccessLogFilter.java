@@ -0,0 +1,123 @@
+package ch.uzh.ifi.hase.soprafs22.filter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Writes one structured line per request to the 'access' logger, containing the route template, status and
+ * latency. Request bodies are never logged, and values of sensitive query parameters are redacted. Successful
+ * requests are sampled with the configured rate, while server errors and requests slower than the configured
+ * threshold are always logged. The 'access' logger
+ * is backed by a non-blocking async appender (see logback-spring.xml), so a slow disk never holds up requests.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class AccessLogFilter extends OncePerRequestFilter {
+
+  private static final Logger accessLog = LoggerFactory.getLogger("access");
+
+  private static final Set<String> SENSITIVE_PARAMETERS = Set.of("password", "token", "secret");
+
+  private static final Pattern QUERY_PARAMETER = Pattern.compile("([^&=]+)=([^&]*)");
+
+  private final double sampleRate;
+
+  private final long slowThresholdNanos;
+
+  public AccessLogFilter(@Value("${users.access-log.sample-rate:1.0}") double sampleRate,
+                         @Value("${users.access-log.slow-threshold:1s}") Duration slowThreshold) {
+    this.sampleRate = sampleRate;
+    this.slowThresholdNanos = slowThreshold.toNanos();
+  }
+
+  @Override
+  protected void doFilterInternal(@NonNull HttpServletRequest request, @NonNull HttpServletResponse response,
+                                  @NonNull FilterChain filterChain) throws ServletException, IOException {
+    long start = System.nanoTime();
+    try {
+      filterChain.doFilter(request, response);
+    } finally {
+      if (request.isAsyncStarted())
+        request.getAsyncContext().addListener(new AccessLogAsyncListener(request, response, start));
+      else
+        log(request, response, start);
+    }
+  }
+
+  private void log(HttpServletRequest request, HttpServletResponse response, long start) {
+    int status = response.getStatus();
+    long latency = System.nanoTime() - start;
+    if (status < 500 && latency < slowThresholdNanos && ThreadLocalRandom.current().nextDouble() >= sampleRate)
+      return;
+    if (!accessLog.isInfoEnabled())
+      return;
+    Object route = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+    accessLog.info("method={} route={} path={} query={} status={} latency_us={} client={}",
+            request.getMethod(), route == null ? "-" : route, request.getRequestURI(),
+            redactQuery(request.getQueryString()), status, latency / 1000, request.getRemoteAddr());
+  }
+
+  static String redactQuery(String query) {
+    if (query == null || query.isEmpty())
+      return "-";
+    Matcher matcher = QUERY_PARAMETER.matcher(query);
+    StringBuilder redacted = new StringBuilder();
+    while (matcher.find()) {
+      boolean sensitive = SENSITIVE_PARAMETERS.contains(matcher.group(1).toLowerCase());
+      matcher.appendReplacement(redacted, sensitive ? "$1=***" : "$0");
+    }
+    return matcher.appendTail(redacted).toString();
+  }
+
+  private class AccessLogAsyncListener implements AsyncListener {
+    private final HttpServletRequest request;
+    private final HttpServletResponse response;
+    private final long start;
+
+    AccessLogAsyncListener(HttpServletRequest request, HttpServletResponse response, long start) {
+      this.request = request;
+      this.response = response;
+      this.start = start;
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+      log(request, response, start);
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+      // logged on completion
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+      // logged on completion
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+      // the listener is only registered once async processing has already started
+    }
+  }
+}
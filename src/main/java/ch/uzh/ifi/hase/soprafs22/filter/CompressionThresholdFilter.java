@@ -0,0 +1,130 @@
+package ch.uzh.ifi.hase.soprafs22.filter;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeType;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Makes Tomcat apply 'server.compression.min-response-size' to JSON responses. Tomcat only leaves responses
+ * uncompressed whose length is known when they are committed, but the JSON converters flush the output stream
+ * right after writing, which commits the response without a length. Flushes of responses of a compressed type are
+ * therefore ignored until the minimal size has been written: smaller responses stay in the response buffer until
+ * the request completes, and are sent uncompressed with their length. Larger responses, and responses of other
+ * types like server-sent events, are flushed as before.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 3)
+public class CompressionThresholdFilter extends OncePerRequestFilter {
+
+  private final boolean enabled;
+
+  private final List<MimeType> mimeTypes;
+
+  private final long minResponseSize;
+
+  public CompressionThresholdFilter(@Value("${server.compression.enabled:false}") boolean enabled,
+                                    @Value("${server.compression.mime-types:application/json}") String[] mimeTypes,
+                                    @Value("${server.compression.min-response-size:2KB}") DataSize minResponseSize) {
+    this.enabled = enabled;
+    this.mimeTypes = Arrays.stream(mimeTypes).map(MimeType::valueOf).toList();
+    this.minResponseSize = minResponseSize.toBytes();
+  }
+
+  @Override
+  protected void doFilterInternal(@NonNull HttpServletRequest request, @NonNull HttpServletResponse response,
+                                  @NonNull FilterChain filterChain) throws ServletException, IOException {
+    filterChain.doFilter(request, enabled ? new ThresholdResponse(response) : response);
+  }
+
+  private boolean isCompressed(String contentType) {
+    if (contentType == null)
+      return false;
+    MimeType mimeType = MimeType.valueOf(contentType);
+    return mimeTypes.stream().anyMatch(compressed -> compressed.equalsTypeAndSubtype(mimeType));
+  }
+
+  private class ThresholdResponse extends HttpServletResponseWrapper {
+    private ThresholdOutputStream outputStream;
+
+    ThresholdResponse(HttpServletResponse response) {
+      super(response);
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+      if (outputStream == null)
+        outputStream = new ThresholdOutputStream(super.getOutputStream(), this);
+      return outputStream;
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+      if (outputStream == null || !outputStream.isBelowThreshold())
+        super.flushBuffer();
+    }
+  }
+
+  private class ThresholdOutputStream extends ServletOutputStream {
+    private final ServletOutputStream delegate;
+    private final HttpServletResponse response;
+    private long written;
+
+    ThresholdOutputStream(ServletOutputStream delegate, HttpServletResponse response) {
+      this.delegate = delegate;
+      this.response = response;
+    }
+
+    boolean isBelowThreshold() {
+      return written < minResponseSize && isCompressed(response.getContentType());
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      delegate.write(b);
+      written++;
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+      delegate.write(b, off, len);
+      written += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (!isBelowThreshold())
+        delegate.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      delegate.close();
+    }
+
+    @Override
+    public boolean isReady() {
+      return delegate.isReady();
+    }
+
+    @Override
+    public void setWriteListener(WriteListener writeListener) {
+      delegate.setWriteListener(writeListener);
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package ch.uzh.ifi.hase.soprafs22.filter;
+
+import ch.uzh.ifi.hase.soprafs22.service.ConcurrencyLimiter;
+import ch.uzh.ifi.hase.soprafs22.service.RateLimiter;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.UrlPathHelper;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Guards the rate limited routes (login, registrations and validate by default, see application.yml) before
+ * they reach the database. Clients are identified by their session's user, if the {@link SessionFilter} found one,
+ * otherwise by their IP address (behind a proxy, set 'server.forward-headers-strategy'). Clients exceeding their
+ * limit are rejected with status 429, and requests above the global concurrency limit with status 503, both
+ * with a 'Retry-After' header.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 2)
+public class RateLimitFilter extends OncePerRequestFilter {
+
+  private static final int SHED_RETRY_SECONDS = 1;
+
+  private static final UrlPathHelper PATH_HELPER = new UrlPathHelper();
+
+  private final RateLimiter rateLimiter;
+
+  private final ConcurrencyLimiter concurrencyLimiter;
+
+  public RateLimitFilter(RateLimiter rateLimiter, ConcurrencyLimiter concurrencyLimiter) {
+    this.rateLimiter = rateLimiter;
+    this.concurrencyLimiter = concurrencyLimiter;
+  }
+
+  @Override
+  protected void doFilterInternal(@NonNull HttpServletRequest request, @NonNull HttpServletResponse response,
+                                  @NonNull FilterChain filterChain) throws ServletException, IOException {
+    String route = routeOf(request);
+    if (!rateLimiter.isLimited(request.getMethod(), route)) {
+      filterChain.doFilter(request, response);
+      return;
+    }
+    Object userId = request.getAttribute(SessionFilter.USER_ID_ATTRIBUTE);
+    String client = userId == null ? "ip:" + request.getRemoteAddr() : "user:" + userId;
+    long waitNanos = rateLimiter.tryAcquire(route, client);
+    if (waitNanos > 0) {
+      reject(response, HttpStatus.TOO_MANY_REQUESTS, TimeUnit.NANOSECONDS.toSeconds(waitNanos - 1) + 1);
+      return;
+    }
+    if (!concurrencyLimiter.tryAcquire()) {
+      reject(response, HttpStatus.SERVICE_UNAVAILABLE, SHED_RETRY_SECONDS);
+      return;
+    }
+    try {
+      filterChain.doFilter(request, response);
+    } finally {
+      concurrencyLimiter.release();
+    }
+  }
+
+  /**
+   * Normalize the path of a request the same way request mappings are matched: decoded, without path parameters
+   * (';jsessionid=...'), duplicate or trailing slashes, so that no variant of a limited route bypasses its limit.
+   */
+  static String routeOf(HttpServletRequest request) {
+    String path = PATH_HELPER.getPathWithinApplication(request);
+    int end = path.length();
+    while (end > 1 && path.charAt(end - 1) == '/')
+      end--;
+    return path.substring(0, end);
+  }
+
+  private static void reject(HttpServletResponse response, HttpStatus status, long retryAfterSeconds) throws IOException {
+    response.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(retryAfterSeconds));
+    response.sendError(status.value(), status == HttpStatus.TOO_MANY_REQUESTS
+            ? "Too many requests, retry later" : "Server is overloaded, retry later");
+  }
+}
@@ -0,0 +1,63 @@
+package ch.uzh.ifi.hase.soprafs22.filter;
+
+import ch.uzh.ifi.hase.soprafs22.service.SessionStore;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Optional;
+
+/**
+ * Checks the session token of requests with an 'Authorization: Bearer' header against the {@link SessionStore},
+ * without touching the database. Valid tokens expose the ID of their user to handlers as the request attribute
+ * {@value #USER_ID_ATTRIBUTE}. Requests with an unknown or expired token are passed on as anonymous requests, only
+ * flagged with the request attribute {@value #INVALID_SESSION_ATTRIBUTE}: public routes like login or registration
+ * keep working with a stale token, while handlers that require a session reject the request themselves, so that the
+ * rejection goes through the regular MVC error handling and carries the CORS headers a browser needs to read it.
+ * Requests without a token are passed on unchanged, so they are authorized by the handlers themselves.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 1)
+public class SessionFilter extends OncePerRequestFilter {
+
+  public static final String USER_ID_ATTRIBUTE = "users.session.userId";
+
+  public static final String TOKEN_ATTRIBUTE = "users.session.token";
+
+  public static final String INVALID_SESSION_ATTRIBUTE = "users.session.invalid";
+
+  private static final String BEARER_PREFIX = "Bearer ";
+
+  private final SessionStore sessionStore;
+
+  public SessionFilter(SessionStore sessionStore) {
+    this.sessionStore = sessionStore;
+  }
+
+  @Override
+  protected void doFilterInternal(@NonNull HttpServletRequest request, @NonNull HttpServletResponse response,
+                                  @NonNull FilterChain filterChain) throws ServletException, IOException {
+    String header = request.getHeader(HttpHeaders.AUTHORIZATION);
+    if (header == null || !header.startsWith(BEARER_PREFIX)) {
+      filterChain.doFilter(request, response);
+      return;
+    }
+    String token = header.substring(BEARER_PREFIX.length()).trim();
+    Optional<Long> userId = sessionStore.authenticate(token);
+    if (userId.isPresent()) {
+      request.setAttribute(USER_ID_ATTRIBUTE, userId.get());
+      request.setAttribute(TOKEN_ATTRIBUTE, token);
+    } else {
+      request.setAttribute(INVALID_SESSION_ATTRIBUTE, Boolean.TRUE);
+    }
+    filterChain.doFilter(request, response);
+  }
+}
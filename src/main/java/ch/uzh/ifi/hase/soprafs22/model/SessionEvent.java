@@ -0,0 +1,17 @@
+package ch.uzh.ifi.hase.soprafs22.model;
+
+import lombok.Value;
+
+/**
+ * Login session started or ended on this node, published by the SessionStore. The session is identified by the
+ * hash of its token, see SessionStore.hashToken(String), so the token itself never leaves the node.
+ */
+@Value
+public class SessionEvent {
+
+  String tokenHash;
+
+  Long userId;
+
+  boolean revoked;
+}
@@ -4,6 +4,9 @@ import com.fasterxml.jackson.annotation.JsonFormat;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.*;
 import org.hibernate.annotations.CreationTimestamp;
+import org.hibernate.annotations.DynamicUpdate;
+import org.hibernate.annotations.OptimisticLock;
+import org.hibernate.annotations.UpdateTimestamp;
 
 import javax.persistence.*;
 import java.util.Date;
@@ -11,16 +14,24 @@ import java.util.Date;
 @Getter
 @Setter
 @Entity
+// 'user' is a reserved word in most databases; the second annotation names the table for the R2DBC mapping
+@Table(name = "users")
+@org.springframework.data.relational.core.mapping.Table("users")
+// only changed columns are written, e.g. just the password when it is rehashed on login
+@DynamicUpdate
 public class User {
 
   @Id
-  @GeneratedValue
+  @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "user_seq")
+  @SequenceGenerator(name = "user_seq", sequenceName = "user_seq", allocationSize = 50)
   private Long id;
 
   @Column(nullable = false, unique = true)
   private String username;
 
+  // password rehashes and presence changes happen on every login, concurrent logins must not conflict
   @JsonIgnore
+  @OptimisticLock(excluded = true)
   @Column(nullable = false)
   private String password;
 
@@ -29,10 +40,41 @@ public class User {
   @Temporal(TemporalType.DATE)
   private Date creationDate;
 
-  @Column(nullable = false)
+  // only inserted by JPA, later changes are written behind by the PresenceBuffer
+  @OptimisticLock(excluded = true)
+  @Column(nullable = false, updatable = false)
   private boolean loggedIn = true;
 
   @Temporal(TemporalType.DATE)
   private Date birthday;
 
+  @JsonIgnore
+  @Version
+  private Long version;
+
+  @JsonIgnore
+  @UpdateTimestamp
+  @Temporal(TemporalType.TIMESTAMP)
+  private Date lastModified;
+
+  /**
+   * @return  detached copy of this user with the same column values, which can be changed independently
+   */
+  public User copy() {
+    User copy = new User();
+    copy.setId(id);
+    copy.setUsername(username);
+    copy.setPassword(password);
+    copy.setCreationDate(creationDate);
+    copy.setLoggedIn(loggedIn);
+    copy.setBirthday(birthday);
+    copy.setVersion(version);
+    copy.setLastModified(lastModified);
+    return copy;
+  }
+
+  public String toETag() {
+    // the presence flag is not versioned, see above; weak for the same reasons as UserListVersion.toETag()
+    return "W/\"" + id + "-" + (version == null ? 0 : version) + "-" + (loggedIn ? 1 : 0) + "\"";
+  }
 }
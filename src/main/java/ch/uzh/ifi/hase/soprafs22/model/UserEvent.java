@@ -0,0 +1,66 @@
+package ch.uzh.ifi.hase.soprafs22.model;
+
+import lombok.Value;
+
+/**
+ * Change of a user, published by the UserService once it is stored and pushed to the subscribers of
+ * 'GET /users/events', see UserEventBroadcaster. Changes made on other nodes of a cluster are published
+ * again locally as remote events, see ClusterSync.
+ */
+@Value
+public class UserEvent {
+
+  public enum Type {
+    CREATED("created"),
+    UPDATED("updated"),
+    LOGGED_IN("loggedIn");
+
+    private final String eventName;
+
+    Type(String eventName) {
+      this.eventName = eventName;
+    }
+
+    /**
+     * @return  name of the server-sent event
+     */
+    public String getEventName() {
+      return eventName;
+    }
+  }
+
+  Type type;
+
+  UserSummary user;
+
+  /**
+   * Version of the stored user after the change, see {@link User#getVersion()}.
+   */
+  long version;
+
+  /**
+   * Username before the change, if the change renamed the user, otherwise null.
+   */
+  String previousUsername;
+
+  /**
+   * True if the change was made on another node.
+   */
+  boolean remote;
+
+  public static UserEvent of(Type type, User user) {
+    return new UserEvent(type, UserSummary.of(user), versionOf(user), null, false);
+  }
+
+  /**
+   * @param previousUsername    username before the update, ignored if unchanged
+   */
+  public static UserEvent updated(User user, String previousUsername) {
+    String renamedFrom = user.getUsername().equals(previousUsername) ? null : previousUsername;
+    return new UserEvent(Type.UPDATED, UserSummary.of(user), versionOf(user), renamedFrom, false);
+  }
+
+  private static long versionOf(User user) {
+    return user.getVersion() == null ? 0 : user.getVersion();
+  }
+}
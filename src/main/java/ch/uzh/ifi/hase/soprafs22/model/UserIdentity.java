@@ -0,0 +1,11 @@
+package ch.uzh.ifi.hase.soprafs22.model;
+
+/**
+ * Projection of a stored user onto its ID and username, for queries that do not need the whole entity.
+ */
+public interface UserIdentity {
+
+  Long getId();
+
+  String getUsername();
+}
@@ -0,0 +1,21 @@
+package ch.uzh.ifi.hase.soprafs22.model;
+
+import lombok.Value;
+
+/**
+ * Outcome of importing a single row of a bulk user import. The status mirrors the HTTP status that a single
+ * 'POST /users' request with the same content would have received.
+ */
+@Value
+public class UserImportResult {
+
+  int row;
+
+  String username;
+
+  Long id;
+
+  int status;
+
+  String message;
+}
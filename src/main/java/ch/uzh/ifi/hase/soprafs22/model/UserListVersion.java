@@ -0,0 +1,48 @@
+package ch.uzh.ifi.hase.soprafs22.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Value;
+import lombok.With;
+
+import java.util.Date;
+
+/**
+ * Cheap fingerprint of the whole user table: any insert changes the count, any update increments a version
+ * and moves the latest modification date, so two equal fingerprints (practically) mean an unchanged list.
+ * Presence changes are not versioned and written with a delay, so the time of the latest buffered one is
+ * included. It is written as the modification date of the row, so the fingerprint stays the same once the change
+ * is written, on every node and after a restart.
+ */
+@Value
+@AllArgsConstructor
+public class UserListVersion {
+
+  Long count;
+
+  Long versionSum;
+
+  Date lastModified;
+
+  @With
+  long latestPresenceStamp;
+
+  public UserListVersion(Long count, Long versionSum, Date lastModified) {
+    this(count, versionSum, lastModified, -1);
+  }
+
+  /**
+   * Weak ETag, as the fingerprint identifies the content but not the bytes of a response, which differ e.g. by
+   * field projection or compression. Tomcat does not compress responses with a strong ETag.
+   */
+  public String toETag() {
+    return "W/\"" + count + "-" + versionSum + "-" + getLastModifiedMillis() + "\"";
+  }
+
+  /**
+   * @return  time of the latest change, including buffered presence changes, in milliseconds since the epoch,
+   *          or -1 if the list is empty
+   */
+  public long getLastModifiedMillis() {
+    return Math.max(lastModified == null ? -1 : lastModified.getTime(), latestPresenceStamp);
+  }
+}
@@ -0,0 +1,30 @@
+package ch.uzh.ifi.hase.soprafs22.model;
+
+import lombok.Value;
+import lombok.With;
+
+import java.util.Set;
+
+/**
+ * Reduced view of a user for list responses. It is selected directly by the queries of the repository, so
+ * only the needed columns are read and no managed entities are created.
+ */
+@Value
+public class UserSummary {
+
+  /**
+   * Names of the serialized fields, matching the names of the same fields of a serialized {@link User}.
+   */
+  public static final Set<String> FIELDS = Set.of("id", "username", "loggedIn");
+
+  Long id;
+
+  String username;
+
+  @With
+  boolean loggedIn;
+
+  public static UserSummary of(User user) {
+    return new UserSummary(user.getId(), user.getUsername(), user.isLoggedIn());
+  }
+}
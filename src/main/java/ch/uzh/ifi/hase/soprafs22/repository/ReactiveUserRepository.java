@@ -0,0 +1,95 @@
+package ch.uzh.ifi.hase.soprafs22.repository;
+
+import ch.uzh.ifi.hase.soprafs22.model.User;
+import lombok.AllArgsConstructor;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.r2dbc.core.R2dbcEntityTemplate;
+import org.springframework.data.relational.core.query.Query;
+import org.springframework.data.relational.core.query.Update;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Date;
+
+import static org.springframework.data.relational.core.query.Criteria.where;
+import static org.springframework.data.relational.core.query.Query.query;
+
+/**
+ * Non-blocking counterpart of {@link UserRepository} on R2DBC, used by the 'reactive' profile. It maps the JPA
+ * entity {@link User} onto the same table, so the version and presence semantics of the entity are kept by hand
+ * in the updates below. It is implemented on the entity template instead of as a derived repository interface,
+ * as Spring Data JPA would claim any repository interface for the entity as well.
+ */
+@Profile("reactive")
+@AllArgsConstructor
+@Repository
+public class ReactiveUserRepository {
+
+  private R2dbcEntityTemplate entityTemplate;
+
+  public Mono<User> findById(Long id) {
+    return entityTemplate.selectOne(query(where("id").is(id)), User.class);
+  }
+
+  public Mono<User> findByUsername(String username) {
+    return entityTemplate.selectOne(query(where("username").is(username)), User.class);
+  }
+
+  public Mono<Boolean> existsByUsername(String username) {
+    return entityTemplate.exists(query(where("username").is(username)), User.class);
+  }
+
+  public Flux<User> findAll(Sort sort) {
+    return entityTemplate.select(Query.empty().sort(sort), User.class);
+  }
+
+  public Flux<User> findAllBy(Pageable pageable) {
+    return entityTemplate.select(Query.empty().with(pageable), User.class);
+  }
+
+  public Flux<User> findByUsernameGreaterThan(String username, Pageable pageable) {
+    return entityTemplate.select(query(where("username").greaterThan(username)).with(pageable), User.class);
+  }
+
+  /**
+   * Insert a new user with a fresh ID from the sequence shared with the JPA id generator. The sequence value is
+   * used as is, which skips the block of IDs JPA would derive from it, so both stacks never hand out the same ID.
+   * @param user    user without an ID
+   * @return        the inserted user
+   */
+  public Mono<User> insert(User user) {
+    return entityTemplate.getDatabaseClient().sql("SELECT NEXTVAL('user_seq')")
+            .map(row -> row.get(0, Long.class))
+            .one()
+            .flatMap(id -> {
+              user.setId(id);
+              return entityTemplate.insert(user);
+            });
+  }
+
+  /**
+   * Mark a user as logged in and store the given password hash, without incrementing the version.
+   * @return  number of updated rows
+   */
+  public Mono<Integer> logIn(Long id, String password) {
+    return entityTemplate.update(query(where("id").is(id)),
+            Update.update("loggedIn", true).set("password", password).set("lastModified", new Date()), User.class);
+  }
+
+  /**
+   * Store the editable fields of a user if it is still at its current version, incrementing the version.
+   * @param user    user with updated fields
+   * @return        number of updated rows, 0 if the user was changed or deleted concurrently
+   */
+  public Mono<Integer> update(User user) {
+    return entityTemplate.update(query(where("id").is(user.getId()).and("version").is(user.getVersion())),
+            Update.update("username", user.getUsername())
+                    .set("birthday", user.getBirthday())
+                    .set("loggedIn", user.isLoggedIn())
+                    .set("version", user.getVersion() + 1)
+                    .set("lastModified", new Date()), User.class);
+  }
+}
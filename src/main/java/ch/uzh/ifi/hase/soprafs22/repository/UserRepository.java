@@ -1,22 +1,99 @@
 package ch.uzh.ifi.hase.soprafs22.repository;
 
 import ch.uzh.ifi.hase.soprafs22.model.User;
+import ch.uzh.ifi.hase.soprafs22.model.UserIdentity;
+import ch.uzh.ifi.hase.soprafs22.model.UserListVersion;
+import ch.uzh.ifi.hase.soprafs22.model.UserSummary;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.persistence.QueryHint;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
+import static org.hibernate.jpa.QueryHints.HINT_READONLY;
 
 public interface UserRepository extends JpaRepository<User, Long> {
 
   boolean existsByUsername(String username);
 
-  Optional<User> findByUsernameAndPassword(String username, String password);
+  Optional<User> findByUsername(String username);
+
+  @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "500"))
+  @Query("SELECT u.username FROM User u")
+  Stream<String> streamAllUsernames();
+
+  @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "500"))
+  @Query("SELECT u.id AS id, u.username AS username FROM User u")
+  Stream<UserIdentity> streamAllIdentities();
+
+  List<UserIdentity> findByUsernameStartingWithIgnoreCaseOrderByUsername(String username, Pageable pageable);
+
+  @Query("SELECT u.username FROM User u WHERE u.username IN :usernames")
+  Set<String> findExistingUsernames(Collection<String> usernames);
+
+  @Query("SELECT new ch.uzh.ifi.hase.soprafs22.model.UserListVersion(COUNT(u), COALESCE(SUM(u.version), 0), "
+          + "MAX(u.lastModified)) FROM User u")
+  UserListVersion getListVersion();
+
+  @Override
+  @QueryHints(@QueryHint(name = HINT_READONLY, value = "true"))
+  List<User> findAll(Sort sort);
+
+  @Override
+  @QueryHints(@QueryHint(name = HINT_READONLY, value = "true"))
+  List<User> findAllById(Iterable<Long> ids);
+
+  @QueryHints(@QueryHint(name = HINT_READONLY, value = "true"))
+  List<User> findAllBy(Pageable pageable);
+
+  @QueryHints(@QueryHint(name = HINT_READONLY, value = "true"))
+  List<User> findByUsernameGreaterThan(String username, Pageable pageable);
+
+  @Query("SELECT new ch.uzh.ifi.hase.soprafs22.model.UserSummary(u.id, u.username, u.loggedIn) FROM User u "
+          + "ORDER BY u.username")
+  List<UserSummary> findAllSummaries();
+
+  @Query("SELECT new ch.uzh.ifi.hase.soprafs22.model.UserSummary(u.id, u.username, u.loggedIn) FROM User u "
+          + "ORDER BY u.username")
+  List<UserSummary> findSummaries(Pageable pageable);
+
+  @Query("SELECT new ch.uzh.ifi.hase.soprafs22.model.UserSummary(u.id, u.username, u.loggedIn) FROM User u "
+          + "WHERE u.username > :username ORDER BY u.username")
+  List<UserSummary> findSummariesByUsernameGreaterThan(String username, Pageable pageable);
+
+  @QueryHints({@QueryHint(name = HINT_FETCH_SIZE, value = "500"), @QueryHint(name = HINT_READONLY, value = "true")})
+  Stream<User> streamAllByOrderByUsername();
+
+  /**
+   * Write the username and birthday of a user and increment its version, but only if the stored user still has
+   * the given version. No other columns are written and the user is not loaded before.
+   * @return  number of updated rows, 0 if the user was changed or deleted concurrently
+   */
+  @Transactional
+  @Modifying(flushAutomatically = true, clearAutomatically = true)
+  @Query("UPDATE User u SET u.username = :username, u.birthday = :birthday, u.lastModified = :lastModified, "
+          + "u.version = u.version + 1 WHERE u.id = :id AND u.version = :version")
+  int updateData(Long id, Long version, String username, Date birthday, Date lastModified);
 
+  /**
+   * Replace the password hash of a user, but only if it still is the given one. The version is not incremented,
+   * as the password is excluded from optimistic locking, see {@link User}.
+   * @return  number of updated rows, 0 if the hash was replaced concurrently
+   */
   @Transactional
-  @Modifying(clearAutomatically = true, flushAutomatically = true)
-  @Query("UPDATE User SET loggedIn = true WHERE username = :username AND password = :password")
-  void findByUsernameAndPasswordAndLogIn(String username, String password);
+  @Modifying
+  @Query("UPDATE User u SET u.password = :password WHERE u.id = :id AND u.password = :previousPassword")
+  int updatePassword(Long id, String previousPassword, String password);
 
 }
@@ -0,0 +1,102 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import ch.uzh.ifi.hase.soprafs22.config.RateLimitProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Global limit of concurrent requests to the rate limited routes, which adapts to the database: while the mean
+ * latency of repository calls since the last adjustment is above the threshold, the limit is cut by a quarter,
+ * otherwise it grows by one, between the configured bounds. Requests above the limit are shed instead of
+ * queueing up behind a slow database.
+ * <p>
+ * Repository latencies are read from Spring Data's 'spring.data.repository.invocations' timers, which count
+ * cumulatively in the Prometheus registry.
+ */
+@Slf4j
+@Component
+public class ConcurrencyLimiter {
+
+  static final String REPOSITORY_TIMER = "spring.data.repository.invocations";
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  private final AtomicInteger limit;
+
+  private final int minConcurrency;
+
+  private final int maxConcurrency;
+
+  private final long latencyThresholdNanos;
+
+  private final MeterRegistry meterRegistry;
+
+  private final Counter shed;
+
+  private long lastCount;
+
+  private double lastTotalNanos;
+
+  public ConcurrencyLimiter(RateLimitProperties properties, MeterRegistry meterRegistry) {
+    this.minConcurrency = properties.getMinConcurrency();
+    this.maxConcurrency = properties.getMaxConcurrency();
+    this.latencyThresholdNanos = properties.getLatencyThreshold().toNanos();
+    this.limit = new AtomicInteger(maxConcurrency);
+    this.meterRegistry = meterRegistry;
+    this.shed = meterRegistry.counter("users.rate-limit.shed");
+    meterRegistry.gauge("users.rate-limit.concurrency", limit, AtomicInteger::get);
+  }
+
+  /**
+   * @return  true if the request is admitted, in which case {@link #release()} must be called once it completed
+   */
+  public boolean tryAcquire() {
+    while (true) {
+      int current = inFlight.get();
+      if (current >= limit.get()) {
+        shed.increment();
+        return false;
+      }
+      if (inFlight.compareAndSet(current, current + 1))
+        return true;
+    }
+  }
+
+  public void release() {
+    inFlight.decrementAndGet();
+  }
+
+  public int getLimit() {
+    return limit.get();
+  }
+
+  @Scheduled(fixedDelayString = "${users.rate-limit.adjust-interval:1000}")
+  public synchronized void adjust() {
+    long count = 0;
+    double totalNanos = 0;
+    for (Timer timer : meterRegistry.find(REPOSITORY_TIMER).timers()) {
+      count += timer.count();
+      totalNanos += timer.totalTime(TimeUnit.NANOSECONDS);
+    }
+    long calls = count - lastCount;
+    double meanNanos = calls == 0 ? 0 : (totalNanos - lastTotalNanos) / calls;
+    lastCount = count;
+    lastTotalNanos = totalNanos;
+
+    int current = limit.get();
+    int updated = meanNanos > latencyThresholdNanos
+            ? Math.max(minConcurrency, current - Math.max(1, current / 4))
+            : Math.min(maxConcurrency, current + 1);
+    if (updated != current) {
+      limit.set(updated);
+      log.debug("Concurrency limit changed to {} at a mean repository latency of {} us", updated, (long) meanNanos / 1000);
+    }
+  }
+}
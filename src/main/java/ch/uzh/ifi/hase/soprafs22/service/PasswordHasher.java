@@ -0,0 +1,230 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Hashes and verifies passwords with BCrypt on a dedicated, bounded thread pool sized to the number of cores,
+ * so that the CPU cost of credential checks is capped instead of competing with every request thread. Work
+ * beyond the queue capacity is rejected right away with a {@link HashingRejectedException}.
+ * <p>
+ * Bulk hashing may only take a limited number of slots of the pool and its queue at once, so that logins and
+ * registrations always find capacity, however large an import is.
+ */
+@Slf4j
+@Component
+public class PasswordHasher {
+
+  private static final String BCRYPT_PREFIX = "$2a$";
+
+  private final int strength;
+
+  private final long timeoutMillis;
+
+  private final BCryptPasswordEncoder encoder;
+
+  private final ThreadPoolExecutor executor;
+
+  private final Semaphore bulkPermits;
+
+  private final Timer hashTimer;
+
+  private final Timer verifyTimer;
+
+  public PasswordHasher(@Value("${users.password.bcrypt-strength:10}") int strength,
+                        @Value("${users.password.hashing-threads:0}") int threads,
+                        @Value("${users.password.bulk-threads:0}") int bulkThreads,
+                        @Value("${users.password.queue-capacity:1000}") int queueCapacity,
+                        @Value("${users.password.timeout-millis:5000}") long timeoutMillis,
+                        MeterRegistry meterRegistry) {
+    int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    this.strength = strength;
+    this.timeoutMillis = timeoutMillis;
+    this.encoder = new BCryptPasswordEncoder(strength);
+    this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueCapacity), new HashingThreadFactory(), new ThreadPoolExecutor.AbortPolicy());
+    this.bulkPermits = new Semaphore(bulkThreads > 0 ? bulkThreads : Math.max(1, poolSize / 2));
+    this.hashTimer = Timer.builder("users.password.hashing").tag("operation", "hash")
+            .publishPercentiles(0.5, 0.99).register(meterRegistry);
+    this.verifyTimer = Timer.builder("users.password.hashing").tag("operation", "verify")
+            .publishPercentiles(0.5, 0.99).register(meterRegistry);
+    meterRegistry.gauge("users.password.hashing.queue", executor, pool -> pool.getQueue().size());
+    meterRegistry.gauge("users.password.hashing.active", executor, ThreadPoolExecutor::getActiveCount);
+  }
+
+  public String hash(String rawPassword) {
+    return execute(() -> hashTimer.record(() -> encoder.encode(rawPassword)));
+  }
+
+  public boolean matches(String rawPassword, String encodedPassword) {
+    if (rawPassword == null || encodedPassword == null)
+      return false;
+    return execute(() -> verifyTimer.record(() -> encoder.matches(rawPassword, encodedPassword)));
+  }
+
+  /**
+   * Asynchronous variant of {@link #hash(String)} for non-blocking callers.
+   * @return  future completed with the hash, or with a {@link HashingRejectedException}
+   */
+  public CompletableFuture<String> hashAsync(String rawPassword) {
+    return executeAsync(() -> hashTimer.record(() -> encoder.encode(rawPassword)));
+  }
+
+  /**
+   * Asynchronous variant of {@link #matches(String, String)} for non-blocking callers.
+   * @return  future completed with the result of the check, or with a {@link HashingRejectedException}
+   */
+  public CompletableFuture<Boolean> matchesAsync(String rawPassword, String encodedPassword) {
+    if (rawPassword == null || encodedPassword == null)
+      return CompletableFuture.completedFuture(false);
+    return executeAsync(() -> verifyTimer.record(() -> encoder.matches(rawPassword, encodedPassword)));
+  }
+
+  /**
+   * Check if a stored hash was created with a different cost than the configured one, meaning that it should
+   * be replaced by a fresh hash the next time the raw password is known (i.e. on the next successful login).
+   * @param encodedPassword   stored BCrypt hash
+   * @return                  true if the hash should be recomputed, false otherwise
+   */
+  public boolean needsRehash(String encodedPassword) {
+    if (encodedPassword == null || !encodedPassword.startsWith(BCRYPT_PREFIX))
+      return true;
+    try {
+      return Integer.parseInt(encodedPassword.substring(4, 6)) != strength;
+    } catch (NumberFormatException | IndexOutOfBoundsException e) {
+      return true;
+    }
+  }
+
+  /**
+   * Hash many passwords in parallel on the hashing pool, e.g. for a bulk import. Only as many passwords as there
+   * are bulk permits are queued or hashed at once, the next one is submitted when one of them completes.
+   * @param rawPasswords    passwords to hash
+   * @return                hashes in the same order as the given passwords
+   * @throws HashingRejectedException   when the queue is full, or hashing did not complete in time
+   */
+  public List<String> hashAll(List<String> rawPasswords) {
+    List<Future<String>> futures = new ArrayList<>(rawPasswords.size());
+    try {
+      for (String rawPassword : rawPasswords)
+        futures.add(submitBulk(() -> hashTimer.record(() -> encoder.encode(rawPassword))));
+      List<String> hashes = new ArrayList<>(rawPasswords.size());
+      for (Future<String> future : futures)
+        hashes.add(await(future));
+      return hashes;
+    } catch (RuntimeException e) {
+      futures.forEach(future -> future.cancel(true));
+      throw e;
+    }
+  }
+
+  /**
+   * Run a task on the hashing pool and wait for its result. The calling thread only blocks (without using CPU)
+   * while the task is queued or running.
+   * @throws HashingRejectedException   when the queue is full, or the task did not complete in time
+   */
+  <T> T execute(Callable<T> task) {
+    return await(submit(task));
+  }
+
+  private <T> CompletableFuture<T> executeAsync(Supplier<T> task) {
+    try {
+      return CompletableFuture.supplyAsync(task, executor)
+              .orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+              .exceptionallyCompose(e -> CompletableFuture.failedFuture(e instanceof TimeoutException
+                      ? new HashingRejectedException("Credential check timed out, try again later") : e));
+    } catch (RejectedExecutionException e) {
+      return CompletableFuture.failedFuture(new HashingRejectedException("Too many pending credential checks, try again later"));
+    }
+  }
+
+  private <T> Future<T> submit(Callable<T> task) {
+    try {
+      return executor.submit(task);
+    } catch (RejectedExecutionException e) {
+      throw new HashingRejectedException("Too many pending credential checks, try again later");
+    }
+  }
+
+  /**
+   * Submit a task holding a bulk permit, which is released when the task completes or is cancelled.
+   * @throws HashingRejectedException   when no permit became available in time, or the queue is full
+   */
+  private <T> Future<T> submitBulk(Callable<T> task) {
+    try {
+      if (!bulkPermits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS))
+        throw new HashingRejectedException("Bulk hashing timed out, try again later");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new HashingRejectedException("Bulk hashing was interrupted");
+    }
+    FutureTask<T> future = new FutureTask<>(task) {
+      @Override
+      protected void done() {
+        bulkPermits.release();
+      }
+    };
+    try {
+      executor.execute(future);
+    } catch (RejectedExecutionException e) {
+      bulkPermits.release();
+      throw new HashingRejectedException("Too many pending credential checks, try again later");
+    }
+    return future;
+  }
+
+  private <T> T await(Future<T> future) {
+    try {
+      return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new HashingRejectedException("Credential check was interrupted");
+    } catch (TimeoutException e) {
+      future.cancel(true);
+      throw new HashingRejectedException("Credential check timed out, try again later");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  @ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+  public static class HashingRejectedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public HashingRejectedException(String message) {
+      super(message);
+    }
+  }
+
+  private static class HashingThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "password-hashing-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,164 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import ch.uzh.ifi.hase.soprafs22.model.User;
+import ch.uzh.ifi.hase.soprafs22.model.UserSummary;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Write-behind buffer for the presence flag of users. Presence changes are kept in memory, only the latest one
+ * per user, and written in a single JDBC batch per flush interval, so users toggling their presence repeatedly
+ * cause at most one write per interval. This buffer is the only writer of the flag, which JPA never updates.
+ * <p>
+ * Loaded users must be passed through {@link #apply(User)} to show changes that are not written yet. Written
+ * changes are kept for one more interval, so readers that loaded a row right before it was written still see them.
+ * <p>
+ * Every change is stamped with the time it was made, which is written as the modification date of the row, but
+ * never moves it back. The latest stamp of the buffer therefore becomes persisted state once the changes are
+ * written, see {@link #getLatestStamp()}.
+ */
+@Slf4j
+@Component
+public class PresenceBuffer {
+
+  private static final String UPDATE_PRESENCE = "UPDATE users SET logged_in = ?, "
+          + "last_modified = CASE WHEN last_modified > ? THEN last_modified ELSE ? END WHERE id = ?";
+
+  private final Map<Long, Presence> presences = new ConcurrentHashMap<>();
+
+  private final JdbcTemplate jdbcTemplate;
+
+  private final Counter updates;
+
+  private final Counter writes;
+
+  private Map<Long, Presence> written = Map.of();
+
+  public PresenceBuffer(JdbcTemplate jdbcTemplate, MeterRegistry meterRegistry) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.updates = meterRegistry.counter("users.presence.updates");
+    this.writes = meterRegistry.counter("users.presence.writes");
+    meterRegistry.gauge("users.presence.buffered", presences, Map::size);
+  }
+
+  /**
+   * Overwrite the presence flag of a loaded user with its latest buffered value, if any.
+   * @param user    user as loaded from the database
+   * @return        the same user
+   */
+  public User apply(User user) {
+    Presence presence = user.getId() == null ? null : presences.get(user.getId());
+    if (presence != null)
+      user.setLoggedIn(presence.loggedIn);
+    return user;
+  }
+
+  /**
+   * @see #apply(User)
+   */
+  public UserSummary apply(UserSummary summary) {
+    Presence presence = presences.get(summary.getId());
+    return presence == null ? summary : summary.withLoggedIn(presence.loggedIn);
+  }
+
+  /**
+   * Change the presence flag of a stored user, in memory right away and in the database with the next flush.
+   * Nothing is buffered if the flag does not actually change.
+   * @param user        stored user, updated in place
+   * @param loggedIn    new presence flag
+   * @return            true if the flag changed
+   */
+  public boolean update(User user, boolean loggedIn) {
+    if (apply(user).isLoggedIn() == loggedIn)
+      return false;
+    user.setLoggedIn(loggedIn);
+    presences.put(user.getId(), new Presence(loggedIn, System.currentTimeMillis(), false));
+    updates.increment();
+    return true;
+  }
+
+  /**
+   * Show a presence change buffered by another node of a cluster, which also writes it. It is kept for as
+   * long as a written change of this node, which gives the other node one interval to write it.
+   * @param userId      ID of the stored user
+   * @param loggedIn    new presence flag
+   * @param stamp       time of the change on the other node, in milliseconds since the epoch
+   */
+  public void applyRemote(Long userId, boolean loggedIn, long stamp) {
+    presences.put(userId, new Presence(loggedIn, stamp, true));
+  }
+
+  /**
+   * @param userId  ID of a stored user
+   * @return        time of the buffered presence change of the user, if any, in milliseconds since the epoch
+   */
+  public OptionalLong getStamp(Long userId) {
+    Presence presence = presences.get(userId);
+    return presence == null ? OptionalLong.empty() : OptionalLong.of(presence.stamp);
+  }
+
+  /**
+   * Changes are written with their stamp, so once written, the latest modification date of the stored users is at
+   * least as late. Together they identify the presence state the same way on every node and after a restart.
+   * @return  time of the latest buffered change, in milliseconds since the epoch, or -1 if none is buffered
+   */
+  public long getLatestStamp() {
+    return presences.values().stream().mapToLong(presence -> presence.stamp).max().orElse(-1);
+  }
+
+  @Scheduled(fixedDelayString = "${users.presence.flush-interval:1000}")
+  public synchronized void flush() {
+    // changes written by the previous flush have been visible in the database for a whole interval now, unless
+    // they were replaced by a later change since, which is a different instance
+    written.forEach(presences::remove);
+    Map<Long, Presence> flushed = new HashMap<>(presences);
+    List<Object[]> rows = new ArrayList<>();
+    flushed.forEach((userId, presence) -> {
+      if (!presence.remote) {
+        Timestamp stamp = new Timestamp(presence.stamp);
+        rows.add(new Object[]{presence.loggedIn, stamp, stamp, userId});
+      }
+    });
+    if (!rows.isEmpty()) {
+      jdbcTemplate.batchUpdate(UPDATE_PRESENCE, rows);
+      writes.increment(rows.size());
+      log.debug("Wrote {} presence changes", rows.size());
+    }
+    written = flushed;
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    try {
+      flush();
+    } catch (DataAccessException e) {
+      log.warn("Could not write buffered presence changes on shutdown", e);
+    }
+  }
+
+  private static class Presence {
+    private final boolean loggedIn;
+    private final long stamp;
+    private final boolean remote;
+
+    Presence(boolean loggedIn, long stamp, boolean remote) {
+      this.loggedIn = loggedIn;
+      this.stamp = stamp;
+      this.remote = remote;
+    }
+  }
+}
@@ -0,0 +1,140 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import ch.uzh.ifi.hase.soprafs22.config.RateLimitProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Per-client token buckets for the routes configured in {@link RateLimitProperties}. Each bucket is a single
+ * atomic timestamp (the generic cell rate algorithm): the time at which the bucket will be full again, which is
+ * advanced by one refill interval per taken token with a compare-and-set, so taking a token never locks.
+ * <p>
+ * A bucket whose timestamp has passed is full, i.e. in the same state as a new one, so idle buckets are evicted
+ * by a periodic sweep, and right away once more than the configured number of clients are tracked.
+ */
+@Slf4j
+@Component
+public class RateLimiter {
+
+  private final Map<String, Route> routes = new HashMap<>();
+
+  private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+  private final AtomicBoolean evicting = new AtomicBoolean();
+
+  private final int maxClients;
+
+  private final LongSupplier clock;
+
+  @Autowired
+  public RateLimiter(RateLimitProperties properties, MeterRegistry meterRegistry) {
+    this(properties, meterRegistry, System::nanoTime);
+  }
+
+  RateLimiter(RateLimitProperties properties, MeterRegistry meterRegistry, LongSupplier clock) {
+    this.maxClients = properties.getMaxClients();
+    this.clock = clock;
+    if (properties.isEnabled()) {
+      properties.getRoutes().forEach((path, limit) -> routes.put(path, new Route(limit,
+              meterRegistry.counter("users.rate-limit.rejections", "route", path))));
+    }
+    meterRegistry.gauge("users.rate-limit.clients", buckets, Map::size);
+  }
+
+  /**
+   * @param method  HTTP method of the request
+   * @param route   normalized path of the request, see RateLimitFilter
+   * @return        true if requests with this method and path are limited
+   */
+  public boolean isLimited(String method, String route) {
+    Route limit = routes.get(route);
+    return limit != null && (limit.method == null || limit.method.equalsIgnoreCase(method));
+  }
+
+  /**
+   * Take a token from the bucket of a client for a route.
+   * @param route   path of the requested route
+   * @param client  key of the client, e.g. its IP address
+   * @return        0 if the request is admitted, otherwise the nanoseconds until the next token is available
+   */
+  public long tryAcquire(String route, String client) {
+    Route limit = routes.get(route);
+    if (limit == null)
+      return 0;
+    long now = clock.getAsLong();
+    String key = route + ' ' + client;
+    Bucket bucket = buckets.get(key);
+    if (bucket == null) {
+      bucket = buckets.computeIfAbsent(key, k -> new Bucket(now));
+      if (buckets.size() > maxClients)
+        evictIdle();
+    }
+    while (true) {
+      long full = bucket.full.get();
+      long next = Math.max(full, now) + limit.intervalNanos;
+      long waitNanos = next - limit.burstNanos - now;
+      if (waitNanos > 0) {
+        limit.rejections.increment();
+        return waitNanos;
+      }
+      if (bucket.full.compareAndSet(full, next))
+        return 0;
+    }
+  }
+
+  /**
+   * Remove the buckets that are full again. A token taken concurrently with the removal of its bucket is lost,
+   * which lets its client send at most one extra request.
+   */
+  @Scheduled(fixedDelayString = "${users.rate-limit.sweep-interval:10000}")
+  public void evictIdle() {
+    if (!evicting.compareAndSet(false, true))
+      return;
+    try {
+      long now = clock.getAsLong();
+      int count = 0;
+      for (Map.Entry<String, Bucket> entry : buckets.entrySet()) {
+        if (entry.getValue().full.get() - now <= 0 && buckets.remove(entry.getKey(), entry.getValue()))
+          count++;
+      }
+      if (count > 0)
+        log.debug("Evicted {} idle rate limit buckets", count);
+    } finally {
+      evicting.set(false);
+    }
+  }
+
+  private static class Route {
+    private final String method;
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final Counter rejections;
+
+    Route(RateLimitProperties.Limit limit, Counter rejections) {
+      this.method = limit.getMethod();
+      this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / limit.getRefillPerSecond());
+      this.burstNanos = intervalNanos * limit.getCapacity();
+      this.rejections = rejections;
+    }
+  }
+
+  private static class Bucket {
+    private final AtomicLong full;
+
+    Bucket(long now) {
+      this.full = new AtomicLong(now);
+    }
+  }
+}
@@ -0,0 +1,100 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import ch.uzh.ifi.hase.soprafs22.model.User;
+import ch.uzh.ifi.hase.soprafs22.model.UserDTO;
+import ch.uzh.ifi.hase.soprafs22.repository.ReactiveUserRepository;
+import lombok.AllArgsConstructor;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.context.annotation.Profile;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Date;
+
+/**
+ * Non-blocking counterpart of {@link UserService} for the 'reactive' profile. Database access goes through
+ * R2DBC and password checks complete asynchronously on the {@link PasswordHasher} pool, so no event-loop
+ * thread ever blocks. Unlike {@link UserService}, users are not cached and usernames are checked in the database.
+ */
+@Profile("reactive")
+@AllArgsConstructor
+@Service
+public class ReactiveUserService {
+
+  private ReactiveUserRepository userRepository;
+
+  private PasswordHasher passwordHasher;
+
+  public Mono<User> getUserById(Long userId) {
+    return userRepository.findById(userId);
+  }
+
+  public Flux<User> getAllUsers() {
+    return userRepository.findAll(Sort.by("username"));
+  }
+
+  /**
+   * @see UserService#getUsersAfter(String, int)
+   */
+  public Flux<User> getUsersAfter(String after, int limit) {
+    Pageable page = PageRequest.of(0, limit, Sort.by("username"));
+    return after == null ? userRepository.findAllBy(page) : userRepository.findByUsernameGreaterThan(after, page);
+  }
+
+  public Mono<User> createUser(UserDTO newUserDTO) {
+    return Mono.fromFuture(() -> passwordHasher.hashAsync(newUserDTO.getPassword()))
+            .flatMap(hash -> {
+              Date now = new Date();
+              User newUser = new User();
+              newUser.setUsername(newUserDTO.getUsername());
+              newUser.setPassword(hash);
+              newUser.setCreationDate(now);
+              newUser.setVersion(0L);
+              newUser.setLastModified(now);
+              return userRepository.insert(newUser);
+            });
+  }
+
+  /**
+   * @see UserService#updateUserData(User, UserDTO)
+   * @throws OptimisticLockingFailureException  when the user was changed concurrently
+   */
+  public Mono<User> updateUserData(User currentUser, UserDTO updatedUser) {
+    if (!StringUtils.isEmpty(updatedUser.getUsername()))
+      currentUser.setUsername(updatedUser.getUsername());
+    currentUser.setBirthday(updatedUser.getBirthday());
+    currentUser.setLoggedIn(updatedUser.isLoggedIn());
+    return userRepository.update(currentUser)
+            .flatMap(updated -> updated == 0
+                    ? Mono.error(new OptimisticLockingFailureException("User " + currentUser.getId() + " was changed concurrently"))
+                    : userRepository.findById(currentUser.getId()));
+  }
+
+  /**
+   * @see UserService#getUserByCredentialsAndLogIn(UserDTO)
+   */
+  public Mono<User> getUserByCredentialsAndLogIn(UserDTO userDTO) {
+    if (userDTO.getUsername() == null)
+      return Mono.empty();
+    return userRepository.findByUsername(userDTO.getUsername())
+            .filterWhen(found -> Mono.fromFuture(() -> passwordHasher.matchesAsync(userDTO.getPassword(), found.getPassword())))
+            .flatMap(found -> rehashIfNeeded(found, userDTO.getPassword())
+                    .flatMap(password -> userRepository.logIn(found.getId(), password))
+                    .then(userRepository.findById(found.getId())));
+  }
+
+  public Mono<Boolean> isExistingUsername(String username) {
+    return username == null ? Mono.just(false) : userRepository.existsByUsername(username);
+  }
+
+  private Mono<String> rehashIfNeeded(User user, String rawPassword) {
+    if (!passwordHasher.needsRehash(user.getPassword()))
+      return Mono.just(user.getPassword());
+    return Mono.fromFuture(() -> passwordHasher.hashAsync(rawPassword));
+  }
+}
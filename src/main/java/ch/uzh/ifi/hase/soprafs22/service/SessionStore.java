@@ -0,0 +1,296 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import ch.uzh.ifi.hase.soprafs22.model.SessionEvent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Store of login sessions, identified by opaque random tokens. Sessions are stored in the database, which all nodes
+ * of a cluster share, and cached in memory: checking the token of a cached session is a single hash lookup without
+ * any database access; the map is lock-free for reads and locks only single bins on writes, so concurrent logins,
+ * checks and logouts of different users never contend. Sessions expire after the configured time without use,
+ * lazily on lookup and by a periodic sweep.
+ * <p>
+ * Sessions are stored under the SHA-256 hash of their token, so a token is neither stored nor sent over the network
+ * after the login response. A node loads a session it does not know from the database, e.g. after it joined the
+ * cluster or restarted, and checks cached sessions against the database again once per revalidation interval.
+ * Revoked sessions are kept as tombstones until they expire, in the database and in memory, so a revocation that a
+ * node missed takes effect there with the next check, and a late start of a revoked session is ignored. The
+ * {@link SessionEvent}s that other nodes add or remove as replicas only spread changes faster.
+ * <p>
+ * Each use extends a session in memory. The sweep writes extensions of at least a tenth of the lifetime to the
+ * database, so other nodes may see a session expire that much, plus one sweep interval, early.
+ */
+@Slf4j
+@Component
+public class SessionStore {
+
+  private static final int TOKEN_BYTES = 32;
+
+  private static final String INSERT_SESSION =
+          "INSERT INTO sessions (token_hash, user_id, expires_at, revoked) VALUES (?, ?, ?, FALSE)";
+
+  private static final String SELECT_SESSION = "SELECT user_id, expires_at, revoked FROM sessions WHERE token_hash = ?";
+
+  private static final String EXTEND_SESSION =
+          "UPDATE sessions SET expires_at = ? WHERE token_hash = ? AND expires_at < ?";
+
+  private static final String REVOKE_SESSION = "UPDATE sessions SET revoked = TRUE, "
+          + "expires_at = CASE WHEN expires_at > ? THEN expires_at ELSE ? END WHERE token_hash = ?";
+
+  private static final String DELETE_EXPIRED = "DELETE FROM sessions WHERE expires_at <= ?";
+
+  private final SecureRandom random = new SecureRandom();
+
+  private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+  /**
+   * Hashes of revoked sessions, with the time until which a replica of them must not be added.
+   */
+  private final Map<String, Long> tombstones = new ConcurrentHashMap<>();
+
+  private final long ttlMillis;
+
+  private final long revalidateMillis;
+
+  private final JdbcTemplate jdbcTemplate;
+
+  private final LongSupplier clock;
+
+  private final ApplicationEventPublisher eventPublisher;
+
+  private final Counter created;
+
+  private final Counter expired;
+
+  private final Counter revoked;
+
+  @Autowired
+  public SessionStore(@Value("${users.sessions.ttl:30m}") Duration ttl,
+                      @Value("${users.sessions.revalidate-interval:10s}") Duration revalidateInterval,
+                      JdbcTemplate jdbcTemplate, MeterRegistry meterRegistry, ApplicationEventPublisher eventPublisher) {
+    this(ttl, revalidateInterval, jdbcTemplate, meterRegistry, eventPublisher, System::currentTimeMillis);
+  }
+
+  SessionStore(Duration ttl, Duration revalidateInterval, JdbcTemplate jdbcTemplate, MeterRegistry meterRegistry,
+               ApplicationEventPublisher eventPublisher, LongSupplier clock) {
+    this.ttlMillis = ttl.toMillis();
+    this.revalidateMillis = revalidateInterval.toMillis();
+    this.jdbcTemplate = jdbcTemplate;
+    this.clock = clock;
+    this.eventPublisher = eventPublisher;
+    this.created = meterRegistry.counter("users.sessions", "event", "created");
+    this.expired = meterRegistry.counter("users.sessions", "event", "expired");
+    this.revoked = meterRegistry.counter("users.sessions", "event", "revoked");
+    meterRegistry.gauge("users.sessions.active", sessions, Map::size);
+  }
+
+  /**
+   * Start a new session for a user. A user may hold several sessions at once, e.g. on different devices.
+   * @param userId  ID of the authenticated user
+   * @return        token identifying the new session
+   */
+  public String create(Long userId) {
+    byte[] bytes = new byte[TOKEN_BYTES];
+    random.nextBytes(bytes);
+    String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    String tokenHash = hashToken(token);
+    long now = clock.getAsLong();
+    long expiresAt = now + ttlMillis;
+    jdbcTemplate.update(INSERT_SESSION, tokenHash, userId, new Timestamp(expiresAt));
+    sessions.put(tokenHash, new Session(userId, expiresAt, now));
+    created.increment();
+    eventPublisher.publishEvent(new SessionEvent(tokenHash, userId, false));
+    return token;
+  }
+
+  /**
+   * Add a session started on another node, unless it is already known or was revoked.
+   * @param tokenHash   hash of the session token, see {@link #hashToken(String)}
+   */
+  public void addReplica(String tokenHash, Long userId) {
+    long now = clock.getAsLong();
+    if (!tombstones.containsKey(tokenHash))
+      sessions.putIfAbsent(tokenHash, new Session(userId, now + ttlMillis, now));
+  }
+
+  /**
+   * Remove a session ended on another node, and ignore a start of it that arrives later.
+   * @param tokenHash   hash of the session token, see {@link #hashToken(String)}
+   */
+  public void removeReplica(String tokenHash) {
+    tombstones.put(tokenHash, clock.getAsLong() + ttlMillis);
+    sessions.remove(tokenHash);
+  }
+
+  /**
+   * Look up the user of a session and extend the session's lifetime. Sessions that are not cached, expired in the
+   * cache or due for revalidation are looked up in the database.
+   * @param token   session token, may be null
+   * @return        ID of the user owning the session, or an empty Optional if the token is unknown, expired or revoked
+   */
+  public Optional<Long> authenticate(String token) {
+    if (token == null)
+      return Optional.empty();
+    String tokenHash = hashToken(token);
+    long now = clock.getAsLong();
+    Session session = sessions.get(tokenHash);
+    if (session == null || session.expiresAt <= now || session.validatedAt + revalidateMillis <= now)
+      session = load(tokenHash, session, now);
+    if (session == null)
+      return Optional.empty();
+    session.expiresAt = now + ttlMillis;
+    return Optional.of(session.userId);
+  }
+
+  /**
+   * Check a session against the database, which has the extensions made by other nodes and their revocations.
+   * @param cached  cached session, if any, whose own extensions may not be written yet
+   * @return        the cached or loaded session, or null if the session is unknown, expired or revoked
+   */
+  private Session load(String tokenHash, Session cached, long now) {
+    if (tombstones.containsKey(tokenHash)) {
+      sessions.remove(tokenHash);
+      return null;
+    }
+    List<StoredSession> rows = jdbcTemplate.query(SELECT_SESSION, (resultSet, rowNum) -> new StoredSession(
+            resultSet.getLong("user_id"), resultSet.getTimestamp("expires_at").getTime(),
+            resultSet.getBoolean("revoked")), tokenHash);
+    StoredSession stored = rows.isEmpty() ? null : rows.get(0);
+    if (stored != null && stored.revoked) {
+      tombstones.put(tokenHash, Math.max(stored.expiresAt, now + ttlMillis));
+      sessions.remove(tokenHash);
+      return null;
+    }
+    long expiresAt = Math.max(stored == null ? 0 : stored.expiresAt, cached == null ? 0 : cached.expiresAt);
+    if (stored == null || expiresAt <= now) {
+      if (cached != null && sessions.remove(tokenHash, cached))
+        expired.increment();
+      return null;
+    }
+    if (cached != null) {
+      cached.expiresAt = expiresAt;
+      cached.storedExpiresAt = Math.max(cached.storedExpiresAt, stored.expiresAt);
+      cached.validatedAt = now;
+      return cached;
+    }
+    Session session = new Session(stored.userId, expiresAt, now);
+    session.storedExpiresAt = stored.expiresAt;
+    Session concurrent = sessions.putIfAbsent(tokenHash, session);
+    return concurrent == null ? session : concurrent;
+  }
+
+  /**
+   * End a session, e.g. on logout.
+   * @param token   session token
+   * @return        true if the session existed, false otherwise
+   */
+  public boolean revoke(String token) {
+    Optional<Long> userId = authenticate(token);
+    if (userId.isEmpty())
+      return false;
+    String tokenHash = hashToken(token);
+    Session session = sessions.remove(tokenHash);
+    if (session == null)
+      return false;
+    tombstones.put(tokenHash, session.expiresAt);
+    Timestamp expiresAt = new Timestamp(session.expiresAt);
+    jdbcTemplate.update(REVOKE_SESSION, expiresAt, expiresAt, tokenHash);
+    revoked.increment();
+    eventPublisher.publishEvent(new SessionEvent(tokenHash, userId.get(), true));
+    return true;
+  }
+
+  /**
+   * @return  SHA-256 hash of a session token, which identifies the session without revealing the token
+   */
+  public static String hashToken(String token) {
+    try {
+      byte[] hash = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.US_ASCII));
+      return Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+    } catch (NoSuchAlgorithmException e) {
+      // every Java platform supports SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Scheduled(fixedDelayString = "${users.sessions.sweep-interval:60000}")
+  public void expireSessions() {
+    long now = clock.getAsLong();
+    writeExtensions();
+    int count = 0;
+    for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+      if (entry.getValue().expiresAt <= now && sessions.remove(entry.getKey(), entry.getValue()))
+        count++;
+    }
+    if (count > 0) {
+      expired.increment(count);
+      log.debug("Expired {} sessions", count);
+    }
+    tombstones.values().removeIf(until -> until <= now);
+    // rows of sessions extended by a node that did not write the extension yet, and tombstones, are kept longer
+    jdbcTemplate.update(DELETE_EXPIRED, new Timestamp(now - ttlMillis));
+  }
+
+  private void writeExtensions() {
+    List<Object[]> rows = new ArrayList<>();
+    sessions.forEach((tokenHash, session) -> {
+      long expiresAt = session.expiresAt;
+      if (expiresAt - session.storedExpiresAt >= ttlMillis / 10) {
+        rows.add(new Object[]{new Timestamp(expiresAt), tokenHash, new Timestamp(expiresAt)});
+        session.storedExpiresAt = expiresAt;
+      }
+    });
+    if (!rows.isEmpty())
+      jdbcTemplate.batchUpdate(EXTEND_SESSION, rows);
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    try {
+      writeExtensions();
+    } catch (DataAccessException e) {
+      log.warn("Could not write session extensions on shutdown", e);
+    }
+  }
+
+  private static class Session {
+    private final Long userId;
+    private volatile long expiresAt;
+    private volatile long storedExpiresAt;
+    private volatile long validatedAt;
+
+    Session(Long userId, long expiresAt, long validatedAt) {
+      this.userId = userId;
+      this.expiresAt = expiresAt;
+      this.storedExpiresAt = expiresAt;
+      this.validatedAt = validatedAt;
+    }
+  }
+
+  private record StoredSession(long userId, long expiresAt, boolean revoked) {
+  }
+}
@@ -0,0 +1,287 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import ch.uzh.ifi.hase.soprafs22.model.UserEvent;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes {@link UserEvent}s to all subscribers of 'GET /users/events' as server-sent events, once the change
+ * is committed. Every event is serialized once and queued per subscriber in a bounded buffer, which a small
+ * pool of sender threads drains, so a slow subscriber never holds up the publisher or other subscribers.
+ * <p>
+ * When the buffer of a subscriber overflows, its queued events are dropped and replaced by a single
+ * {@value #RESYNC_EVENT} event, telling the client to fetch 'GET /users' once and continue from there. A
+ * subscriber that overflows again before even its resync was sent is disconnected. Events are not kept
+ * after sending, so reconnecting clients that send a 'Last-Event-ID' are told to resync as well.
+ * <p>
+ * A client that stops reading blocks the sender thread writing to it once the socket buffers are full. A
+ * subscriber whose current send takes longer than 'users.events.send-timeout' is disconnected, its sender thread
+ * is interrupted, and the pool gets an extra thread for as long as the send stays blocked, so the other
+ * subscribers are served by the configured number of threads however many clients stall.
+ */
+@Slf4j
+@Component
+public class UserEventBroadcaster {
+
+  public static final String RESYNC_EVENT = "resync";
+
+  private static final Message RESYNC = new Message(null, RESYNC_EVENT, "{}");
+
+  private static final Message HEARTBEAT = new Message(null, null, null);
+
+  private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+
+  // disconnected subscribers whose send is still blocked, each occupying a sender thread
+  private final Set<Subscriber> stalled = ConcurrentHashMap.newKeySet();
+
+  private final AtomicLong sequence = new AtomicLong();
+
+  private final ExecutorService senders;
+
+  private final ObjectMapper objectMapper;
+
+  private final int bufferSize;
+
+  private final long timeoutMillis;
+
+  private final long sendTimeoutNanos;
+
+  private final int senderThreads;
+
+  private final Counter published;
+
+  private final Counter dropped;
+
+  private final Counter disconnected;
+
+  @Autowired
+  public UserEventBroadcaster(@Value("${users.events.buffer-size:256}") int bufferSize,
+                              @Value("${users.events.timeout:30m}") Duration timeout,
+                              @Value("${users.events.send-timeout:10s}") Duration sendTimeout,
+                              @Value("${users.events.sender-threads:2}") int senderThreads,
+                              ObjectMapper objectMapper, MeterRegistry meterRegistry) {
+    this(bufferSize, timeout, sendTimeout, newSenderPool(senderThreads), objectMapper, meterRegistry);
+  }
+
+  UserEventBroadcaster(int bufferSize, Duration timeout, Duration sendTimeout, ExecutorService senders,
+                       ObjectMapper objectMapper, MeterRegistry meterRegistry) {
+    this.bufferSize = bufferSize;
+    this.timeoutMillis = timeout.toMillis();
+    this.sendTimeoutNanos = sendTimeout.toNanos();
+    this.senders = senders;
+    this.senderThreads = senders instanceof ThreadPoolExecutor pool ? pool.getCorePoolSize() : 0;
+    this.objectMapper = objectMapper;
+    this.published = meterRegistry.counter("users.events.published");
+    this.dropped = meterRegistry.counter("users.events.dropped");
+    this.disconnected = meterRegistry.counter("users.events.disconnected");
+    meterRegistry.gauge("users.events.subscribers", subscribers, Set::size);
+    meterRegistry.gauge("users.events.stalled", stalled, Set::size);
+  }
+
+  private static ExecutorService newSenderPool(int senderThreads) {
+    CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("user-events-");
+    threadFactory.setDaemon(true);
+    return Executors.newFixedThreadPool(senderThreads, threadFactory);
+  }
+
+  /**
+   * Register a new subscriber, which receives all events published from now on.
+   * @param resync  true to start with a {@value #RESYNC_EVENT} event, e.g. for a reconnecting client
+   * @return        emitter to be returned by the handler
+   */
+  public SseEmitter subscribe(boolean resync) {
+    Subscriber subscriber = new Subscriber(newEmitter(timeoutMillis));
+    subscriber.emitter.onCompletion(() -> subscribers.remove(subscriber));
+    subscriber.emitter.onTimeout(() -> subscribers.remove(subscriber));
+    subscriber.emitter.onError(e -> subscribers.remove(subscriber));
+    subscribers.add(subscriber);
+    if (resync)
+      subscriber.offer(RESYNC);
+    return subscriber.emitter;
+  }
+
+  SseEmitter newEmitter(long timeoutMillis) {
+    return new SseEmitter(timeoutMillis);
+  }
+
+  /**
+   * Called after the publishing transaction committed, or right away if it was published outside of one.
+   */
+  @TransactionalEventListener(fallbackExecution = true)
+  public void onUserEvent(UserEvent event) {
+    if (subscribers.isEmpty())
+      return;
+    String data;
+    try {
+      data = objectMapper.writeValueAsString(event.getUser());
+    } catch (JsonProcessingException e) {
+      log.warn("Could not serialize {}", event, e);
+      return;
+    }
+    Message message = new Message(Long.toString(sequence.incrementAndGet()), event.getType().getEventName(), data);
+    for (Subscriber subscriber : subscribers)
+      subscriber.offer(message);
+    published.increment();
+  }
+
+  /**
+   * Keeps idle connections open through proxies and detects subscribers that went away.
+   */
+  @Scheduled(fixedDelayString = "${users.events.heartbeat-interval:15000}")
+  public void heartbeat() {
+    for (Subscriber subscriber : subscribers)
+      subscriber.offer(HEARTBEAT);
+  }
+
+  /**
+   * Disconnects subscribers whose current send has been blocked for longer than the send timeout, and sizes the
+   * sender pool to the configured number of threads plus one for every send that is still blocked.
+   */
+  @Scheduled(fixedDelayString = "${users.events.stall-check-interval:1000}")
+  public synchronized void disconnectStalled() {
+    long now = System.nanoTime();
+    stalled.removeIf(subscriber -> !subscriber.isSending());
+    for (Subscriber subscriber : subscribers) {
+      if (subscriber.isSending() && now - subscriber.sendStartedNanos > sendTimeoutNanos) {
+        stalled.add(subscriber);
+        subscriber.abandon();
+      }
+    }
+    if (senders instanceof ThreadPoolExecutor pool) {
+      int poolSize = senderThreads + stalled.size();
+      if (poolSize > pool.getMaximumPoolSize()) {
+        pool.setMaximumPoolSize(poolSize);
+        pool.setCorePoolSize(poolSize);
+      } else if (poolSize < pool.getCorePoolSize()) {
+        pool.setCorePoolSize(poolSize);
+        pool.setMaximumPoolSize(poolSize);
+      }
+    }
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    subscribers.forEach(subscriber -> subscriber.emitter.complete());
+    senders.shutdown();
+  }
+
+  private final class Subscriber {
+    private final SseEmitter emitter;
+    private final BlockingQueue<Message> queue = new ArrayBlockingQueue<>(bufferSize);
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private boolean resyncPending;
+    private volatile Thread sender;
+    private volatile long sendStartedNanos;
+    private volatile boolean abandoned;
+
+    Subscriber(SseEmitter emitter) {
+      this.emitter = emitter;
+    }
+
+    synchronized void offer(Message message) {
+      if (!queue.offer(message)) {
+        dropped.increment(queue.size() + 1);
+        queue.clear();
+        if (resyncPending) {
+          disconnect();
+          return;
+        }
+        resyncPending = true;
+        queue.offer(RESYNC);
+      }
+      if (draining.compareAndSet(false, true))
+        senders.execute(this::drain);
+    }
+
+    private void drain() {
+      try {
+        Message message;
+        while (!abandoned && (message = queue.poll()) != null) {
+          if (message == RESYNC)
+            clearResync();
+          send(message);
+        }
+      } catch (IOException | IllegalStateException e) {
+        // the client went away or the emitter timed out
+        subscribers.remove(this);
+      } finally {
+        draining.set(false);
+      }
+      if (abandoned)
+        emitter.complete();
+      else if (!queue.isEmpty() && subscribers.contains(this) && draining.compareAndSet(false, true))
+        senders.execute(this::drain);
+    }
+
+    private void send(Message message) throws IOException {
+      // written before the thread, which marks the send as running for the stall check
+      sendStartedNanos = System.nanoTime();
+      sender = Thread.currentThread();
+      try {
+        emitter.send(message.toEvent());
+      } finally {
+        sender = null;
+        // an interrupt meant for a blocked send must not hit the next task of the pool
+        if (abandoned)
+          Thread.interrupted();
+      }
+    }
+
+    boolean isSending() {
+      return sender != null;
+    }
+
+    /**
+     * Give up on a blocked send: the subscriber is disconnected once the send returns or fails, which the
+     * interrupt may speed up, depending on how the container writes to the client.
+     */
+    void abandon() {
+      abandoned = true;
+      subscribers.remove(this);
+      queue.clear();
+      disconnected.increment();
+      Thread thread = sender;
+      if (thread != null)
+        thread.interrupt();
+    }
+
+    private synchronized void clearResync() {
+      resyncPending = false;
+    }
+
+    private void disconnect() {
+      subscribers.remove(this);
+      disconnected.increment();
+      emitter.complete();
+    }
+  }
+
+  private record Message(String id, String name, String data) {
+
+    SseEmitter.SseEventBuilder toEvent() {
+      if (name == null)
+        return SseEmitter.event().comment("heartbeat");
+      SseEmitter.SseEventBuilder event = SseEmitter.event().name(name).data(data, MediaType.APPLICATION_JSON);
+      return id == null ? event : event.id(id);
+    }
+  }
+}
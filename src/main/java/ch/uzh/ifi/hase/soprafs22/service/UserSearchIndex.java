@@ -0,0 +1,203 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import ch.uzh.ifi.hase.soprafs22.model.UserIdentity;
+import ch.uzh.ifi.hase.soprafs22.repository.UserRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+
+/**
+ * In-memory search index over all usernames, case-insensitive. Prefix matches are read from a sorted map, and
+ * fuzzy matches are found through trigram postings and ranked by their trigram similarity to the query, like
+ * the 'pg_trgm' extension of PostgreSQL does. The index is warmed from the database once the application is
+ * ready; until then, searches fall back to a prefix LIKE query. All writes that create or rename users must go through
+ * {@link UserService} to keep it in sync.
+ */
+@Slf4j
+@Component
+public class UserSearchIndex {
+
+  /**
+   * Minimal share of trigrams that a username must have in common with a query to be a fuzzy match.
+   */
+  public static final double SIMILARITY_THRESHOLD = 0.3;
+
+  /**
+   * Maximal number of candidates checked for fuzzy matches, which bounds searches for very common trigrams.
+   */
+  public static final int MAX_CANDIDATES = 1_000;
+
+  // keys are the lower case username followed by the username itself, so different cases never collide
+  private final NavigableMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+
+  private final Map<String, Set<Entry>> postings = new ConcurrentHashMap<>();
+
+  private final UserRepository userRepository;
+
+  private final Counter hits;
+
+  private final Counter misses;
+
+  private volatile boolean warm = false;
+
+  public UserSearchIndex(UserRepository userRepository, MeterRegistry meterRegistry) {
+    this.userRepository = userRepository;
+    this.hits = meterRegistry.counter("users.search.index.lookups", "result", "hit");
+    this.misses = meterRegistry.counter("users.search.index.lookups", "result", "miss");
+    meterRegistry.gauge("users.search.index.size", entries, Map::size);
+  }
+
+  /**
+   * Load all stored users into the index. Searches are answered from memory only after this completed.
+   */
+  @EventListener(ApplicationReadyEvent.class)
+  @Transactional(readOnly = true)
+  public void warmUp() {
+    try (Stream<UserIdentity> stored = userRepository.streamAllIdentities()) {
+      stored.forEach(user -> add(user.getId(), user.getUsername()));
+    }
+    warm = true;
+    log.info("Search index warmed up with {} users", entries.size());
+  }
+
+  /**
+   * Find the users best matching a query: first all users whose username starts with the query, ordered by
+   * username, then users with a similar username, ordered by descending similarity.
+   * @param query   part of a username, ignoring case
+   * @param limit   maximal number of results
+   * @return        IDs of the matching users, best match first
+   */
+  public List<Long> search(String query, int limit) {
+    if (!warm) {
+      misses.increment();
+      return userRepository.findByUsernameStartingWithIgnoreCaseOrderByUsername(query, PageRequest.of(0, limit))
+              .stream().map(UserIdentity::getId).toList();
+    }
+    hits.increment();
+    String normalized = normalize(query);
+    Set<Long> results = new LinkedHashSet<>();
+    for (Entry entry : entries.tailMap(normalized).values()) {
+      if (!entry.key.startsWith(normalized))
+        break;
+      if (results.size() == limit)
+        return new ArrayList<>(results);
+      results.add(entry.id);
+    }
+    for (Entry entry : findSimilar(normalized, limit + results.size())) {
+      if (results.size() == limit)
+        break;
+      results.add(entry.id);
+    }
+    return new ArrayList<>(results);
+  }
+
+  /**
+   * Add a user, unless a user with the same username is already indexed.
+   */
+  public void add(Long id, String username) {
+    Set<String> trigrams = trigrams(normalize(username));
+    Entry entry = new Entry(id, key(username), trigrams.size());
+    if (entries.putIfAbsent(entry.key, entry) != null)
+      return;
+    for (String trigram : trigrams)
+      postings.computeIfAbsent(trigram, t -> ConcurrentHashMap.newKeySet()).add(entry);
+  }
+
+  public void rename(Long id, String oldUsername, String newUsername) {
+    if (newUsername.equals(oldUsername))
+      return;
+    Entry entry = entries.remove(key(oldUsername));
+    if (entry != null) {
+      for (String trigram : trigrams(normalize(oldUsername))) {
+        Set<Entry> posting = postings.get(trigram);
+        if (posting != null)
+          posting.remove(entry);
+      }
+    }
+    add(id, newUsername);
+  }
+
+  /**
+   * A username can only reach the similarity threshold if it shares a minimal number of trigrams with the query,
+   * so it must appear in one of the postings of the rarest query trigrams. Only those are scanned for candidates,
+   * whose shared trigrams are then counted by probing all postings of the query.
+   */
+  private List<Entry> findSimilar(String normalized, int limit) {
+    Set<String> queryTrigrams = trigrams(normalized);
+    int minShared = (int) Math.ceil(SIMILARITY_THRESHOLD * queryTrigrams.size());
+    List<Set<Entry>> queryPostings = queryTrigrams.stream()
+            .map(trigram -> postings.getOrDefault(trigram, Set.of()))
+            .sorted(Comparator.comparingInt(Set::size))
+            .toList();
+
+    Set<Entry> candidates = new HashSet<>();
+    PriorityQueue<Match> best = new PriorityQueue<>(Comparator.comparingDouble(Match::similarity));
+    for (Set<Entry> posting : queryPostings.subList(0, queryPostings.size() - minShared + 1)) {
+      for (Entry entry : posting) {
+        if (candidates.size() == MAX_CANDIDATES)
+          break;
+        if (!candidates.add(entry))
+          continue;
+        int shared = 0;
+        for (Set<Entry> queryPosting : queryPostings) {
+          if (queryPosting.contains(entry))
+            shared++;
+        }
+        double similarity = (double) shared / (queryTrigrams.size() + entry.trigramCount - shared);
+        if (similarity >= SIMILARITY_THRESHOLD) {
+          best.add(new Match(entry, similarity));
+          if (best.size() > limit)
+            best.poll();
+        }
+      }
+    }
+    List<Match> matches = new ArrayList<>(best);
+    matches.sort(Comparator.comparingDouble(Match::similarity).reversed().thenComparing(match -> match.entry().key));
+    return matches.stream().map(Match::entry).toList();
+  }
+
+  /**
+   * Trigrams of a word padded with two leading and one trailing blank, so that its start weighs more than its end.
+   */
+  static Set<String> trigrams(String normalized) {
+    String padded = "  " + normalized + " ";
+    Set<String> trigrams = new HashSet<>();
+    for (int i = 0; i + 3 <= padded.length(); i++)
+      trigrams.add(padded.substring(i, i + 3));
+    return trigrams;
+  }
+
+  private static String normalize(String username) {
+    return username.toLowerCase(Locale.ROOT);
+  }
+
+  private static String key(String username) {
+    return normalize(username) + '\0' + username;
+  }
+
+  // compared by identity, which is all the postings need and cheaper to hash
+  private static final class Entry {
+    private final Long id;
+    private final String key;
+    private final int trigramCount;
+
+    Entry(Long id, String key, int trigramCount) {
+      this.id = id;
+      this.key = key;
+      this.trigramCount = trigramCount;
+    }
+  }
+
+  private record Match(Entry entry, double similarity) {
+  }
+}
@@ -2,52 +2,366 @@ package ch.uzh.ifi.hase.soprafs22.service;
 
 import ch.uzh.ifi.hase.soprafs22.model.User;
 import ch.uzh.ifi.hase.soprafs22.model.UserDTO;
+import ch.uzh.ifi.hase.soprafs22.model.UserEvent;
+import ch.uzh.ifi.hase.soprafs22.model.UserImportResult;
+import ch.uzh.ifi.hase.soprafs22.model.UserListVersion;
+import ch.uzh.ifi.hase.soprafs22.model.UserSummary;
 import ch.uzh.ifi.hase.soprafs22.repository.UserRepository;
 import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
+import org.springframework.cache.annotation.CacheEvict;
+import org.springframework.cache.annotation.CachePut;
+import org.springframework.cache.annotation.Cacheable;
+import org.springframework.cache.annotation.Caching;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
-import java.util.List;
-import java.util.Optional;
+import javax.persistence.EntityManager;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Slf4j
 @AllArgsConstructor
 @Service
 public class UserService {
 
+  public static final String USERS_CACHE = "users";
+
+  public static final int IMPORT_CHUNK_SIZE = 500;
+
+  public static final int LOOKUP_CHUNK_SIZE = 500;
+
   private UserRepository userRepository;
 
+  private EntityManager entityManager;
+
+  private UsernameIndex usernameIndex;
+
+  private UserSearchIndex searchIndex;
+
+  private PasswordHasher passwordHasher;
+
+  private TransactionTemplate transactionTemplate;
+
+  private PresenceBuffer presenceBuffer;
+
+  private ApplicationEventPublisher eventPublisher;
+
+  /**
+   * Find a user by ID, served from the bounded {@value #USERS_CACHE} cache when possible. Every write path of
+   * this service refreshes the cached entry, so cached users are never older than the last local update. The
+   * cache stores copies and hands out copies, see CacheConfiguration, so the returned user may be changed freely.
+   * @param userId    ID value to search by
+   * @return          the user with the given ID, or an empty Optional if none exists
+   */
+  @Cacheable(cacheNames = USERS_CACHE, key = "#userId", unless = "#result == null")
   public Optional<User> getUserById(Long userId) {
-    return userRepository.findById(userId);
+    return userRepository.findById(userId).map(presenceBuffer::apply);
   }
 
+  /**
+   * Update the username and birthday of a stored user with a single conditional UPDATE of only these columns,
+   * which fails if the user was changed since the given copy was loaded. Requests that do not change these
+   * columns only buffer the presence flag, see {@link PresenceBuffer}, and never conflict; after a conflict the
+   * user is reloaded once and the request retried, if it turns out to be such a presence-only change.
+   * The given user is left unchanged, the returned user is a new instance, which is also put into the cache.
+   * @param currentUser   copy of the stored user, as served from the cache
+   * @param updatedUser   DTO with the new username, birthday and presence flag
+   * @return              the updated user
+   * @throws OptimisticLockingFailureException  when the user was changed or deleted concurrently
+   */
+  @Caching(evict = @CacheEvict(cacheNames = USERS_CACHE, key = "#currentUser.id", beforeInvocation = true),
+          put = @CachePut(cacheNames = USERS_CACHE, key = "#result.id"))
   public User updateUserData(User currentUser, UserDTO updatedUser) {
-    if (!StringUtils.isEmpty(updatedUser.getUsername()))
-      currentUser.setUsername(updatedUser.getUsername());
-    currentUser.setBirthday(updatedUser.getBirthday());
-    currentUser.setLoggedIn(updatedUser.isLoggedIn());
-    return userRepository.save(currentUser);
+    User user = currentUser.copy();
+    if (!isPresenceOnly(currentUser, updatedUser)) {
+      String username = StringUtils.isEmpty(updatedUser.getUsername()) ? currentUser.getUsername() : updatedUser.getUsername();
+      Date lastModified = new Date();
+      if (userRepository.updateData(currentUser.getId(), currentUser.getVersion(), username, updatedUser.getBirthday(),
+              lastModified) == 1) {
+        user.setUsername(username);
+        user.setBirthday(updatedUser.getBirthday());
+        user.setLastModified(lastModified);
+        user.setVersion(currentUser.getVersion() + 1);
+        presenceBuffer.update(user, updatedUser.isLoggedIn());
+        usernameIndex.rename(currentUser.getUsername(), username);
+        searchIndex.rename(user.getId(), currentUser.getUsername(), username);
+        eventPublisher.publishEvent(UserEvent.updated(user, currentUser.getUsername()));
+        return user;
+      }
+      user = userRepository.findById(currentUser.getId()).map(presenceBuffer::apply)
+              .filter(storedUser -> isPresenceOnly(storedUser, updatedUser))
+              .orElseThrow(() -> new OptimisticLockingFailureException("User " + currentUser.getId() + " was changed concurrently"));
+    }
+    if (presenceBuffer.update(user, updatedUser.isLoggedIn()))
+      eventPublisher.publishEvent(UserEvent.updated(user, user.getUsername()));
+    return user;
   }
 
+  /**
+   * @return  true if the update does not change the username or birthday of the user
+   */
+  private static boolean isPresenceOnly(User user, UserDTO updatedUser) {
+    boolean sameUsername = StringUtils.isEmpty(updatedUser.getUsername())
+            || updatedUser.getUsername().equals(user.getUsername());
+    return sameUsername && Objects.equals(toLocalDate(user.getBirthday()), toLocalDate(updatedUser.getBirthday()));
+  }
+
+  private static LocalDate toLocalDate(Date date) {
+    // stored dates are read as java.sql.Date, which does not support toInstant()
+    return date == null ? null : Instant.ofEpochMilli(date.getTime()).atZone(ZoneId.systemDefault()).toLocalDate();
+  }
+
+  @Transactional(readOnly = true)
   public List<User> getAllUsers() {
-    return userRepository.findAll(Sort.by("username"));
+    return applyPresence(userRepository.findAll(Sort.by("username")));
+  }
+
+  /**
+   * @return  summaries of all users ordered by username, selected without loading the entities
+   */
+  @Transactional(readOnly = true)
+  public List<UserSummary> getAllUserSummaries() {
+    return userRepository.findAllSummaries().stream().map(presenceBuffer::apply).toList();
+  }
+
+  /**
+   * @return  fingerprint of the user list, including presence changes that are not written yet
+   */
+  public UserListVersion getUserListVersion() {
+    return userRepository.getListVersion().withLatestPresenceStamp(presenceBuffer.getLatestStamp());
+  }
+
+  /**
+   * Fetch a single page of users ordered by username, starting right after the given username. Seeking on
+   * the unique username index keeps every page equally cheap, regardless of how deep the client has paged.
+   * @param after   username of the last user of the previous page, or null for the first page
+   * @param limit   maximal number of users to return
+   * @return        list of at most 'limit' users, ordered by username
+   */
+  @Transactional(readOnly = true)
+  public List<User> getUsersAfter(String after, int limit) {
+    Pageable page = PageRequest.of(0, limit, Sort.by("username"));
+    return applyPresence(after == null
+            ? userRepository.findAllBy(page) : userRepository.findByUsernameGreaterThan(after, page));
   }
 
+  /**
+   * @see #getUsersAfter(String, int)
+   */
+  @Transactional(readOnly = true)
+  public List<UserSummary> getUserSummariesAfter(String after, int limit) {
+    Pageable page = PageRequest.of(0, limit);
+    List<UserSummary> summaries = after == null
+            ? userRepository.findSummaries(page) : userRepository.findSummariesByUsernameGreaterThan(after, page);
+    return summaries.stream().map(presenceBuffer::apply).toList();
+  }
+
+  /**
+   * Find the users whose username best matches the given query, see {@link UserSearchIndex#search(String, int)}.
+   * @param query   part of a username, ignoring case
+   * @param limit   maximal number of users to return
+   * @return        list of at most 'limit' users, best match first
+   */
+  public List<User> searchUsers(String query, int limit) {
+    List<Long> ids = searchIndex.search(query, limit);
+    Map<Long, User> users = userRepository.findAllById(ids).stream()
+            .collect(Collectors.toMap(User::getId, presenceBuffer::apply));
+    // users renamed or deleted since the search are skipped
+    return ids.stream().map(users::get).filter(Objects::nonNull).toList();
+  }
+
+  /**
+   * Find many users by ID, with a single query per {@value #LOOKUP_CHUNK_SIZE} distinct IDs instead of one per
+   * user. The users are collected in a map by ID for the duration of the call, so every user is loaded once,
+   * however often its ID is given.
+   * @param userIds   IDs to search by, may contain duplicates
+   * @return          the existing users, each once, in the order in which their IDs first occur
+   */
+  @Transactional(readOnly = true)
+  public List<User> getUsersByIds(Collection<Long> userIds) {
+    Map<Long, User> users = new LinkedHashMap<>();
+    userIds.stream().filter(Objects::nonNull).forEach(id -> users.put(id, null));
+    List<Long> distinctIds = new ArrayList<>(users.keySet());
+    for (int first = 0; first < distinctIds.size(); first += LOOKUP_CHUNK_SIZE) {
+      List<Long> chunk = distinctIds.subList(first, Math.min(first + LOOKUP_CHUNK_SIZE, distinctIds.size()));
+      userRepository.findAllById(chunk).forEach(user -> users.put(user.getId(), presenceBuffer.apply(user)));
+    }
+    return users.values().stream().filter(Objects::nonNull).toList();
+  }
+
+  /**
+   * Pass all users ordered by username to the given consumer, one at a time as they are read from the database.
+   * Every user is detached once consumed, so the persistence context does not grow with the size of the table.
+   * @param consumer    callback invoked for every stored user
+   */
+  @Transactional(readOnly = true)
+  public void streamAllUsers(Consumer<User> consumer) {
+    try (Stream<User> users = userRepository.streamAllByOrderByUsername()) {
+      users.forEach(user -> {
+        consumer.accept(presenceBuffer.apply(user));
+        entityManager.detach(user);
+      });
+    }
+  }
+
+  @CachePut(cacheNames = USERS_CACHE, key = "#result.id")
   public User createUser(UserDTO newUserDTO) {
     User newUser = new User();
     newUser.setUsername(newUserDTO.getUsername());
-    newUser.setPassword(newUserDTO.getPassword());
-    return userRepository.save(newUser);
+    newUser.setPassword(passwordHasher.hash(newUserDTO.getPassword()));
+    User savedUser = userRepository.save(newUser);
+    usernameIndex.add(savedUser.getUsername());
+    searchIndex.add(savedUser.getId(), savedUser.getUsername());
+    eventPublisher.publishEvent(UserEvent.of(UserEvent.Type.CREATED, savedUser));
+    return savedUser;
+  }
+
+  /**
+   * Import many users at once, reading them chunk by chunk from the given iterator. Every chunk is checked for
+   * taken usernames with a single query and inserted in its own transaction through JDBC batching, so a failed
+   * chunk does not roll back the previously imported ones. Imported users are not marked as logged in.
+   * If the password hashing pool rejects a chunk, the import stops: the rows of that chunk and all following rows
+   * are reported with status 503 and can be sent again, while the previously imported chunks are kept.
+   * @param newUsers    DTO objects containing the credentials and optional birthday of each new user
+   * @return            one result per given DTO, in the same order
+   */
+  public List<UserImportResult> importUsers(Iterator<UserDTO> newUsers) {
+    List<UserImportResult> results = new ArrayList<>();
+    List<UserDTO> chunk = new ArrayList<>(IMPORT_CHUNK_SIZE);
+    boolean hashingRejected = false;
+    while (newUsers.hasNext()) {
+      chunk.add(newUsers.next());
+      if (chunk.size() == IMPORT_CHUNK_SIZE || !newUsers.hasNext()) {
+        List<UserImportResult> chunkResults = hashingRejected
+                ? rejectChunk(chunk, results.size(), "Import stopped after password hashing was overloaded, retry this row")
+                : importChunk(chunk, results.size());
+        hashingRejected = hashingRejected || chunkResults.stream()
+                .anyMatch(result -> result.getStatus() == HttpStatus.SERVICE_UNAVAILABLE.value());
+        results.addAll(chunkResults);
+        chunk.clear();
+      }
+    }
+    return results;
+  }
+
+  private static List<UserImportResult> rejectChunk(List<UserDTO> chunk, int firstRow, String message) {
+    List<UserImportResult> results = new ArrayList<>(chunk.size());
+    for (int i = 0; i < chunk.size(); i++)
+      results.add(new UserImportResult(firstRow + i, chunk.get(i).getUsername(), null,
+              HttpStatus.SERVICE_UNAVAILABLE.value(), message));
+    return results;
+  }
+
+  private List<UserImportResult> importChunk(List<UserDTO> chunk, int firstRow) {
+    UserImportResult[] results = new UserImportResult[chunk.size()];
+    Set<String> takenUsernames = userRepository.findExistingUsernames(
+            chunk.stream().map(UserDTO::getUsername).filter(Objects::nonNull).collect(Collectors.toSet()));
+    List<Integer> accepted = new ArrayList<>(chunk.size());
+    for (int i = 0; i < chunk.size(); i++) {
+      UserDTO userDTO = chunk.get(i);
+      if (StringUtils.isAnyEmpty(userDTO.getUsername(), userDTO.getPassword()))
+        results[i] = new UserImportResult(firstRow + i, userDTO.getUsername(), null,
+                HttpStatus.BAD_REQUEST.value(), "Must provide non-empty username and password");
+      else if (!takenUsernames.add(userDTO.getUsername()))
+        results[i] = new UserImportResult(firstRow + i, userDTO.getUsername(), null,
+                HttpStatus.CONFLICT.value(), "Username " + userDTO.getUsername() + " is not available");
+      else
+        accepted.add(i);
+    }
+
+    List<String> hashes;
+    try {
+      hashes = passwordHasher.hashAll(accepted.stream().map(i -> chunk.get(i).getPassword()).toList());
+    } catch (PasswordHasher.HashingRejectedException e) {
+      log.warn("Bulk import of rows {} to {} was rejected: {}", firstRow, firstRow + chunk.size() - 1, e.getMessage());
+      for (int i : accepted)
+        results[i] = new UserImportResult(firstRow + i, chunk.get(i).getUsername(), null,
+                HttpStatus.SERVICE_UNAVAILABLE.value(), "Password hashing is overloaded, retry this row");
+      return Arrays.asList(results);
+    }
+    List<User> newUsers = new ArrayList<>(accepted.size());
+    for (int i = 0; i < accepted.size(); i++) {
+      UserDTO userDTO = chunk.get(accepted.get(i));
+      User newUser = new User();
+      newUser.setUsername(userDTO.getUsername());
+      newUser.setPassword(hashes.get(i));
+      newUser.setBirthday(userDTO.getBirthday());
+      newUser.setLoggedIn(false);
+      newUsers.add(newUser);
+    }
+
+    try {
+      transactionTemplate.executeWithoutResult(status -> {
+        userRepository.saveAll(newUsers);
+        entityManager.flush();
+        entityManager.clear();
+      });
+    } catch (DataIntegrityViolationException e) {
+      log.warn("Bulk import of rows {} to {} failed", firstRow, firstRow + chunk.size() - 1, e);
+      for (int i : accepted)
+        results[i] = new UserImportResult(firstRow + i, chunk.get(i).getUsername(), null,
+                HttpStatus.CONFLICT.value(), "Rows of this chunk conflicted with concurrent changes, retry them");
+      return Arrays.asList(results);
+    }
+
+    for (int i = 0; i < accepted.size(); i++) {
+      User savedUser = newUsers.get(i);
+      usernameIndex.add(savedUser.getUsername());
+      searchIndex.add(savedUser.getId(), savedUser.getUsername());
+      eventPublisher.publishEvent(UserEvent.of(UserEvent.Type.CREATED, savedUser));
+      results[accepted.get(i)] = new UserImportResult(firstRow + accepted.get(i), savedUser.getUsername(),
+              savedUser.getId(), HttpStatus.CREATED.value(), null);
+    }
+    return Arrays.asList(results);
+  }
+
+  /**
+   * Look up a user by username, check the given password and mark the user as logged in. No transaction is held
+   * while the password is checked, which can take as long as the hashing timeout under load: the user is read in
+   * a short read-only query, and an outdated password hash is replaced afterwards, in its own short UPDATE. The
+   * login flag is only buffered when it actually changes, and failed logins cause no writes.
+   * @param userDTO   DTO object containing login credentials
+   * @return          the logged in user, or an empty Optional if the credentials are invalid
+   */
+  // the cache key is generated even for failed logins, which are never put because of the 'unless' condition
+  @CachePut(cacheNames = USERS_CACHE, key = "#result?.id ?: 0", unless = "#result == null")
+  public Optional<User> getUserByCredentialsAndLogIn(UserDTO userDTO) {
+    Optional<User> user = userRepository.findByUsername(userDTO.getUsername())
+            .filter(found -> passwordHasher.matches(userDTO.getPassword(), found.getPassword()));
+    user.ifPresent(found -> {
+      if (passwordHasher.needsRehash(found.getPassword())) {
+        String newHash = passwordHasher.hash(userDTO.getPassword());
+        // a concurrent login may have replaced the outdated hash already, either new hash is valid
+        userRepository.updatePassword(found.getId(), found.getPassword(), newHash);
+        found.setPassword(newHash);
+      }
+      if (presenceBuffer.update(found, true))
+        eventPublisher.publishEvent(UserEvent.of(UserEvent.Type.LOGGED_IN, found));
+    });
+    return user;
   }
 
-  public Optional<User> getUserByCredentialsAndLogIn(UserDTO UserDTO) {
-    userRepository.findByUsernameAndPasswordAndLogIn(UserDTO.getUsername(), UserDTO.getPassword());
-    return userRepository.findByUsernameAndPassword(UserDTO.getUsername(), UserDTO.getPassword());
+  private List<User> applyPresence(List<User> users) {
+    users.forEach(presenceBuffer::apply);
+    return users;
   }
 
   public boolean isExistingUsername(String username) {
-    return userRepository.existsByUsername(username);
+    return usernameIndex.contains(username);
   }
 }
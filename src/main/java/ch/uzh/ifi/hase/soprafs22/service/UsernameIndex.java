@@ -0,0 +1,81 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import ch.uzh.ifi.hase.soprafs22.repository.UserRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * In-memory set of all taken usernames, used to answer availability checks without a database round trip.
+ * The index is warmed from the database once the application is ready; until then, lookups fall back to the
+ * database. All writes that create or rename users must go through {@link UserService} to keep it in sync.
+ */
+@Slf4j
+@Component
+public class UsernameIndex {
+
+  private final Set<String> usernames = ConcurrentHashMap.newKeySet();
+
+  private final UserRepository userRepository;
+
+  private final Counter hits;
+
+  private final Counter misses;
+
+  private volatile boolean warm = false;
+
+  public UsernameIndex(UserRepository userRepository, MeterRegistry meterRegistry) {
+    this.userRepository = userRepository;
+    this.hits = meterRegistry.counter("users.username.index.lookups", "result", "hit");
+    this.misses = meterRegistry.counter("users.username.index.lookups", "result", "miss");
+    meterRegistry.gauge("users.username.index.size", usernames, Set::size);
+  }
+
+  /**
+   * Load all stored usernames into the index. Lookups are answered from memory only after this completed.
+   */
+  @EventListener(ApplicationReadyEvent.class)
+  @Transactional(readOnly = true)
+  public void warmUp() {
+    try (Stream<String> stored = userRepository.streamAllUsernames()) {
+      stored.forEach(usernames::add);
+    }
+    warm = true;
+    log.info("Username index warmed up with {} usernames", usernames.size());
+  }
+
+  /**
+   * Check if a username is taken, from memory when the index is warm or from the database otherwise.
+   * @param username    username to look up
+   * @return            true if the username is associated with an existing user, false otherwise
+   */
+  public boolean contains(String username) {
+    if (username == null)
+      return false;
+    if (!warm) {
+      misses.increment();
+      return userRepository.existsByUsername(username);
+    }
+    hits.increment();
+    return usernames.contains(username);
+  }
+
+  public void add(String username) {
+    usernames.add(username);
+  }
+
+  public void rename(String oldUsername, String newUsername) {
+    if (newUsername.equals(oldUsername))
+      return;
+    usernames.add(newUsername);
+    usernames.remove(oldUsername);
+  }
+}
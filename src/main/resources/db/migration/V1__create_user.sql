@@ -0,0 +1,17 @@
+-- IDs are allocated in blocks of 50 by the pooled-lo optimizer, see spring.jpa.properties in application.yml
+CREATE SEQUENCE user_seq START WITH 1 INCREMENT BY 50;
+
+-- not named 'user', which is a reserved word in PostgreSQL, Oracle and SQL Server
+CREATE TABLE users (
+  id            BIGINT       NOT NULL,
+  username      VARCHAR(255) NOT NULL,
+  password      VARCHAR(255) NOT NULL,
+  creation_date DATE         NOT NULL,
+  logged_in     BOOLEAN      NOT NULL,
+  birthday      DATE,
+  version       BIGINT,
+  last_modified TIMESTAMP,
+  CONSTRAINT pk_users PRIMARY KEY (id),
+  -- also serves the lookup by username on login, registration checks and the keyset pagination
+  CONSTRAINT uk_users_username UNIQUE (username)
+);
@@ -0,0 +1,12 @@
+-- login sessions, shared by all nodes of a cluster, see SessionStore; only the hash of a token is stored
+CREATE TABLE sessions (
+  token_hash VARCHAR(64)  NOT NULL,
+  user_id    BIGINT       NOT NULL,
+  expires_at TIMESTAMP    NOT NULL,
+  -- revoked sessions are kept until well after they expire, so that no node accepts them again
+  revoked    BOOLEAN      NOT NULL,
+  CONSTRAINT pk_sessions PRIMARY KEY (token_hash)
+);
+
+-- the periodic sweep deletes by expiration
+CREATE INDEX ix_sessions_expires_at ON sessions (expires_at);
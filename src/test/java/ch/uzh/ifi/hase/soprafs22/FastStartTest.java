@@ -0,0 +1,33 @@
+package ch.uzh.ifi.hase.soprafs22;
+
+import ch.uzh.ifi.hase.soprafs22.controller.UserController;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.ActiveProfiles;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@ActiveProfiles("faststart")
+public class FastStartTest {
+
+  @Autowired
+  private ConfigurableApplicationContext context;
+
+  @Autowired
+  private TestRestTemplate restTemplate;
+
+  @Test
+  public void controllerCreatedOnFirstRequest() {
+    String beanName = context.getBeanNamesForType(UserController.class)[0];
+    assertFalse(context.getBeanFactory().containsSingleton(beanName));
+    assertTrue(context.getBeanFactory().containsSingleton("startupReport"));
+
+    assertEquals(HttpStatus.OK, restTemplate.getForEntity("/users", String.class).getStatusCode());
+    assertTrue(context.getBeanFactory().containsSingleton(beanName));
+  }
+}
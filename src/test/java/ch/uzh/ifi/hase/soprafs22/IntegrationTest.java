@@ -3,11 +3,20 @@ package ch.uzh.ifi.hase.soprafs22;
 import ch.uzh.ifi.hase.soprafs22.controller.UserController;
 import ch.uzh.ifi.hase.soprafs22.model.User;
 import ch.uzh.ifi.hase.soprafs22.model.UserDTO;
+import ch.uzh.ifi.hase.soprafs22.model.UserImportResult;
+import ch.uzh.ifi.hase.soprafs22.service.UserService;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.http.HttpStatus;
 import org.springframework.web.server.ResponseStatusException;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 @SpringBootTest
@@ -16,6 +25,12 @@ public class IntegrationTest {
   @Autowired
   private UserController userController;
 
+  @Autowired
+  private UserService userService;
+
+  @Autowired
+  private CacheManager cacheManager;
+
   @Test
   public void register_validInput_thenRegister_existingUsername_throwException() {
     UserDTO testUser1 = new UserDTO();
@@ -33,4 +48,109 @@ public class IntegrationTest {
     assertEquals(testUser1.getUsername(), createdUser1.getUsername());
     assertThrows(ResponseStatusException.class, () -> userController.register(testUser2));
   }
+
+  @Test
+  public void registerUsers_thenStreamAllUsers_orderedByUsername() {
+    for (String username : List.of("stream-b", "stream-a")) {
+      UserDTO testUser = new UserDTO();
+      testUser.setUsername(username);
+      testUser.setPassword("test");
+      userController.register(testUser);
+    }
+
+    List<String> streamed = new ArrayList<>();
+    userService.streamAllUsers(user -> streamed.add(user.getUsername()));
+
+    assertTrue(streamed.indexOf("stream-a") >= 0);
+    assertEquals(streamed.indexOf("stream-a") + 1, streamed.indexOf("stream-b"));
+  }
+
+  @Test
+  public void register_thenLogOut_thenLogIn_markedLoggedIn() {
+    UserDTO testUser = new UserDTO();
+    testUser.setUsername("login-user");
+    testUser.setPassword("test");
+    User createdUser = userController.register(testUser);
+
+    testUser.setLoggedIn(false);
+    userController.updateUserData(createdUser.getId(), testUser, createdUser.getId(), null, null);
+    assertFalse(userService.getUserById(createdUser.getId()).orElseThrow().isLoggedIn());
+
+    UserDTO wrongCredentials = new UserDTO();
+    wrongCredentials.setUsername("login-user");
+    wrongCredentials.setPassword("wrong");
+    assertThrows(ResponseStatusException.class, () -> userController.login(wrongCredentials));
+    assertFalse(userService.getUserById(createdUser.getId()).orElseThrow().isLoggedIn());
+
+    assertTrue(userController.login(testUser).getBody().isLoggedIn());
+    assertTrue(userService.getUserById(createdUser.getId()).orElseThrow().isLoggedIn());
+  }
+
+  @Test
+  public void register_thenUpdate_cachedUserRefreshed() {
+    UserDTO testUser = new UserDTO();
+    testUser.setUsername("cached-user");
+    testUser.setPassword("test");
+    User createdUser = userController.register(testUser);
+
+    Cache cache = cacheManager.getCache(UserService.USERS_CACHE);
+    assertNotNull(cache);
+    assertNotNull(cache.get(createdUser.getId()));
+    User cachedUser = userService.getUserById(createdUser.getId()).orElseThrow();
+    assertNotSame(cachedUser, userService.getUserById(createdUser.getId()).orElseThrow());
+    // changing a served user must not change the cached one
+    cachedUser.setUsername("changed-in-place");
+    assertEquals("cached-user", userService.getUserById(createdUser.getId()).orElseThrow().getUsername());
+
+    testUser.setUsername("cached-user-2");
+    userController.updateUserData(createdUser.getId(), testUser, createdUser.getId(), null, null);
+    User refreshedUser = cache.get(createdUser.getId(), User.class);
+    assertNotNull(refreshedUser);
+    assertEquals("cached-user-2", refreshedUser.getUsername());
+  }
+
+  @Test
+  public void register_thenUpdateStaleCopy_conflict() {
+    UserDTO testUser = new UserDTO();
+    testUser.setUsername("versioned-user");
+    testUser.setPassword("test");
+    User createdUser = userController.register(testUser);
+    User staleCopy = new User();
+    staleCopy.setId(createdUser.getId());
+    staleCopy.setVersion(createdUser.getVersion());
+    staleCopy.setUsername(createdUser.getUsername());
+    staleCopy.setLoggedIn(createdUser.isLoggedIn());
+
+    testUser.setUsername("versioned-user-2");
+    String eTag = userController.updateUserData(createdUser.getId(), testUser, createdUser.getId(), null, null)
+            .getHeaders().getETag();
+    assertEquals(createdUser.getVersion() + 1, userService.getUserById(createdUser.getId()).orElseThrow().getVersion());
+
+    UserDTO staleUpdate = new UserDTO();
+    staleUpdate.setUsername("versioned-user-3");
+    assertThrows(OptimisticLockingFailureException.class, () -> userService.updateUserData(staleCopy, staleUpdate));
+    ResponseStatusException preconditionFailed = assertThrows(ResponseStatusException.class,
+            () -> userController.updateUserData(createdUser.getId(), staleUpdate, createdUser.getId(), null,
+                    staleCopy.toETag()));
+    assertEquals(HttpStatus.PRECONDITION_FAILED, preconditionFailed.getStatus());
+    userController.updateUserData(createdUser.getId(), staleUpdate, createdUser.getId(), null, eTag);
+    assertEquals("versioned-user-3", userService.getUserById(createdUser.getId()).orElseThrow().getUsername());
+  }
+
+  @Test
+  public void importUsers_thenLogIn_success() {
+    List<UserDTO> newUsers = new ArrayList<>();
+    for (String username : List.of("import-1", "import-2", "import-1")) {
+      UserDTO newUser = new UserDTO();
+      newUser.setUsername(username);
+      newUser.setPassword("test");
+      newUsers.add(newUser);
+    }
+
+    List<UserImportResult> results = userService.importUsers(newUsers.iterator());
+    assertEquals(List.of(201, 201, 409), results.stream().map(UserImportResult::getStatus).toList());
+    assertFalse(userController.isAvailableUsername(newUsers.get(1)));
+    assertFalse(userService.getUserById(results.get(0).getId()).orElseThrow().isLoggedIn());
+    assertTrue(userController.login(newUsers.get(0)).getBody().isLoggedIn());
+  }
 }
@@ -0,0 +1,84 @@
+package ch.uzh.ifi.hase.soprafs22;
+
+import ch.uzh.ifi.hase.soprafs22.model.User;
+import ch.uzh.ifi.hase.soprafs22.model.UserDTO;
+import ch.uzh.ifi.hase.soprafs22.service.UserService;
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the 'prod' profile on a file database in a temporary directory. Every test starts its own application
+ * context, so a test can close it, which closes the database, and start the application again.
+ */
+public class PersistentStorageTest {
+
+  @TempDir
+  Path dataDirectory;
+
+  @Test
+  public void schemaMigrated_poolSized() {
+    try (ConfigurableApplicationContext context = start()) {
+      JdbcTemplate jdbcTemplate = context.getBean(JdbcTemplate.class);
+      assertTrue(jdbcTemplate.queryForObject(
+              "SELECT \"success\" FROM \"flyway_schema_history\" WHERE \"version\" = '1'", Boolean.class));
+      HikariDataSource hikariDataSource = assertInstanceOf(HikariDataSource.class, context.getBean(DataSource.class));
+      assertEquals("users", hikariDataSource.getPoolName());
+      assertEquals(hikariDataSource.getMaximumPoolSize(), hikariDataSource.getMinimumIdle());
+    }
+  }
+
+  @Test
+  public void createUsers_idsFromOneSequenceValue() {
+    try (ConfigurableApplicationContext context = start()) {
+      UserService userService = context.getBean(UserService.class);
+      Long sequenceValue = context.getBean(JdbcTemplate.class).queryForObject("SELECT NEXTVAL('user_seq')", Long.class);
+      User first = userService.createUser(userDTO("storage-1"));
+      User second = userService.createUser(userDTO("storage-2"));
+
+      // pooled-lo hands out the fetched sequence value and the IDs above it, without fetching it again
+      assertTrue(first.getId() > sequenceValue);
+      assertEquals(first.getId() + 1, second.getId());
+    }
+  }
+
+  @Test
+  public void createUser_thenRestart_userKept() {
+    Long userId;
+    try (ConfigurableApplicationContext context = start()) {
+      userId = context.getBean(UserService.class).createUser(userDTO("persistent")).getId();
+    }
+
+    try (ConfigurableApplicationContext context = start()) {
+      UserService userService = context.getBean(UserService.class);
+      assertEquals("persistent", userService.getUserById(userId).orElseThrow().getUsername());
+      // the in-memory username index is rebuilt from the database on startup
+      assertTrue(userService.isExistingUsername("persistent"));
+      User next = userService.createUser(userDTO("persistent-2"));
+      assertTrue(next.getId() > userId);
+    }
+  }
+
+  private ConfigurableApplicationContext start() {
+    // arguments, as default properties would not override the URL of the profile
+    return new SpringApplicationBuilder(Application.class)
+            .profiles("prod")
+            .run("--spring.datasource.url=jdbc:h2:file:" + dataDirectory.resolve("users").toAbsolutePath(),
+                    "--server.port=0");
+  }
+
+  private static UserDTO userDTO(String username) {
+    UserDTO userDTO = new UserDTO();
+    userDTO.setUsername(username);
+    userDTO.setPassword("test");
+    return userDTO;
+  }
+}
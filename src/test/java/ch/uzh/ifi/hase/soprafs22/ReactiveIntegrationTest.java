@@ -0,0 +1,108 @@
+package ch.uzh.ifi.hase.soprafs22;
+
+import ch.uzh.ifi.hase.soprafs22.controller.UserController;
+import ch.uzh.ifi.hase.soprafs22.model.User;
+import ch.uzh.ifi.hase.soprafs22.model.UserDTO;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "spring.datasource.url=jdbc:h2:mem:reactive",
+        "spring.r2dbc.url=r2dbc:h2:mem:///reactive"})
+@ActiveProfiles("reactive")
+public class ReactiveIntegrationTest {
+
+  @Autowired
+  private WebTestClient webTestClient;
+
+  @Test
+  public void register_thenValidate_thenRegister_existingUsername_conflict() {
+    UserDTO testUser = userDTO("reactive-user", "test");
+
+    User createdUser = webTestClient.post().uri("/users").bodyValue(testUser).exchange()
+            .expectStatus().isCreated()
+            .expectBody(User.class).returnResult().getResponseBody();
+    assertNotNull(createdUser);
+    assertNotNull(createdUser.getId());
+    assertEquals("reactive-user", createdUser.getUsername());
+    assertTrue(createdUser.isLoggedIn());
+
+    webTestClient.post().uri("/users/validate").bodyValue(testUser).exchange()
+            .expectStatus().isOk().expectBody(Boolean.class).isEqualTo(false);
+    webTestClient.post().uri("/users").bodyValue(testUser).exchange()
+            .expectStatus().isEqualTo(HttpStatus.CONFLICT);
+  }
+
+  @Test
+  public void register_thenLogOut_thenLogIn_markedLoggedIn() {
+    User createdUser = webTestClient.post().uri("/users/register").bodyValue(userDTO("reactive-login", "test"))
+            .exchange().expectStatus().isOk()
+            .expectBody(User.class).returnResult().getResponseBody();
+    assertNotNull(createdUser);
+
+    UserDTO loggedOut = userDTO(null, null);
+    loggedOut.setLoggedIn(false);
+    webTestClient.put().uri("/users/" + createdUser.getId()).bodyValue(loggedOut).exchange()
+            .expectStatus().isNoContent();
+    webTestClient.get().uri("/users/" + createdUser.getId()).exchange()
+            .expectStatus().isOk().expectBody().jsonPath("$.loggedIn").isEqualTo(false);
+
+    webTestClient.post().uri("/users/login").bodyValue(userDTO("reactive-login", "wrong")).exchange()
+            .expectStatus().isUnauthorized();
+    webTestClient.post().uri("/users/login").bodyValue(userDTO("reactive-login", "test")).exchange()
+            .expectStatus().isOk().expectBody().jsonPath("$.loggedIn").isEqualTo(true);
+  }
+
+  @Test
+  public void getUserById_withETag_notModified() {
+    User createdUser = webTestClient.post().uri("/users").bodyValue(userDTO("reactive-etag", "test")).exchange()
+            .expectStatus().isCreated()
+            .expectBody(User.class).returnResult().getResponseBody();
+    assertNotNull(createdUser);
+
+    String eTag = webTestClient.get().uri("/users/" + createdUser.getId()).exchange()
+            .expectStatus().isOk()
+            .returnResult(User.class).getResponseHeaders().getETag();
+    assertNotNull(eTag);
+    webTestClient.get().uri("/users/" + createdUser.getId()).header(HttpHeaders.IF_NONE_MATCH, eTag).exchange()
+            .expectStatus().isNotModified();
+    webTestClient.get().uri("/users/0").exchange().expectStatus().isNotFound();
+  }
+
+  @Test
+  public void registerUsers_thenGetPages_andStream_orderedByUsername() {
+    for (String username : List.of("page-c", "page-b", "page-a"))
+      webTestClient.post().uri("/users").bodyValue(userDTO(username, "test")).exchange().expectStatus().isCreated();
+
+    webTestClient.get().uri("/users?after=page-&limit=2").exchange()
+            .expectStatus().isOk()
+            .expectHeader().valueMatches(HttpHeaders.LINK, ".*after=page-b.*rel=\"next\"")
+            .expectBody().jsonPath("$[0].username").isEqualTo("page-a").jsonPath("$[1].username").isEqualTo("page-b");
+    webTestClient.get().uri("/users?limit=0").exchange().expectStatus().isBadRequest();
+
+    List<User> streamed = webTestClient.get().uri("/users")
+            .accept(MediaType.parseMediaType(UserController.APPLICATION_NDJSON_VALUE)).exchange()
+            .expectStatus().isOk()
+            .returnResult(User.class).getResponseBody().collectList().block();
+    assertNotNull(streamed);
+    List<String> usernames = streamed.stream().map(User::getUsername).toList();
+    assertEquals(usernames.indexOf("page-a") + 1, usernames.indexOf("page-b"));
+  }
+
+  private static UserDTO userDTO(String username, String password) {
+    UserDTO userDTO = new UserDTO();
+    userDTO.setUsername(username);
+    userDTO.setPassword(password);
+    return userDTO;
+  }
+}
@@ -0,0 +1,73 @@
+package ch.uzh.ifi.hase.soprafs22;
+
+import ch.uzh.ifi.hase.soprafs22.model.UserDTO;
+import ch.uzh.ifi.hase.soprafs22.service.UserService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.module.blackbird.BlackbirdModule;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+public class ResponseCompressionTest {
+
+  @Autowired
+  private TestRestTemplate restTemplate;
+
+  @Autowired
+  private UserService userService;
+
+  @Autowired
+  private ObjectMapper objectMapper;
+
+  @Test
+  public void getUsers_acceptGzip_compressed() throws IOException {
+    for (int i = 0; i < 50; i++) {
+      UserDTO userDTO = new UserDTO();
+      userDTO.setUsername("compressed-" + i);
+      userDTO.setPassword("test");
+      userService.createUser(userDTO);
+    }
+    HttpHeaders headers = new HttpHeaders();
+    headers.set(HttpHeaders.ACCEPT_ENCODING, "gzip");
+
+    ResponseEntity<byte[]> list = restTemplate.exchange("/users", HttpMethod.GET, new HttpEntity<>(headers), byte[].class);
+    assertEquals("gzip", list.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+    try (GZIPInputStream body = new GZIPInputStream(new ByteArrayInputStream(list.getBody()))) {
+      assertTrue(objectMapper.readTree(body).size() >= 50);
+    }
+  }
+
+  @Test
+  public void getUser_smallResponse_notCompressed() {
+    UserDTO userDTO = new UserDTO();
+    userDTO.setUsername("uncompressed");
+    userDTO.setPassword("test");
+    Long userId = userService.createUser(userDTO).getId();
+    HttpHeaders headers = new HttpHeaders();
+    headers.set(HttpHeaders.ACCEPT_ENCODING, "gzip");
+
+    ResponseEntity<byte[]> user = restTemplate.exchange("/users/" + userId, HttpMethod.GET, new HttpEntity<>(headers),
+            byte[].class);
+    assertNull(user.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+    assertEquals(user.getBody().length, user.getHeaders().getContentLength());
+    assertTrue(new String(user.getBody(), StandardCharsets.UTF_8).contains("\"username\":\"uncompressed\""));
+  }
+
+  @Test
+  public void objectMapper_blackbirdRegistered() {
+    assertTrue(objectMapper.getRegisteredModuleIds().contains(new BlackbirdModule().getTypeId()));
+  }
+}
@@ -0,0 +1,345 @@
+package ch.uzh.ifi.hase.soprafs22.cluster;
+
+import ch.uzh.ifi.hase.soprafs22.cluster.InvalidationMessage.Kind;
+import ch.uzh.ifi.hase.soprafs22.model.SessionEvent;
+import ch.uzh.ifi.hase.soprafs22.model.User;
+import ch.uzh.ifi.hase.soprafs22.model.UserEvent;
+import ch.uzh.ifi.hase.soprafs22.service.PresenceBuffer;
+import ch.uzh.ifi.hase.soprafs22.service.SessionStore;
+import ch.uzh.ifi.hase.soprafs22.service.UserSearchIndex;
+import ch.uzh.ifi.hase.soprafs22.service.UsernameIndex;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+import org.springframework.cache.Cache;
+import org.springframework.cache.concurrent.ConcurrentMapCache;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class ClusterSyncTest {
+
+  private final AtomicLong now = new AtomicLong(1000L);
+
+  private final List<Object> remoteEvents = new ArrayList<>();
+
+  private final Cache usersCache = new ConcurrentMapCache("users");
+
+  private UsernameIndex usernameIndex;
+
+  private UserSearchIndex searchIndex;
+
+  private PresenceBuffer presenceBuffer;
+
+  private SessionStore sessionStore;
+
+  private LoopbackInvalidationChannel localChannel;
+
+  private LoopbackInvalidationChannel remoteChannel;
+
+  private ClusterSync clusterSync;
+
+  private ClusterSync remoteSync;
+
+  @BeforeEach
+  public void setup() {
+    usernameIndex = mock(UsernameIndex.class);
+    searchIndex = mock(UserSearchIndex.class);
+    presenceBuffer = mock(PresenceBuffer.class);
+    sessionStore = mock(SessionStore.class);
+    localChannel = new LoopbackInvalidationChannel("test");
+    remoteChannel = new LoopbackInvalidationChannel("test");
+    clusterSync = new ClusterSync("local", localChannel, usersCache, usernameIndex, searchIndex, presenceBuffer,
+            sessionStore, remoteEvents::add, new SimpleMeterRegistry(), now::get);
+    remoteSync = newNode("remote", remoteChannel);
+  }
+
+  @AfterEach
+  public void teardown() {
+    localChannel.close();
+    remoteChannel.close();
+  }
+
+  private ClusterSync newNode(String nodeId, InvalidationChannel channel) {
+    ApplicationEventPublisher ignored = event -> {};
+    return new ClusterSync(nodeId, channel, new ConcurrentMapCache("users"), mock(UsernameIndex.class),
+            mock(UserSearchIndex.class), mock(PresenceBuffer.class), mock(SessionStore.class), ignored,
+            new SimpleMeterRegistry(), now::get);
+  }
+
+  /**
+   * Start a node whose sessions are stored in the given database and replicated over a channel of the group
+   * 'sessions'.
+   */
+  private SessionStore newSessionNode(String nodeId, JdbcTemplate jdbcTemplate, Duration revalidateInterval,
+                                      List<LoopbackInvalidationChannel> channels) {
+    AtomicReference<ClusterSync> sync = new AtomicReference<>();
+    ApplicationEventPublisher publisher = event -> {
+      if (event instanceof SessionEvent sessionEvent)
+        sync.get().onSessionEvent(sessionEvent);
+    };
+    SessionStore store = new SessionStore(Duration.ofMinutes(30), revalidateInterval, jdbcTemplate,
+            new SimpleMeterRegistry(), publisher);
+    LoopbackInvalidationChannel channel = new LoopbackInvalidationChannel("sessions");
+    channels.add(channel);
+    sync.set(new ClusterSync(nodeId, channel, new ConcurrentMapCache("users"), mock(UsernameIndex.class),
+            mock(UserSearchIndex.class), mock(PresenceBuffer.class), store, event -> {}, new SimpleMeterRegistry(),
+            now::get));
+    return store;
+  }
+
+  private static EmbeddedDatabase sessionDatabase() {
+    return new EmbeddedDatabaseBuilder().generateUniqueName(true).setType(EmbeddedDatabaseType.H2)
+            .addScript("db/migration/V2__create_sessions.sql").build();
+  }
+
+  private static User user(long version, String username, boolean loggedIn) {
+    User user = new User();
+    user.setId(1L);
+    user.setVersion(version);
+    user.setUsername(username);
+    user.setLoggedIn(loggedIn);
+    return user;
+  }
+
+  @Test
+  public void remoteUpdate_evictsAndRenames() {
+    usersCache.put(1L, user(0, "old", false));
+
+    remoteSync.onUserEvent(UserEvent.updated(user(1, "new", true), "old"));
+
+    assertNull(usersCache.get(1L));
+    verify(usernameIndex).rename("old", "new");
+    verify(searchIndex).rename(1L, "old", "new");
+    verify(presenceBuffer).applyRemote(1L, true, 1000L);
+    UserEvent event = (UserEvent) remoteEvents.get(0);
+    assertTrue(event.isRemote());
+    assertEquals(UserEvent.Type.UPDATED, event.getType());
+    assertEquals("new", event.getUser().getUsername());
+  }
+
+  @Test
+  public void remoteEvent_notPublishedAgain() {
+    List<InvalidationMessage> sent = new ArrayList<>();
+    InvalidationChannel recordingChannel = new InvalidationChannel() {
+      @Override
+      public void publish(InvalidationMessage message) {
+        sent.add(message);
+      }
+
+      @Override
+      public void setReceiver(Consumer<InvalidationMessage> receiver) {
+      }
+    };
+    ClusterSync sync = newNode("recording", recordingChannel);
+
+    sync.onUserEvent(new UserEvent(UserEvent.Type.UPDATED, null, 1, null, true));
+    sync.onUserEvent(UserEvent.of(UserEvent.Type.CREATED, user(0, "created", true)));
+
+    assertEquals(1, sent.size());
+    assertEquals(Kind.USER_CREATED, sent.get(0).kind());
+    assertEquals("recording", sent.get(0).nodeId());
+  }
+
+  @Test
+  public void olderVersion_ignored() {
+    clusterSync.receive(new InvalidationMessage("remote", Kind.USER_UPDATED, 1L, 2, "newer", "older", true, 2000, null));
+    clusterSync.receive(new InvalidationMessage("remote", Kind.USER_UPDATED, 1L, 1, "older", "oldest", false, 1000, null));
+    clusterSync.receive(new InvalidationMessage("remote", Kind.USER_UPDATED, 1L, 2, "newer", "older", true, 2000, null));
+
+    verify(usernameIndex).rename("older", "newer");
+    verify(usernameIndex, never()).rename("oldest", "older");
+    verify(presenceBuffer).applyRemote(1L, true, 2000L);
+    verify(presenceBuffer, never()).applyRemote(eq(1L), eq(false), anyLong());
+    assertEquals(1, remoteEvents.size());
+  }
+
+  @Test
+  public void olderDataNewerPresence_publishesCurrentUsername() {
+    clusterSync.receive(new InvalidationMessage("remote", Kind.USER_UPDATED, 1L, 2, "newer", "older", false, 1000, null));
+    clusterSync.receive(new InvalidationMessage("remote", Kind.USER_UPDATED, 1L, 1, "older", "oldest", true, 2000, null));
+
+    verify(usernameIndex, never()).rename("oldest", "older");
+    verify(presenceBuffer).applyRemote(1L, true, 2000L);
+    UserEvent event = (UserEvent) remoteEvents.get(1);
+    assertEquals("newer", event.getUser().getUsername());
+    assertTrue(event.getUser().isLoggedIn());
+    assertEquals(2, event.getVersion());
+    assertNull(event.getPreviousUsername());
+  }
+
+  @Test
+  public void newerDataOlderPresence_publishesCurrentPresence() {
+    clusterSync.receive(new InvalidationMessage("remote", Kind.USER_UPDATED, 1L, 1, "older", "oldest", true, 2000, null));
+    clusterSync.receive(new InvalidationMessage("remote", Kind.USER_UPDATED, 1L, 2, "newer", "older", false, 1000, null));
+
+    verify(usernameIndex).rename("older", "newer");
+    verify(presenceBuffer, never()).applyRemote(eq(1L), eq(false), anyLong());
+    UserEvent event = (UserEvent) remoteEvents.get(1);
+    assertEquals("newer", event.getUser().getUsername());
+    assertTrue(event.getUser().isLoggedIn());
+    assertEquals("older", event.getPreviousUsername());
+  }
+
+  @Test
+  public void loggedInBeforeUpdate_updateStillApplied() {
+    clusterSync.receive(new InvalidationMessage("remote", Kind.USER_LOGGED_IN, 1L, 2, "newer", null, true, 2000, null));
+    clusterSync.receive(new InvalidationMessage("remote", Kind.USER_UPDATED, 1L, 2, "newer", "older", false, 1000, null));
+
+    verify(usernameIndex).rename("older", "newer");
+    verify(presenceBuffer, never()).applyRemote(eq(1L), eq(false), anyLong());
+    UserEvent event = (UserEvent) remoteEvents.get(1);
+    assertEquals(UserEvent.Type.UPDATED, event.getType());
+    assertTrue(event.getUser().isLoggedIn());
+  }
+
+  @Test
+  public void localChange_newerThanRemote_keepsLocal() {
+    now.set(5000);
+    clusterSync.onUserEvent(UserEvent.updated(user(3, "local", false), "local"));
+
+    clusterSync.receive(new InvalidationMessage("remote", Kind.USER_LOGGED_IN, 1L, 2, "remote", null, true, 4000, null));
+
+    verify(presenceBuffer, never()).applyRemote(any(), anyBoolean(), anyLong());
+    verifyNoInteractions(usernameIndex, searchIndex);
+    assertTrue(remoteEvents.isEmpty());
+  }
+
+  @Test
+  public void loggedIn_appliesPresenceOnly() {
+    clusterSync.receive(new InvalidationMessage("remote", Kind.USER_LOGGED_IN, 1L, 0, "user", null, true, 2000, null));
+
+    verify(presenceBuffer).applyRemote(1L, true, 2000L);
+    verify(usernameIndex, never()).add(any());
+    verify(searchIndex, never()).add(anyLong(), any());
+    assertEquals(UserEvent.Type.LOGGED_IN, ((UserEvent) remoteEvents.get(0)).getType());
+  }
+
+  @Test
+  public void ownMessage_ignored() {
+    clusterSync.receive(new InvalidationMessage("local", Kind.USER_CREATED, 1L, 0, "user", null, true, 2000, null));
+
+    verifyNoInteractions(presenceBuffer, usernameIndex, searchIndex);
+    assertTrue(remoteEvents.isEmpty());
+  }
+
+  @Test
+  public void sessions_replicated() {
+    remoteSync.onSessionEvent(new SessionEvent("token-hash", 1L, false));
+    remoteSync.onSessionEvent(new SessionEvent("token-hash", 1L, true));
+
+    InOrder order = inOrder(sessionStore);
+    order.verify(sessionStore).addReplica("token-hash", 1L);
+    order.verify(sessionStore).removeReplica("token-hash");
+  }
+
+  @Test
+  public void signedDatagram_verifiedOnlyWithSameSecret() {
+    DatagramSigner signer = new DatagramSigner("secret");
+    byte[] message = "{\"kind\":\"SESSION_CREATED\"}".getBytes(StandardCharsets.UTF_8);
+    byte[] datagram = signer.sign(message);
+
+    assertTrue(signer.verify(datagram, 0, datagram.length));
+    assertFalse(new DatagramSigner("other").verify(datagram, 0, datagram.length));
+    assertFalse(signer.verify(message, 0, message.length));
+    datagram[datagram.length - 1] ^= 1;
+    assertFalse(signer.verify(datagram, 0, datagram.length));
+  }
+
+  @Test
+  public void multicastChannel_withoutSecret_refusesToStart() {
+    assertThrows(IllegalStateException.class, () -> new MulticastInvalidationChannel("239.1.1.1", 45600, "", " ",
+            new ObjectMapper(), new SimpleMeterRegistry()));
+  }
+
+  @Test
+  public void lateJoiningNode_acceptsExistingSession() {
+    EmbeddedDatabase database = sessionDatabase();
+    List<LoopbackInvalidationChannel> channels = new ArrayList<>();
+    try {
+      JdbcTemplate jdbcTemplate = new JdbcTemplate(database);
+      SessionStore first = newSessionNode("first", jdbcTemplate, Duration.ofHours(1), channels);
+      String token = first.create(1L);
+
+      SessionStore joined = newSessionNode("joined", jdbcTemplate, Duration.ofHours(1), channels);
+
+      assertEquals(Optional.of(1L), joined.authenticate(token));
+      assertTrue(joined.revoke(token));
+      assertTrue(first.authenticate(token).isEmpty());
+    } finally {
+      channels.forEach(LoopbackInvalidationChannel::close);
+      database.shutdown();
+    }
+  }
+
+  @Test
+  public void droppedRevoke_rejectedAfterRevalidation() {
+    EmbeddedDatabase database = sessionDatabase();
+    List<LoopbackInvalidationChannel> channels = new ArrayList<>();
+    try {
+      JdbcTemplate jdbcTemplate = new JdbcTemplate(database);
+      SessionStore origin = newSessionNode("origin", jdbcTemplate, Duration.ofHours(1), channels);
+      // revalidated on every use, as if the interval passed since the revoke
+      SessionStore replica = newSessionNode("replica", jdbcTemplate, Duration.ZERO, channels);
+      String token = origin.create(1L);
+      assertEquals(Optional.of(1L), replica.authenticate(token));
+
+      // the replica misses the revoke
+      channels.get(1).close();
+      assertTrue(origin.revoke(token));
+
+      assertTrue(replica.authenticate(token).isEmpty());
+    } finally {
+      channels.forEach(LoopbackInvalidationChannel::close);
+      database.shutdown();
+    }
+  }
+
+  @Test
+  public void revokeBeforeCreate_sessionStaysRevoked() {
+    EmbeddedDatabase database = sessionDatabase();
+    List<LoopbackInvalidationChannel> channels = new ArrayList<>();
+    try {
+      JdbcTemplate jdbcTemplate = new JdbcTemplate(database);
+      SessionStore origin = newSessionNode("origin", jdbcTemplate, Duration.ofHours(1), channels);
+      String token = origin.create(1L);
+      assertTrue(origin.revoke(token));
+      String tokenHash = SessionStore.hashToken(token);
+      SessionStore replica = new SessionStore(Duration.ofMinutes(30), Duration.ofHours(1), jdbcTemplate,
+              new SimpleMeterRegistry(), event -> {});
+      ClusterSync replicaSync = new ClusterSync("replica", remoteChannel, new ConcurrentMapCache("users"),
+              usernameIndex, searchIndex, presenceBuffer, replica, remoteEvents::add, new SimpleMeterRegistry(),
+              now::get);
+
+      // the datagrams of the origin arrive in reverse order
+      replicaSync.receive(InvalidationMessage.session("origin", Kind.SESSION_REVOKED, tokenHash, 1L));
+      replicaSync.receive(InvalidationMessage.session("origin", Kind.SESSION_CREATED, tokenHash, 1L));
+
+      assertTrue(replica.authenticate(token).isEmpty());
+    } finally {
+      channels.forEach(LoopbackInvalidationChannel::close);
+      database.shutdown();
+    }
+  }
+}
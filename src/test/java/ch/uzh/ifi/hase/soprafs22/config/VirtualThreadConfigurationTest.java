@@ -0,0 +1,61 @@
+package ch.uzh.ifi.hase.soprafs22.config;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static ch.uzh.ifi.hase.soprafs22.config.VirtualThreadConfiguration.PARALLELISM_PROPERTY;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class VirtualThreadConfigurationTest {
+
+  private String configuredParallelism;
+
+  @BeforeEach
+  public void setup() {
+    configuredParallelism = System.getProperty(PARALLELISM_PROPERTY);
+    System.clearProperty(PARALLELISM_PROPERTY);
+  }
+
+  @AfterEach
+  public void restore() {
+    if (configuredParallelism == null)
+      System.clearProperty(PARALLELISM_PROPERTY);
+    else
+      System.setProperty(PARALLELISM_PROPERTY, configuredParallelism);
+  }
+
+  @Test
+  public void reserveCarrierThreads_exceedsConnectionPool() {
+    VirtualThreadConfiguration.reserveCarrierThreads(1000);
+
+    assertEquals("1001", System.getProperty(PARALLELISM_PROPERTY));
+  }
+
+  @Test
+  public void reserveCarrierThreads_keepsConfiguredParallelism() {
+    System.setProperty(PARALLELISM_PROPERTY, "4");
+
+    VirtualThreadConfiguration.reserveCarrierThreads(1000);
+
+    assertEquals("4", System.getProperty(PARALLELISM_PROPERTY));
+  }
+
+  @Test
+  public void newVirtualThreadPerTaskExecutor_requiresJava21() throws Exception {
+    if (Runtime.version().feature() < 21) {
+      assertThrows(IllegalStateException.class, VirtualThreadConfiguration::newVirtualThreadPerTaskExecutor);
+      return;
+    }
+    ExecutorService executor = VirtualThreadConfiguration.newVirtualThreadPerTaskExecutor();
+    try {
+      assertTrue(executor.submit(() -> (Boolean) Thread.class.getMethod("isVirtual").invoke(Thread.currentThread()))
+              .get(10, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
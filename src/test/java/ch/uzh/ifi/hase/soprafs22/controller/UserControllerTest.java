@@ -1,34 +1,64 @@
 package ch.uzh.ifi.hase.soprafs22.controller;
 
+import ch.uzh.ifi.hase.soprafs22.config.RateLimitProperties;
 import ch.uzh.ifi.hase.soprafs22.model.User;
 import ch.uzh.ifi.hase.soprafs22.model.UserDTO;
+import ch.uzh.ifi.hase.soprafs22.model.UserEvent;
+import ch.uzh.ifi.hase.soprafs22.model.UserImportResult;
+import ch.uzh.ifi.hase.soprafs22.model.UserListVersion;
+import ch.uzh.ifi.hase.soprafs22.model.UserSummary;
+import ch.uzh.ifi.hase.soprafs22.service.ConcurrencyLimiter;
+import ch.uzh.ifi.hase.soprafs22.service.RateLimiter;
+import ch.uzh.ifi.hase.soprafs22.service.SessionStore;
+import ch.uzh.ifi.hase.soprafs22.service.UserEventBroadcaster;
 import ch.uzh.ifi.hase.soprafs22.service.UserService;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Import;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
 import org.springframework.web.server.ResponseStatusException;
 
-import java.util.Date;
-import java.util.List;
-import java.util.Optional;
+import java.net.URI;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
 
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
-import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
-import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 
-@WebMvcTest(UserController.class)
+// the validate route refills slowly enough that its burst can be exhausted within a test
+@WebMvcTest(value = UserController.class, properties = "users.rate-limit.routes[/users/validate].refill-per-second=0.01")
+@Import({SimpleMeterRegistry.class, SessionStore.class, RateLimitProperties.class, RateLimiter.class,
+        ConcurrencyLimiter.class, UserEventBroadcaster.class})
 public class UserControllerTest {
 
   ObjectMapper mapper = new ObjectMapper().registerModule(new JavaTimeModule());
@@ -36,9 +66,27 @@ public class UserControllerTest {
   @Autowired
   private MockMvc mockMvc;
 
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  @Autowired
+  private SessionStore sessionStore;
+
+  @Autowired
+  private UserEventBroadcaster eventBroadcaster;
+
   @MockBean
   private UserService userService;
 
+  // sessions are cached on the node that created them, so the store reads nothing back from the database here
+  @MockBean
+  private JdbcTemplate jdbcTemplate;
+
+  @BeforeEach
+  public void setup() {
+    given(userService.getUserListVersion()).willReturn(new UserListVersion(2L, 3L, new Date(1000L)));
+  }
+
   @Test
   public void givenUsers_whenGetUsers_returnUsersList() throws Exception {
     User user1 = new User();
@@ -59,6 +107,150 @@ public class UserControllerTest {
         .andExpect(jsonPath("$[1].loggedIn", is(user2.isLoggedIn())));
   }
 
+  @Test
+  public void givenUnchangedUsers_whenGetUsersWithETag_returnNotModified() throws Exception {
+    MockHttpServletRequestBuilder getRequest = get("/users")
+        .contentType(MediaType.APPLICATION_JSON)
+        .header(HttpHeaders.IF_NONE_MATCH, new UserListVersion(2L, 3L, new Date(1000L)).toETag());
+
+    mockMvc.perform(getRequest).andExpect(status().isNotModified()).andExpect(content().string(""));
+    Mockito.verify(userService, Mockito.never()).getAllUsers();
+  }
+
+  @Test
+  public void givenChangedUsers_whenGetUsersWithETag_returnUsersList() throws Exception {
+    given(userService.getAllUsers()).willReturn(List.of(new User()));
+    MockHttpServletRequestBuilder getRequest = get("/users")
+        .contentType(MediaType.APPLICATION_JSON)
+        .header(HttpHeaders.IF_NONE_MATCH, new UserListVersion(2L, 2L, new Date(1000L)).toETag());
+
+    mockMvc.perform(getRequest).andExpect(status().isOk())
+        .andExpect(jsonPath("$", hasSize(1)))
+        .andExpect(header().string(HttpHeaders.ETAG, new UserListVersion(2L, 3L, new Date(1000L)).toETag()));
+  }
+
+  @Test
+  public void givenBufferedPresenceChange_whenGetUsersIfModifiedSince_returnUsersList() throws Exception {
+    given(userService.getAllUsers()).willReturn(List.of(new User()));
+    HttpHeaders headers = new HttpHeaders();
+    headers.setIfModifiedSince(1_000_000L);
+
+    given(userService.getUserListVersion()).willReturn(new UserListVersion(2L, 3L, new Date(1_000_000L)));
+    mockMvc.perform(get("/users").headers(headers)).andExpect(status().isNotModified());
+
+    // a presence change that is not written yet, after the last stored modification
+    given(userService.getUserListVersion()).willReturn(new UserListVersion(2L, 3L, new Date(1_000_000L), 1_005_000L));
+    mockMvc.perform(get("/users").headers(headers)).andExpect(status().isOk())
+        .andExpect(jsonPath("$", hasSize(1)))
+        .andExpect(header().dateValue(HttpHeaders.LAST_MODIFIED, 1_005_000L));
+  }
+
+  @Test
+  public void givenUsers_whenGetUsersPage_returnPageWithNextLink() throws Exception {
+    User user1 = new User();
+    user1.setUsername("user-1");
+    User user2 = new User();
+    user2.setUsername("user-2");
+    given(userService.getUsersAfter("user-0", 2)).willReturn(List.of(user1, user2));
+
+    MockHttpServletRequestBuilder getRequest = get("/users?after=user-0&limit=2").contentType(MediaType.APPLICATION_JSON);
+    mockMvc.perform(getRequest).andExpect(status().isOk())
+        .andExpect(jsonPath("$", hasSize(2)))
+        .andExpect(jsonPath("$[1].username", is(user2.getUsername())))
+        .andExpect(header().string(HttpHeaders.LINK, containsString("after=user-2&limit=2")));
+  }
+
+  @Test
+  public void givenUsernameWithReservedCharacters_whenGetUsersPage_nextLinkKeepsCursor() throws Exception {
+    User user1 = new User();
+    user1.setUsername("user+1");
+    User user2 = new User();
+    user2.setUsername("user+2&limit=9");
+    given(userService.getUsersAfter("user 0", 2)).willReturn(List.of(user1, user2));
+    given(userService.getUsersAfter("user+2&limit=9", 2)).willReturn(List.of());
+
+    String link = mockMvc.perform(get(URI.create("/users?after=user%200&limit=2"))).andExpect(status().isOk())
+        .andExpect(header().string(HttpHeaders.LINK, containsString("after=user%2B2%26limit%3D9&limit=2")))
+        .andReturn().getResponse().getHeader(HttpHeaders.LINK);
+
+    String next = link.substring(link.indexOf('<') + 1, link.indexOf('>'));
+    mockMvc.perform(get(URI.create(next))).andExpect(status().isOk());
+    Mockito.verify(userService).getUsersAfter("user+2&limit=9", 2);
+  }
+
+  @Test
+  public void givenUsers_whenGetUsersPageWithSummaryFields_returnSummaries() throws Exception {
+    UserSummary user1 = new UserSummary(1L, "user-1", true);
+    UserSummary user2 = new UserSummary(2L, "user-2", false);
+    given(userService.getUserSummariesAfter(null, 2)).willReturn(List.of(user1, user2));
+
+    MockHttpServletRequestBuilder getRequest = get("/users?limit=2&fields=id,username").contentType(MediaType.APPLICATION_JSON);
+    mockMvc.perform(getRequest).andExpect(status().isOk())
+        .andExpect(jsonPath("$", hasSize(2)))
+        .andExpect(jsonPath("$[1].username", is(user2.getUsername())))
+        .andExpect(jsonPath("$[1].birthday").doesNotExist())
+        .andExpect(header().string(HttpHeaders.LINK, containsString("after=user-2&limit=2")));
+    Mockito.verify(userService, Mockito.never()).getUsersAfter(any(), anyInt());
+
+    mockMvc.perform(get("/users?fields=username,password")).andExpect(status().isBadRequest());
+  }
+
+  @Test
+  public void givenUser_whenGetUserWithSummaryFields_returnSummary() throws Exception {
+    User user = new User();
+    user.setId(1L);
+    user.setUsername("user");
+    user.setBirthday(new Date());
+    given(userService.getUserById(1L)).willReturn(Optional.of(user));
+
+    mockMvc.perform(get("/users/1?fields=username,loggedIn")).andExpect(status().isOk())
+        .andExpect(jsonPath("$.username", is(user.getUsername())))
+        .andExpect(jsonPath("$.birthday").doesNotExist());
+    mockMvc.perform(get("/users/1?fields=username,birthday")).andExpect(status().isOk())
+        .andExpect(jsonPath("$.birthday").exists());
+  }
+
+  @Test
+  public void getUsersPage_lastPage_returnPageWithoutNextLink() throws Exception {
+    User user1 = new User();
+    user1.setUsername("user-1");
+    given(userService.getUsersAfter(null, 2)).willReturn(List.of(user1));
+
+    MockHttpServletRequestBuilder getRequest = get("/users?limit=2").contentType(MediaType.APPLICATION_JSON);
+    mockMvc.perform(getRequest).andExpect(status().isOk())
+        .andExpect(jsonPath("$", hasSize(1)))
+        .andExpect(header().doesNotExist(HttpHeaders.LINK));
+  }
+
+  @Test
+  public void getUsersPage_invalidLimit_throwException() throws Exception {
+    MockHttpServletRequestBuilder getRequest = get("/users?limit=0").contentType(MediaType.APPLICATION_JSON);
+    mockMvc.perform(getRequest).andExpect(status().isBadRequest());
+  }
+
+  @Test
+  public void givenUsers_whenStreamUsers_returnNewlineDelimitedUsers() throws Exception {
+    User user1 = new User();
+    user1.setUsername("user-1");
+    User user2 = new User();
+    user2.setUsername("user-2");
+    doAnswer(invocation -> {
+      Consumer<User> consumer = invocation.getArgument(0);
+      consumer.accept(user1);
+      consumer.accept(user2);
+      return null;
+    }).when(userService).streamAllUsers(any());
+
+    MvcResult result = mockMvc.perform(get("/users").accept(UserController.APPLICATION_NDJSON_VALUE))
+        .andExpect(request().asyncStarted()).andReturn();
+    String[] lines = mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk())
+        .andReturn().getResponse().getContentAsString().split("\n");
+
+    assertEquals(2, lines.length);
+    assertEquals(user1.getUsername(), mapper.readTree(lines[0]).get("username").asText());
+    assertEquals(user2.getUsername(), mapper.readTree(lines[1]).get("username").asText());
+  }
+
   @Test
   public void createUser_validInput_returnCreatedUser() throws Exception {
     User user = new User();
@@ -114,6 +306,43 @@ public class UserControllerTest {
     mockMvc.perform(postRequest).andExpect(status().isBadRequest());
   }
 
+  @Test
+  public void importUsers_newlineDelimited_returnResults() throws Exception {
+    doAnswer(invocation -> {
+      List<UserImportResult> results = new ArrayList<>();
+      Iterator<UserDTO> newUsers = invocation.getArgument(0);
+      while (newUsers.hasNext())
+        results.add(new UserImportResult(results.size(), newUsers.next().getUsername(), 1L, 201, null));
+      return results;
+    }).when(userService).importUsers(any());
+
+    MockHttpServletRequestBuilder postRequest = post("/users/bulk")
+            .contentType(UserController.APPLICATION_NDJSON_VALUE)
+            .content("{\"username\":\"user-1\",\"password\":\"test\"}\n{\"username\":\"user-2\",\"password\":\"test\"}\n");
+
+    mockMvc.perform(postRequest)
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$", hasSize(2)))
+            .andExpect(jsonPath("$[1].username", is("user-2")))
+            .andExpect(jsonPath("$[1].status", is(201)));
+  }
+
+  @Test
+  public void importUsers_malformedInput_throwException() throws Exception {
+    doAnswer(invocation -> {
+      Iterator<UserDTO> newUsers = invocation.getArgument(0);
+      while (newUsers.hasNext())
+        newUsers.next();
+      return List.of();
+    }).when(userService).importUsers(any());
+
+    MockHttpServletRequestBuilder postRequest = post("/users/bulk")
+            .contentType(MediaType.APPLICATION_JSON)
+            .content("[{\"username\":\"user-1\",\"password\":\"test\"}, {\"username\":");
+
+    mockMvc.perform(postRequest).andExpect(status().isBadRequest());
+  }
+
   @Test
   public void getById_userFound_returnUser() throws Exception {
     User user = new User();
@@ -132,6 +361,43 @@ public class UserControllerTest {
             .andExpect(jsonPath("$.loggedIn", is(user.isLoggedIn())));
   }
 
+  @Test
+  public void givenUnchangedUser_whenGetByIdWithETag_returnNotModified() throws Exception {
+    User user = new User();
+    user.setId(1L);
+    user.setUsername("user");
+    user.setVersion(4L);
+
+    given(userService.getUserById(1L)).willReturn(Optional.of(user));
+    MvcResult result = mockMvc.perform(get("/users/1").contentType(MediaType.APPLICATION_JSON))
+            .andExpect(status().isOk()).andReturn();
+    String eTag = result.getResponse().getHeader(HttpHeaders.ETAG);
+
+    mockMvc.perform(get("/users/1").contentType(MediaType.APPLICATION_JSON).header(HttpHeaders.IF_NONE_MATCH, eTag))
+            .andExpect(status().isNotModified());
+
+    user.setVersion(5L);
+    mockMvc.perform(get("/users/1").contentType(MediaType.APPLICATION_JSON).header(HttpHeaders.IF_NONE_MATCH, eTag))
+            .andExpect(status().isOk());
+  }
+
+  @Test
+  public void givenLoggedOutUser_whenGetByIdWithETag_returnUser() throws Exception {
+    User user = new User();
+    user.setId(1L);
+    user.setUsername("user");
+    user.setVersion(4L);
+
+    given(userService.getUserById(1L)).willReturn(Optional.of(user));
+    MvcResult result = mockMvc.perform(get("/users/1").contentType(MediaType.APPLICATION_JSON))
+            .andExpect(status().isOk()).andReturn();
+    String eTag = result.getResponse().getHeader(HttpHeaders.ETAG);
+
+    user.setLoggedIn(false);
+    mockMvc.perform(get("/users/1").contentType(MediaType.APPLICATION_JSON).header(HttpHeaders.IF_NONE_MATCH, eTag))
+            .andExpect(status().isOk());
+  }
+
   @Test
   public void getById_userNotFound_throwException() throws Exception {
     given(userService.getUserById(1L)).willReturn(Optional.empty());
@@ -155,12 +421,87 @@ public class UserControllerTest {
     userDTO.setLoggedIn(true);
 
     given(userService.getUserById(1L)).willReturn(Optional.of(user));
+    given(userService.updateUserData(any(), any())).willReturn(user);
 
     MockHttpServletRequestBuilder putRequest = put("/users/1")
+            .header(HttpHeaders.AUTHORIZATION, bearerSession(1L))
             .contentType(MediaType.APPLICATION_JSON)
             .content(asJsonString(userDTO));
 
-    mockMvc.perform(putRequest).andExpect(status().isNoContent());
+    mockMvc.perform(putRequest)
+            .andExpect(status().isNoContent())
+            .andExpect(header().string(HttpHeaders.ETAG, user.toETag()));
+  }
+
+  @Test
+  public void updateUserData_ifMatch() throws Exception {
+    User user = new User();
+    user.setId(1L);
+    user.setUsername("user");
+    user.setVersion(2L);
+    UserDTO userDTO = new UserDTO();
+    userDTO.setUsername("user-2");
+    given(userService.getUserById(1L)).willReturn(Optional.of(user));
+    given(userService.updateUserData(any(), any())).willReturn(user);
+
+    mockMvc.perform(put("/users/1").contentType(MediaType.APPLICATION_JSON).content(asJsonString(userDTO))
+                    .header(HttpHeaders.AUTHORIZATION, bearerSession(1L))
+                    .header(HttpHeaders.IF_MATCH, "\"1-1-1\""))
+            .andExpect(status().isPreconditionFailed());
+    mockMvc.perform(put("/users/1").contentType(MediaType.APPLICATION_JSON).content(asJsonString(userDTO))
+                    .header(HttpHeaders.AUTHORIZATION, bearerSession(1L))
+                    .header(HttpHeaders.IF_MATCH, "\"1-1-1\", \"1-2-1\""))
+            .andExpect(status().isNoContent());
+    mockMvc.perform(put("/users/1").contentType(MediaType.APPLICATION_JSON).content(asJsonString(userDTO))
+                    .header(HttpHeaders.AUTHORIZATION, bearerSession(1L))
+                    .header(HttpHeaders.IF_MATCH, user.toETag()))
+            .andExpect(status().isNoContent());
+    verify(userService, times(2)).updateUserData(any(), any());
+  }
+
+  @Test
+  public void updateUserData_ifMatch_comparesTagsIgnoringWeakness() throws Exception {
+    User user = new User();
+    user.setId(1L);
+    user.setUsername("user");
+    user.setVersion(2L);
+    UserDTO userDTO = new UserDTO();
+    userDTO.setUsername("user-2");
+    given(userService.getUserById(1L)).willReturn(Optional.of(user));
+    given(userService.updateUserData(any(), any())).willReturn(user);
+
+    // deviation from the strong comparison of RFC 7232, see UserController.matchesETag
+    assertEquals("W/\"1-2-1\"", user.toETag());
+    for (String ifMatch : List.of("W/\"1-2-1\"", "\"1-2-1\"", "*"))
+      mockMvc.perform(put("/users/1").contentType(MediaType.APPLICATION_JSON).content(asJsonString(userDTO))
+                      .header(HttpHeaders.AUTHORIZATION, bearerSession(1L))
+                      .header(HttpHeaders.IF_MATCH, ifMatch))
+              .andExpect(status().isNoContent());
+    mockMvc.perform(put("/users/1").contentType(MediaType.APPLICATION_JSON).content(asJsonString(userDTO))
+                    .header(HttpHeaders.AUTHORIZATION, bearerSession(1L))
+                    .header(HttpHeaders.IF_MATCH, "W/\"1-1-1\""))
+            .andExpect(status().isPreconditionFailed());
+    verify(userService, times(3)).updateUserData(any(), any());
+  }
+
+  @Test
+  public void updateUserData_changedConcurrently_conflict() throws Exception {
+    User user = new User();
+    user.setId(1L);
+    user.setUsername("user");
+    user.setVersion(2L);
+    UserDTO userDTO = new UserDTO();
+    userDTO.setUsername("user-2");
+    given(userService.getUserById(1L)).willReturn(Optional.of(user));
+    given(userService.updateUserData(any(), any())).willThrow(new OptimisticLockingFailureException("changed"));
+
+    mockMvc.perform(put("/users/1").contentType(MediaType.APPLICATION_JSON).content(asJsonString(userDTO))
+            .header(HttpHeaders.AUTHORIZATION, bearerSession(1L)))
+            .andExpect(status().isConflict());
+    mockMvc.perform(put("/users/1").contentType(MediaType.APPLICATION_JSON).content(asJsonString(userDTO))
+                    .header(HttpHeaders.AUTHORIZATION, bearerSession(1L))
+                    .header(HttpHeaders.IF_MATCH, user.toETag()))
+            .andExpect(status().isPreconditionFailed());
   }
 
   @Test
@@ -174,12 +515,78 @@ public class UserControllerTest {
     given(userService.getUserById(1L)).willReturn(Optional.empty());
 
     MockHttpServletRequestBuilder putRequest = put("/users/1")
+            .header(HttpHeaders.AUTHORIZATION, bearerSession(1L))
             .contentType(MediaType.APPLICATION_JSON)
             .content(asJsonString(userDTO));
 
     mockMvc.perform(putRequest).andExpect(status().isNotFound());
   }
 
+  @Test
+  public void updateUserData_withoutSession_unauthorized() throws Exception {
+    UserDTO userDTO = new UserDTO();
+    userDTO.setUsername("other");
+
+    MockHttpServletRequestBuilder putRequest = put("/users/1")
+            .contentType(MediaType.APPLICATION_JSON)
+            .content(asJsonString(userDTO));
+
+    mockMvc.perform(putRequest).andExpect(status().isUnauthorized());
+    verify(userService, times(0)).getUserById(any());
+    verify(userService, times(0)).updateUserData(any(), any());
+  }
+
+  @Test
+  public void givenUsers_whenSearch_returnMatches() throws Exception {
+    User user = new User();
+    user.setId(1L);
+    user.setUsername("firstname@lastname");
+
+    given(userService.searchUsers("first", UserController.DEFAULT_SEARCH_LIMIT)).willReturn(List.of(user));
+
+    mockMvc.perform(get("/users/search").param("q", " first ").contentType(MediaType.APPLICATION_JSON))
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$", hasSize(1)))
+            .andExpect(jsonPath("$[0].username", is(user.getUsername())));
+    mockMvc.perform(get("/users/search").param("q", " ")).andExpect(status().isBadRequest());
+    mockMvc.perform(get("/users/search").param("q", "first").param("limit", "0")).andExpect(status().isBadRequest());
+  }
+
+  @Test
+  public void givenUsers_whenGetByIds_returnUsers() throws Exception {
+    User first = new User();
+    first.setId(2L);
+    first.setUsername("first");
+    User second = new User();
+    second.setId(1L);
+    second.setUsername("second");
+    second.setCreationDate(new Date());
+
+    given(userService.getUsersByIds(List.of(2L, 1L, 3L))).willReturn(List.of(first, second));
+
+    mockMvc.perform(get("/users").param("ids", "2,1,3"))
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$", hasSize(2)))
+            .andExpect(jsonPath("$[0].username", is("first")))
+            .andExpect(jsonPath("$[1].creationDate").exists());
+    mockMvc.perform(post("/users/batch").param("fields", "id,username").contentType(MediaType.APPLICATION_JSON)
+                    .content("[2, 1, 3]"))
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$", hasSize(2)))
+            .andExpect(jsonPath("$[1].username", is("second")))
+            .andExpect(jsonPath("$[1].creationDate").doesNotExist());
+    mockMvc.perform(get("/users").param("ids", "1,x")).andExpect(status().isBadRequest());
+  }
+
+  @Test
+  public void getByIds_tooManyIds_badRequest() throws Exception {
+    String ids = LongStream.rangeClosed(1, UserController.MAX_PAGE_SIZE + 1).mapToObj(Long::toString)
+            .collect(Collectors.joining(","));
+
+    mockMvc.perform(post("/users/batch").contentType(MediaType.APPLICATION_JSON).content("[" + ids + "]"))
+            .andExpect(status().isBadRequest());
+  }
+
   @Test
   public void givenUser_doLogin_returnUser() throws Exception {
     User user = new User();
@@ -201,7 +608,107 @@ public class UserControllerTest {
             .andExpect(status().isOk())
             .andExpect(jsonPath("$.id", is(user.getId().intValue())))
             .andExpect(jsonPath("$.username", is(user.getUsername())))
-            .andExpect(jsonPath("$.loggedIn", is(user.isLoggedIn())));
+            .andExpect(jsonPath("$.loggedIn", is(user.isLoggedIn())))
+            .andExpect(header().string(HttpHeaders.AUTHORIZATION, startsWith("Bearer ")));
+  }
+
+  @Test
+  public void givenExpiredSession_doLogin_returnUser() throws Exception {
+    User user = new User();
+    user.setId(1L);
+    user.setUsername("user");
+    user.setLoggedIn(true);
+
+    UserDTO userDTO = new UserDTO();
+    userDTO.setUsername("user");
+    userDTO.setPassword("test");
+
+    given(userService.getUserByCredentialsAndLogIn(userDTO)).willReturn(Optional.of(user));
+
+    // a stale token left over from an earlier session must not lock the client out of the public routes
+    MockHttpServletRequestBuilder postRequest = post("/users/login")
+            .header(HttpHeaders.AUTHORIZATION, "Bearer expired")
+            .contentType(MediaType.APPLICATION_JSON)
+            .content(asJsonString(userDTO));
+
+    mockMvc.perform(postRequest)
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$.id", is(user.getId().intValue())))
+            .andExpect(header().string(HttpHeaders.AUTHORIZATION, startsWith("Bearer ")));
+  }
+
+  @Test
+  public void givenExpiredSession_whenPutUser_thenUnauthorizedWithCorsHeaders() throws Exception {
+    UserDTO userDTO = new UserDTO();
+    userDTO.setUsername("other");
+
+    MockHttpServletRequestBuilder putRequest = put("/users/1")
+            .header(HttpHeaders.AUTHORIZATION, "Bearer expired")
+            .header(HttpHeaders.ORIGIN, "https://client.example")
+            .contentType(MediaType.APPLICATION_JSON)
+            .content(asJsonString(userDTO));
+
+    mockMvc.perform(putRequest)
+            .andExpect(status().isUnauthorized())
+            .andExpect(header().string(HttpHeaders.ACCESS_CONTROL_ALLOW_ORIGIN, "*"));
+    verify(userService, times(0)).updateUserData(any(), any());
+  }
+
+  @Test
+  public void subscribeEvents_thenCreateUser_pushEvent() throws Exception {
+    MvcResult result = mockMvc.perform(get("/users/events").accept(MediaType.TEXT_EVENT_STREAM))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+    User user = new User();
+    user.setId(1L);
+    user.setUsername("user");
+
+    eventBroadcaster.onUserEvent(UserEvent.of(UserEvent.Type.CREATED, user));
+
+    String expected = "event:created\ndata:{\"id\":1,\"username\":\"user\",\"loggedIn\":true}";
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!result.getResponse().getContentAsString().contains(expected) && System.currentTimeMillis() < deadline)
+      Thread.sleep(10);
+    assertTrue(result.getResponse().getContentAsString().contains(expected));
+    assertTrue(result.getResponse().getContentType().startsWith(MediaType.TEXT_EVENT_STREAM_VALUE));
+  }
+
+  @Test
+  public void subscribeEventsWithLastEventId_resync() throws Exception {
+    MvcResult result = mockMvc.perform(get("/users/events").header("Last-Event-ID", "42"))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!result.getResponse().getContentAsString().contains("event:resync") && System.currentTimeMillis() < deadline)
+      Thread.sleep(10);
+    assertTrue(result.getResponse().getContentAsString().contains("event:resync"));
+  }
+
+  @Test
+  public void givenSession_doLogout_revokeSession() throws Exception {
+    String token = sessionStore.create(1L);
+
+    mockMvc.perform(post("/users/logout").header(HttpHeaders.AUTHORIZATION, "Bearer " + token))
+            .andExpect(status().isNoContent());
+    assertTrue(sessionStore.authenticate(token).isEmpty());
+    mockMvc.perform(post("/users/logout").header(HttpHeaders.AUTHORIZATION, "Bearer " + token))
+            .andExpect(status().isUnauthorized());
+    mockMvc.perform(post("/users/logout")).andExpect(status().isUnauthorized());
+  }
+
+  @Test
+  public void givenSessionOfOtherUser_whenPutUser_thenForbidden() throws Exception {
+    String token = sessionStore.create(2L);
+    UserDTO userDTO = new UserDTO();
+    userDTO.setUsername("other");
+
+    MockHttpServletRequestBuilder putRequest = put("/users/1")
+            .header(HttpHeaders.AUTHORIZATION, "Bearer " + token)
+            .contentType(MediaType.APPLICATION_JSON)
+            .content(asJsonString(userDTO));
+
+    mockMvc.perform(putRequest).andExpect(status().isForbidden());
   }
 
   @Test
@@ -216,7 +723,9 @@ public class UserControllerTest {
             .contentType(MediaType.APPLICATION_JSON)
             .content(asJsonString(userDTO));
 
+    double failedLogins = meterRegistry.counter("users.logins", "result", "failure").count();
     mockMvc.perform(postRequest).andExpect(status().isUnauthorized());
+    assertEquals(failedLogins + 1, meterRegistry.counter("users.logins", "result", "failure").count());
   }
 
   @Test
@@ -288,6 +797,27 @@ public class UserControllerTest {
     mockMvc.perform(postRequest).andExpect(status().isOk()).andExpect(jsonPath("$", is(false)));
   }
 
+  @Test
+  public void isAvailableUsername_tooManyRequests() throws Exception {
+    UserDTO userDTO = new UserDTO();
+    userDTO.setUsername("user");
+    given(userService.isExistingUsername("user")).willReturn(false);
+
+    MockHttpServletRequestBuilder postRequest = post("/users/validate")
+            .with(request -> {
+              request.setRemoteAddr("10.0.0.1");
+              return request;
+            })
+            .contentType(MediaType.APPLICATION_JSON)
+            .content(asJsonString(userDTO));
+    // the configured burst of the route
+    for (int i = 0; i < 30; i++)
+      mockMvc.perform(postRequest).andExpect(status().isOk());
+    mockMvc.perform(postRequest)
+            .andExpect(status().isTooManyRequests())
+            .andExpect(header().exists(HttpHeaders.RETRY_AFTER));
+  }
+
   /**
    * Helper Method for converting a userDTO object into a JSON string.
    * @param userDTO      userDTO with the intended request content
@@ -301,4 +831,12 @@ public class UserControllerTest {
       throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
     }
   }
+
+  /**
+   * @param userId  ID of the user owning the session
+   * @return        'Authorization' header value with the token of a new session
+   */
+  private String bearerSession(long userId) {
+    return "Bearer " + sessionStore.create(userId);
+  }
 }
\ No newline at end of file
@@ -0,0 +1,123 @@
+package ch.uzh.ifi.hase.soprafs22.filter;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AccessLogFilterTest {
+
+  private final Logger accessLogger = (Logger) LoggerFactory.getLogger("access");
+
+  private final ListAppender<ILoggingEvent> appender = new ListAppender<>();
+
+  @BeforeEach
+  public void setup() {
+    appender.start();
+    accessLogger.addAppender(appender);
+  }
+
+  @AfterEach
+  public void teardown() {
+    accessLogger.detachAppender(appender);
+  }
+
+  @Test
+  public void redactQuery_sensitiveParameters() {
+    assertEquals("-", AccessLogFilter.redactQuery(null));
+    assertEquals("after=user&limit=2", AccessLogFilter.redactQuery("after=user&limit=2"));
+    assertEquals("username=user&password=***&Token=***",
+            AccessLogFilter.redactQuery("username=user&password=s3cr$t&Token=abc"));
+  }
+
+  @Test
+  public void doFilter_sampled_logsRequest() throws Exception {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/users/1");
+    request.setQueryString("fields=username&token=abc");
+    request.setAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE, "/users/{userId}");
+    request.setRemoteAddr("10.0.0.1");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    MockFilterChain filterChain = new MockFilterChain();
+
+    new AccessLogFilter(1.0, Duration.ofSeconds(1)).doFilter(request, response, filterChain);
+
+    assertEquals(request, filterChain.getRequest());
+    assertEquals(1, appender.list.size());
+    String line = appender.list.get(0).getFormattedMessage();
+    assertTrue(line.matches("method=GET route=/users/\\{userId} path=/users/1 query=fields=username&token=\\*\\*\\* "
+            + "status=200 latency_us=\\d+ client=10\\.0\\.0\\.1"), line);
+  }
+
+  @Test
+  public void doFilter_notSampled_logsNothing() throws Exception {
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    new AccessLogFilter(0.0, Duration.ofSeconds(1))
+            .doFilter(new MockHttpServletRequest("GET", "/users"), response, new MockFilterChain());
+
+    assertEquals(200, response.getStatus());
+    assertTrue(appender.list.isEmpty());
+  }
+
+  @Test
+  public void doFilter_notSampledServerError_logsRequest() throws Exception {
+    MockFilterChain filterChain = new MockFilterChain(new RespondingServlet(0, 503));
+
+    new AccessLogFilter(0.0, Duration.ofSeconds(1))
+            .doFilter(new MockHttpServletRequest("POST", "/users/login"), new MockHttpServletResponse(), filterChain);
+
+    assertEquals(1, appender.list.size());
+    assertTrue(appender.list.get(0).getFormattedMessage().contains("path=/users/login query=- status=503"));
+  }
+
+  @Test
+  public void doFilter_notSampledSlowRequest_logsRequest() throws Exception {
+    MockFilterChain filterChain = new MockFilterChain(new RespondingServlet(30, 200));
+
+    new AccessLogFilter(0.0, Duration.ofMillis(10))
+            .doFilter(new MockHttpServletRequest("GET", "/users"), new MockHttpServletResponse(), filterChain);
+
+    assertEquals(1, appender.list.size());
+    String line = appender.list.get(0).getFormattedMessage();
+    assertTrue(line.contains("route=- path=/users query=- status=200"), line);
+    long latencyMicros = Long.parseLong(line.replaceAll(".*latency_us=(\\d+).*", "$1"));
+    assertTrue(latencyMicros >= 30_000, line);
+  }
+
+  /**
+   * Takes the given time to respond with the given status.
+   */
+  private static class RespondingServlet extends HttpServlet {
+    private final long delayMillis;
+    private final int status;
+
+    RespondingServlet(long delayMillis, int status) {
+      this.delayMillis = delayMillis;
+      this.status = status;
+    }
+
+    @Override
+    protected void service(HttpServletRequest request, HttpServletResponse response) {
+      try {
+        Thread.sleep(delayMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      response.setStatus(status);
+    }
+  }
+}
@@ -0,0 +1,109 @@
+package ch.uzh.ifi.hase.soprafs22.filter;
+
+import ch.uzh.ifi.hase.soprafs22.config.RateLimitProperties;
+import ch.uzh.ifi.hase.soprafs22.service.ConcurrencyLimiter;
+import ch.uzh.ifi.hase.soprafs22.service.RateLimiter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RateLimitFilterTest {
+
+  private RateLimitFilter filter;
+
+  @BeforeEach
+  public void setup() {
+    RateLimitProperties.Limit limit = new RateLimitProperties.Limit();
+    limit.setMethod("POST");
+    limit.setCapacity(1);
+    limit.setRefillPerSecond(0.5);
+    RateLimitProperties properties = new RateLimitProperties();
+    properties.setRoutes(Map.of("/users/login", limit));
+    properties.setMaxConcurrency(1);
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    filter = new RateLimitFilter(new RateLimiter(properties, meterRegistry), new ConcurrencyLimiter(properties, meterRegistry));
+  }
+
+  @Test
+  public void doFilter_limitExceeded_tooManyRequests() throws Exception {
+    assertEquals(200, doFilter("/users/login", "10.0.0.1").getStatus());
+
+    MockHttpServletResponse response = doFilter("/users/login", "10.0.0.1");
+    assertEquals(429, response.getStatus());
+    assertEquals("2", response.getHeader(HttpHeaders.RETRY_AFTER));
+    assertEquals(200, doFilter("/users/login", "10.0.0.2").getStatus());
+    assertEquals(200, doFilter("/users", "10.0.0.1").getStatus());
+  }
+
+  @Test
+  public void doFilter_pathVariants_limitedAsOneRoute() throws Exception {
+    assertEquals(200, doFilter("/users/login/", "10.0.0.1").getStatus());
+    assertEquals(429, doFilter("/users/login", "10.0.0.1").getStatus());
+    assertEquals(429, doFilter("/users/login;jsessionid=x", "10.0.0.1").getStatus());
+    assertEquals(429, doFilter("/users/login/;jsessionid=x", "10.0.0.1").getStatus());
+    assertEquals(429, doFilter("/users/%6Cogin", "10.0.0.1").getStatus());
+    assertEquals(429, doFilter("/users//login", "10.0.0.1").getStatus());
+  }
+
+  @Test
+  public void doFilter_otherMethod_notLimited() throws Exception {
+    assertEquals(200, doFilter("/users/login", "10.0.0.1").getStatus());
+    MockHttpServletRequest request = request("/users/login", "10.0.0.1");
+    request.setMethod("GET");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    filter.doFilter(request, response, new MockFilterChain());
+
+    assertEquals(200, response.getStatus());
+  }
+
+  @Test
+  public void doFilter_keyedBySessionUser() throws Exception {
+    MockHttpServletRequest request = request("/users/login", "10.0.0.1");
+    request.setAttribute(SessionFilter.USER_ID_ATTRIBUTE, 1L);
+    filter.doFilter(request, new MockHttpServletResponse(), new MockFilterChain());
+
+    assertEquals(200, doFilter("/users/login", "10.0.0.1").getStatus());
+  }
+
+  @Test
+  public void doFilter_concurrencyLimitReached_serviceUnavailable() throws Exception {
+    MockHttpServletResponse innerResponse = new MockHttpServletResponse();
+    MockFilterChain blockingChain = new MockFilterChain() {
+      @Override
+      public void doFilter(ServletRequest request, ServletResponse response) {
+        try {
+          filter.doFilter(request("/users/login", "10.0.0.2"), innerResponse, new MockFilterChain());
+        } catch (Exception e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    };
+    filter.doFilter(request("/users/login", "10.0.0.1"), new MockHttpServletResponse(), blockingChain);
+
+    assertEquals(503, innerResponse.getStatus());
+    assertEquals("1", innerResponse.getHeader(HttpHeaders.RETRY_AFTER));
+    assertEquals(200, doFilter("/users/login", "10.0.0.3").getStatus());
+  }
+
+  private MockHttpServletResponse doFilter(String path, String remoteAddr) throws Exception {
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    filter.doFilter(request(path, remoteAddr), response, new MockFilterChain());
+    return response;
+  }
+
+  private static MockHttpServletRequest request(String path, String remoteAddr) {
+    MockHttpServletRequest request = new MockHttpServletRequest("POST", path);
+    request.setRemoteAddr(remoteAddr);
+    return request;
+  }
+}
@@ -1,12 +1,19 @@
 package ch.uzh.ifi.hase.soprafs22.repository;
 
 import ch.uzh.ifi.hase.soprafs22.model.User;
+import ch.uzh.ifi.hase.soprafs22.model.UserListVersion;
+import ch.uzh.ifi.hase.soprafs22.model.UserSummary;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
 import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
 
+import java.util.Date;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -20,7 +27,7 @@ public class UserRepositoryIntegrationTest {
   private UserRepository userRepository;
 
   @Test
-  public void findByUsernameAndPassword_success() {
+  public void findByUsername_success() {
     User user = new User();
     user.setUsername("user");
     user.setPassword("test");
@@ -28,7 +35,7 @@ public class UserRepositoryIntegrationTest {
     entityManager.persist(user);
     entityManager.flush();
 
-    Optional<User> found = userRepository.findByUsernameAndPassword(user.getUsername(), user.getPassword());
+    Optional<User> found = userRepository.findByUsername(user.getUsername());
 
     assertTrue(found.isPresent());
     assertNotNull(found.get().getId());
@@ -50,22 +57,88 @@ public class UserRepositoryIntegrationTest {
   }
 
   @Test
-  public void findByUsernameAndPasswordAndLogIn_success() {
+  public void findByUsernameGreaterThan_success() {
+    for (String username : List.of("user-c", "user-a", "user-b")) {
+      User user = new User();
+      user.setUsername(username);
+      user.setPassword("test");
+      entityManager.persist(user);
+    }
+    entityManager.flush();
+
+    List<User> page = userRepository.findByUsernameGreaterThan("user-a", PageRequest.of(0, 1, Sort.by("username")));
+
+    assertEquals(1, page.size());
+    assertEquals("user-b", page.get(0).getUsername());
+  }
+
+  @Test
+  public void findSummariesByUsernameGreaterThan_success() {
+    for (String username : List.of("user-c", "user-a", "user-b")) {
+      User user = new User();
+      user.setUsername(username);
+      user.setPassword("test");
+      entityManager.persist(user);
+    }
+    entityManager.flush();
+    entityManager.clear();
+
+    List<UserSummary> page = userRepository.findSummariesByUsernameGreaterThan("user-a", PageRequest.of(0, 1));
+
+    assertEquals(1, page.size());
+    assertEquals("user-b", page.get(0).getUsername());
+    assertTrue(page.get(0).isLoggedIn());
+    assertEquals(List.of("user-a", "user-b", "user-c"),
+            userRepository.findAllSummaries().stream().map(UserSummary::getUsername).toList());
+  }
+
+  @Test
+  public void findExistingUsernames_success() {
     User user = new User();
     user.setUsername("user");
     user.setPassword("test");
-    user.setLoggedIn(false);
 
     entityManager.persist(user);
     entityManager.flush();
 
-    userRepository.findByUsernameAndPasswordAndLogIn(user.getUsername(), user.getPassword());
-    Optional<User> found = userRepository.findById(user.getId());
+    assertEquals(Set.of("user"), userRepository.findExistingUsernames(List.of("user", "user-2")));
+  }
 
-    assertTrue(found.isPresent());
-    assertNotNull(found.get().getId());
-    assertEquals(found.get().getUsername(), user.getUsername());
-    assertEquals(found.get().getPassword(), user.getPassword());
-    assertTrue(found.get().isLoggedIn());
+  @Test
+  public void getListVersion_changesOnUpdate() {
+    User user = new User();
+    user.setUsername("user");
+    user.setPassword("test");
+
+    entityManager.persist(user);
+    entityManager.flush();
+    UserListVersion inserted = userRepository.getListVersion();
+
+    user.setBirthday(new Date());
+    entityManager.flush();
+    UserListVersion updated = userRepository.getListVersion();
+
+    assertEquals(1L, inserted.getCount());
+    assertNotNull(inserted.getLastModified());
+    assertNotEquals(inserted.toETag(), updated.toETag());
+  }
+
+  @Test
+  public void presenceChange_notWrittenByEntity() {
+    User user = new User();
+    user.setUsername("user");
+    user.setPassword("test");
+
+    entityManager.persist(user);
+    entityManager.flush();
+    Long version = user.getVersion();
+
+    user.setLoggedIn(false);
+    entityManager.flush();
+    entityManager.clear();
+
+    User found = userRepository.findByUsername("user").orElseThrow();
+    assertTrue(found.isLoggedIn());
+    assertEquals(version, found.getVersion());
   }
 }
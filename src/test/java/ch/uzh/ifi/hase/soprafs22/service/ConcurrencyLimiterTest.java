@@ -0,0 +1,59 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import ch.uzh.ifi.hase.soprafs22.config.RateLimitProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConcurrencyLimiterTest {
+
+  private MeterRegistry meterRegistry;
+
+  private ConcurrencyLimiter concurrencyLimiter;
+
+  @BeforeEach
+  public void setup() {
+    meterRegistry = new SimpleMeterRegistry();
+    RateLimitProperties properties = new RateLimitProperties();
+    properties.setMinConcurrency(2);
+    properties.setMaxConcurrency(8);
+    properties.setLatencyThreshold(Duration.ofMillis(50));
+    concurrencyLimiter = new ConcurrencyLimiter(properties, meterRegistry);
+  }
+
+  @Test
+  public void tryAcquire_upToLimit() {
+    for (int i = 0; i < 8; i++)
+      assertTrue(concurrencyLimiter.tryAcquire());
+    assertFalse(concurrencyLimiter.tryAcquire());
+
+    concurrencyLimiter.release();
+    assertTrue(concurrencyLimiter.tryAcquire());
+    assertEquals(1, meterRegistry.get("users.rate-limit.shed").counter().count());
+  }
+
+  @Test
+  public void adjust_slowRepository_decreaseThenRecover() {
+    Timer repository = meterRegistry.timer(ConcurrencyLimiter.REPOSITORY_TIMER, "method", "findByUsername");
+
+    repository.record(Duration.ofMillis(200));
+    concurrencyLimiter.adjust();
+    assertEquals(6, concurrencyLimiter.getLimit());
+    for (int i = 0; i < 10; i++) {
+      repository.record(Duration.ofMillis(200));
+      concurrencyLimiter.adjust();
+    }
+    assertEquals(2, concurrencyLimiter.getLimit());
+
+    // only the latency since the last adjustment counts
+    repository.record(Duration.ofMillis(1));
+    concurrencyLimiter.adjust();
+    assertEquals(3, concurrencyLimiter.getLimit());
+  }
+}
@@ -0,0 +1,105 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PasswordHasherTest {
+
+  private MeterRegistry meterRegistry;
+
+  private PasswordHasher passwordHasher;
+
+  @BeforeEach
+  public void setup() {
+    meterRegistry = new SimpleMeterRegistry();
+    passwordHasher = new PasswordHasher(4, 1, 1, 1, 5000, meterRegistry);
+  }
+
+  @AfterEach
+  public void teardown() {
+    passwordHasher.shutdown();
+  }
+
+  @Test
+  public void hash_thenMatches_success() {
+    String hash = passwordHasher.hash("test");
+
+    assertNotEquals("test", hash);
+    assertTrue(passwordHasher.matches("test", hash));
+    assertFalse(passwordHasher.matches("wrong", hash));
+    assertFalse(passwordHasher.matches(null, hash));
+    assertEquals(1, meterRegistry.timer("users.password.hashing", "operation", "hash").count());
+    assertEquals(2, meterRegistry.timer("users.password.hashing", "operation", "verify").count());
+  }
+
+  @Test
+  public void hashAsync_thenMatchesAsync_success() throws Exception {
+    String hash = passwordHasher.hashAsync("test").get(10, TimeUnit.SECONDS);
+
+    assertTrue(passwordHasher.matchesAsync("test", hash).get(10, TimeUnit.SECONDS));
+    assertFalse(passwordHasher.matchesAsync("wrong", hash).get(10, TimeUnit.SECONDS));
+    assertFalse(passwordHasher.matchesAsync(null, hash).get(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void needsRehash_differentStrength() {
+    PasswordHasher strongerHasher = new PasswordHasher(5, 1, 1, 1, 5000, meterRegistry);
+    try {
+      assertFalse(passwordHasher.needsRehash(passwordHasher.hash("test")));
+      assertTrue(strongerHasher.needsRehash(passwordHasher.hash("test")));
+      assertTrue(passwordHasher.needsRehash("plaintext"));
+    } finally {
+      strongerHasher.shutdown();
+    }
+  }
+
+  @Test
+  public void fullQueue_execute_rejected() throws Exception {
+    CountDownLatch running = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    CompletableFuture<Boolean> blocking = CompletableFuture.supplyAsync(() -> passwordHasher.execute(() -> {
+      running.countDown();
+      return release.await(10, TimeUnit.SECONDS);
+    }));
+    running.await();
+    CompletableFuture<String> queued = CompletableFuture.supplyAsync(() -> passwordHasher.hash("queued"));
+    while (meterRegistry.get("users.password.hashing.queue").gauge().value() < 1)
+      Thread.onSpinWait();
+
+    assertThrows(PasswordHasher.HashingRejectedException.class, () -> passwordHasher.hash("rejected"));
+
+    release.countDown();
+    assertTrue(blocking.get());
+    assertTrue(passwordHasher.matches("queued", queued.get()));
+  }
+
+  @Test
+  public void hashAll_takesOnlyBulkPermits_interactiveHashingNotRejected() throws Exception {
+    // two threads, one of them for bulk hashing, and room for one more task in the queue
+    PasswordHasher sharedHasher = new PasswordHasher(4, 2, 1, 2, 5000, meterRegistry);
+    try {
+      List<String> passwords = IntStream.range(0, 50).mapToObj(i -> "bulk-" + i).toList();
+      CompletableFuture<List<String>> bulk = CompletableFuture.supplyAsync(() -> sharedHasher.hashAll(passwords));
+
+      for (int i = 0; i < 20; i++)
+        assertTrue(sharedHasher.matches("interactive", sharedHasher.hash("interactive")));
+
+      List<String> hashes = bulk.get(30, TimeUnit.SECONDS);
+      assertEquals(passwords.size(), hashes.size());
+      assertTrue(sharedHasher.matches("bulk-49", hashes.get(49)));
+    } finally {
+      sharedHasher.shutdown();
+    }
+  }
+}
@@ -0,0 +1,122 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import ch.uzh.ifi.hase.soprafs22.model.User;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Timestamp;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DataJpaTest
+@Import({PresenceBuffer.class, SimpleMeterRegistry.class})
+public class PresenceBufferTest {
+
+  @Autowired
+  private TestEntityManager entityManager;
+
+  @Autowired
+  private JdbcTemplate jdbcTemplate;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  @Autowired
+  private PresenceBuffer presenceBuffer;
+
+  private User user;
+
+  @BeforeEach
+  public void setup() {
+    user = new User();
+    user.setUsername("user");
+    user.setPassword("test");
+    entityManager.persist(user);
+    entityManager.flush();
+  }
+
+  @Test
+  public void update_thenFlush_writesLatestPresenceOnce() {
+    double writes = meterRegistry.counter("users.presence.writes").count();
+
+    presenceBuffer.update(user, false);
+    presenceBuffer.update(user, true);
+    presenceBuffer.update(user, false);
+    presenceBuffer.update(user, false);
+    assertFalse(user.isLoggedIn());
+    assertTrue(storedPresence());
+    long stamp = presenceBuffer.getStamp(user.getId()).orElseThrow();
+    assertEquals(stamp, presenceBuffer.getLatestStamp());
+
+    presenceBuffer.flush();
+    assertFalse(storedPresence());
+    assertEquals(writes + 1, meterRegistry.counter("users.presence.writes").count());
+    assertEquals(user.getVersion(), jdbcTemplate.queryForObject(
+            "SELECT version FROM users WHERE id = ?", Long.class, user.getId()));
+    // the fingerprint of the user list stays the same after the write
+    assertEquals(stamp, jdbcTemplate.queryForObject(
+            "SELECT last_modified FROM users WHERE id = ?", Timestamp.class, user.getId()).getTime());
+  }
+
+  @Test
+  public void flush_neverMovesLastModifiedBack() {
+    presenceBuffer.update(user, true);
+    Timestamp later = new Timestamp(System.currentTimeMillis() + 60_000);
+    jdbcTemplate.update("UPDATE users SET last_modified = ? WHERE id = ?", later, user.getId());
+
+    presenceBuffer.flush();
+    assertTrue(storedPresence());
+    assertEquals(later, jdbcTemplate.queryForObject(
+            "SELECT last_modified FROM users WHERE id = ?", Timestamp.class, user.getId()));
+  }
+
+  @Test
+  public void update_concurrentWithFlush_latestPresenceWritten() throws Exception {
+    for (int round = 0; round < 200; round++) {
+      CountDownLatch started = new CountDownLatch(1);
+      Thread updater = new Thread(() -> {
+        started.countDown();
+        for (int i = 0; i < 50; i++)
+          presenceBuffer.update(user, !user.isLoggedIn());
+      });
+      updater.start();
+      started.await();
+      presenceBuffer.flush();
+      updater.join();
+
+      // a change made while the flush collected the rows must still be written, not dropped as written
+      presenceBuffer.flush();
+      presenceBuffer.flush();
+      assertEquals(user.isLoggedIn(), storedPresence(), "round " + round);
+      assertEquals(-1, presenceBuffer.getLatestStamp());
+    }
+  }
+
+  @Test
+  public void apply_showsBufferedPresence_untilWrittenForAnInterval() {
+    presenceBuffer.update(user, false);
+    User loaded = new User();
+    loaded.setId(user.getId());
+    loaded.setLoggedIn(true);
+
+    assertFalse(presenceBuffer.apply(loaded).isLoggedIn());
+    presenceBuffer.flush();
+    loaded.setLoggedIn(true);
+    assertFalse(presenceBuffer.apply(loaded).isLoggedIn());
+    presenceBuffer.flush();
+    loaded.setLoggedIn(true);
+    assertTrue(presenceBuffer.apply(loaded).isLoggedIn());
+  }
+
+  private boolean storedPresence() {
+    return jdbcTemplate.queryForObject("SELECT logged_in FROM users WHERE id = ?", Boolean.class, user.getId());
+  }
+}
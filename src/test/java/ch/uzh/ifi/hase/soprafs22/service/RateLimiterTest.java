@@ -0,0 +1,88 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import ch.uzh.ifi.hase.soprafs22.config.RateLimitProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RateLimiterTest {
+
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private final AtomicLong now = new AtomicLong(SECOND);
+
+  private MeterRegistry meterRegistry;
+
+  private RateLimitProperties properties;
+
+  @BeforeEach
+  public void setup() {
+    meterRegistry = new SimpleMeterRegistry();
+    RateLimitProperties.Limit limit = new RateLimitProperties.Limit();
+    limit.setCapacity(3);
+    limit.setRefillPerSecond(2);
+    properties = new RateLimitProperties();
+    properties.setRoutes(Map.of("/users/login", limit));
+  }
+
+  @Test
+  public void tryAcquire_burstThenRefill() {
+    RateLimiter rateLimiter = new RateLimiter(properties, meterRegistry, now::get);
+
+    for (int i = 0; i < 3; i++)
+      assertEquals(0, rateLimiter.tryAcquire("/users/login", "client"));
+    assertEquals(SECOND / 2, rateLimiter.tryAcquire("/users/login", "client"));
+    // other clients and routes have their own buckets
+    assertEquals(0, rateLimiter.tryAcquire("/users/login", "other"));
+    assertEquals(0, rateLimiter.tryAcquire("/users/register", "client"));
+
+    now.addAndGet(SECOND / 2);
+    assertEquals(0, rateLimiter.tryAcquire("/users/login", "client"));
+    assertTrue(rateLimiter.tryAcquire("/users/login", "client") > 0);
+    assertEquals(2, meterRegistry.get("users.rate-limit.rejections").tag("route", "/users/login").counter().count());
+  }
+
+  @Test
+  public void evictIdle_removesFullBuckets() {
+    RateLimiter rateLimiter = new RateLimiter(properties, meterRegistry, now::get);
+    rateLimiter.tryAcquire("/users/login", "idle");
+    for (int i = 0; i < 3; i++)
+      rateLimiter.tryAcquire("/users/login", "busy");
+
+    now.addAndGet(SECOND);
+    rateLimiter.evictIdle();
+
+    assertEquals(1, meterRegistry.get("users.rate-limit.clients").gauge().value());
+    // the remaining bucket was refilled by two of the three tokens taken before
+    assertEquals(0, rateLimiter.tryAcquire("/users/login", "busy"));
+    assertEquals(0, rateLimiter.tryAcquire("/users/login", "busy"));
+    assertTrue(rateLimiter.tryAcquire("/users/login", "busy") > 0);
+  }
+
+  @Test
+  public void isLimited_matchesMethod() {
+    properties.getRoutes().get("/users/login").setMethod("POST");
+    RateLimiter rateLimiter = new RateLimiter(properties, meterRegistry, now::get);
+
+    assertTrue(rateLimiter.isLimited("POST", "/users/login"));
+    assertFalse(rateLimiter.isLimited("GET", "/users/login"));
+    assertFalse(rateLimiter.isLimited("POST", "/users"));
+  }
+
+  @Test
+  public void tryAcquire_disabled_neverLimited() {
+    properties.setEnabled(false);
+    RateLimiter rateLimiter = new RateLimiter(properties, meterRegistry, now::get);
+
+    assertFalse(rateLimiter.isLimited("POST", "/users/login"));
+    for (int i = 0; i < 10; i++)
+      assertEquals(0, rateLimiter.tryAcquire("/users/login", "client"));
+  }
+}
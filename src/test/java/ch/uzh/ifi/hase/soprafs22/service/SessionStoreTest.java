@@ -0,0 +1,172 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import ch.uzh.ifi.hase.soprafs22.model.SessionEvent;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SessionStoreTest {
+
+  private final AtomicLong now = new AtomicLong(1000L);
+
+  private final List<Object> events = new ArrayList<>();
+
+  private MeterRegistry meterRegistry;
+
+  private EmbeddedDatabase database;
+
+  private JdbcTemplate jdbcTemplate;
+
+  private SessionStore sessionStore;
+
+  @BeforeEach
+  public void setup() {
+    database = new EmbeddedDatabaseBuilder().generateUniqueName(true).setType(EmbeddedDatabaseType.H2)
+            .addScript("db/migration/V2__create_sessions.sql").build();
+    jdbcTemplate = new JdbcTemplate(database);
+    meterRegistry = new SimpleMeterRegistry();
+    sessionStore = newStore(meterRegistry, events);
+  }
+
+  @AfterEach
+  public void teardown() {
+    database.shutdown();
+  }
+
+  private SessionStore newStore(MeterRegistry registry, List<Object> published) {
+    return new SessionStore(Duration.ofMillis(100), Duration.ofMillis(20), jdbcTemplate, registry, published::add,
+            now::get);
+  }
+
+  @Test
+  public void create_thenAuthenticate_success() {
+    String token = sessionStore.create(1L);
+    String otherToken = sessionStore.create(1L);
+
+    assertNotEquals(token, otherToken);
+    assertEquals(Optional.of(1L), sessionStore.authenticate(token));
+    assertEquals(Optional.empty(), sessionStore.authenticate("unknown"));
+    assertEquals(Optional.empty(), sessionStore.authenticate(null));
+    assertEquals(2, meterRegistry.get("users.sessions.active").gauge().value());
+  }
+
+  @Test
+  public void authenticate_extendsSession_untilUnused() {
+    String token = sessionStore.create(1L);
+
+    now.addAndGet(80);
+    assertTrue(sessionStore.authenticate(token).isPresent());
+    now.addAndGet(80);
+    assertTrue(sessionStore.authenticate(token).isPresent());
+    now.addAndGet(100);
+    assertTrue(sessionStore.authenticate(token).isEmpty());
+    assertEquals(1, meterRegistry.counter("users.sessions", "event", "expired").count());
+  }
+
+  @Test
+  public void revoke_thenAuthenticate_fails() {
+    String token = sessionStore.create(1L);
+
+    assertTrue(sessionStore.revoke(token));
+    assertFalse(sessionStore.revoke(token));
+    assertTrue(sessionStore.authenticate(token).isEmpty());
+    assertEquals(1, meterRegistry.counter("users.sessions", "event", "revoked").count());
+    // only the hash of the token is published
+    String tokenHash = SessionStore.hashToken(token);
+    assertNotEquals(token, tokenHash);
+    assertEquals(List.of(new SessionEvent(tokenHash, 1L, false), new SessionEvent(tokenHash, 1L, true)), events);
+  }
+
+  @Test
+  public void addReplica_thenRemoveReplica() {
+    sessionStore.addReplica(SessionStore.hashToken("remote"), 3L);
+    assertEquals(Optional.of(3L), sessionStore.authenticate("remote"));
+    assertTrue(sessionStore.authenticate(SessionStore.hashToken("remote")).isEmpty());
+
+    sessionStore.removeReplica(SessionStore.hashToken("remote"));
+    assertTrue(sessionStore.authenticate("remote").isEmpty());
+    assertTrue(events.isEmpty());
+  }
+
+  @Test
+  public void expireSessions_removesOnlyExpired() {
+    String expiring = sessionStore.create(1L);
+    now.addAndGet(60);
+    String remaining = sessionStore.create(2L);
+    now.addAndGet(60);
+
+    sessionStore.expireSessions();
+
+    assertEquals(1, meterRegistry.get("users.sessions.active").gauge().value());
+    assertEquals(1, meterRegistry.counter("users.sessions", "event", "expired").count());
+    assertTrue(sessionStore.authenticate(expiring).isEmpty());
+    assertEquals(Optional.of(2L), sessionStore.authenticate(remaining));
+  }
+
+  @Test
+  public void create_thenAuthenticateOnOtherStore_success() {
+    String token = sessionStore.create(1L);
+    // a node that joined later, or this node after a restart
+    SessionStore otherStore = newStore(new SimpleMeterRegistry(), new ArrayList<>());
+
+    assertEquals(Optional.of(1L), otherStore.authenticate(token));
+    assertTrue(otherStore.authenticate(SessionStore.hashToken(token)).isEmpty());
+  }
+
+  @Test
+  public void expireSessions_writesExtensions() {
+    String token = sessionStore.create(1L);
+    now.addAndGet(80);
+    sessionStore.authenticate(token);
+
+    sessionStore.expireSessions();
+    now.addAndGet(80);
+
+    SessionStore otherStore = newStore(new SimpleMeterRegistry(), new ArrayList<>());
+    assertEquals(Optional.of(1L), otherStore.authenticate(token));
+  }
+
+  @Test
+  public void revokeOnOtherStore_rejectedAfterRevalidation() {
+    String token = sessionStore.create(1L);
+    SessionStore otherStore = newStore(new SimpleMeterRegistry(), new ArrayList<>());
+
+    assertTrue(otherStore.revoke(token));
+
+    // cached sessions are accepted until they are checked against the database again
+    now.addAndGet(10);
+    assertEquals(Optional.of(1L), sessionStore.authenticate(token));
+    now.addAndGet(10);
+    assertTrue(sessionStore.authenticate(token).isEmpty());
+    assertTrue(sessionStore.authenticate(token).isEmpty());
+  }
+
+  @Test
+  public void expireSessions_deletesRowsLongAfterExpiry() {
+    String token = sessionStore.create(1L);
+    sessionStore.revoke(sessionStore.create(2L));
+
+    now.addAndGet(150);
+    sessionStore.expireSessions();
+    assertEquals(2, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM sessions", Integer.class));
+
+    now.addAndGet(100);
+    sessionStore.expireSessions();
+    assertEquals(0, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM sessions", Integer.class));
+    assertTrue(sessionStore.authenticate(token).isEmpty());
+  }
+}
@@ -0,0 +1,192 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import ch.uzh.ifi.hase.soprafs22.model.User;
+import ch.uzh.ifi.hase.soprafs22.model.UserEvent;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.lang.NonNull;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UserEventBroadcasterTest {
+
+  private final List<Runnable> pendingSends = new ArrayList<>();
+
+  private MeterRegistry meterRegistry;
+
+  private UserEventBroadcaster broadcaster;
+
+  @BeforeEach
+  public void setup() {
+    meterRegistry = new SimpleMeterRegistry();
+    broadcaster = new UserEventBroadcaster(3, Duration.ofMinutes(1), Duration.ofSeconds(10), new ManualExecutor(),
+            new ObjectMapper(), meterRegistry);
+  }
+
+  @Test
+  public void onUserEvent_drainedBySender() {
+    broadcaster.subscribe(false);
+    broadcaster.onUserEvent(event(1L));
+    broadcaster.onUserEvent(event(2L));
+
+    // a single drain is scheduled for all queued events
+    assertEquals(1, pendingSends.size());
+    runPendingSends();
+    broadcaster.onUserEvent(event(3L));
+    assertEquals(1, pendingSends.size());
+    assertEquals(3, meterRegistry.get("users.events.published").counter().count());
+  }
+
+  @Test
+  public void onUserEvent_slowSubscriber_resyncThenDisconnect() {
+    broadcaster.subscribe(false);
+    for (long i = 1; i <= 4; i++)
+      broadcaster.onUserEvent(event(i));
+
+    // the three queued events and the fourth one were replaced by a resync
+    assertEquals(4, meterRegistry.get("users.events.dropped").counter().count());
+    assertEquals(1, meterRegistry.get("users.events.subscribers").gauge().value());
+
+    for (long i = 5; i <= 7; i++)
+      broadcaster.onUserEvent(event(i));
+    assertEquals(0, meterRegistry.get("users.events.subscribers").gauge().value());
+    assertEquals(1, meterRegistry.get("users.events.disconnected").counter().count());
+  }
+
+  @Test
+  public void onUserEvent_resyncSent_overflowResyncsAgain() {
+    broadcaster.subscribe(false);
+    for (long i = 1; i <= 4; i++)
+      broadcaster.onUserEvent(event(i));
+    runPendingSends();
+
+    for (long i = 5; i <= 8; i++)
+      broadcaster.onUserEvent(event(i));
+    assertEquals(1, meterRegistry.get("users.events.subscribers").gauge().value());
+    assertEquals(0, meterRegistry.get("users.events.disconnected").counter().count());
+  }
+
+  @Test
+  public void onUserEvent_blockedSubscriber_disconnectedWhileOthersReceive() throws Exception {
+    CountDownLatch unblock = new CountDownLatch(1);
+    BlockingQueue<SseEmitter.SseEventBuilder> received = new LinkedBlockingQueue<>();
+    Deque<SseEmitter> emitters = new ArrayDeque<>(List.of(
+            new SseEmitter() {
+              @Override
+              public void send(@NonNull SseEventBuilder event) {
+                // a client that stopped reading, the container does not react to interrupts
+                boolean interrupted = false;
+                while (unblock.getCount() > 0) {
+                  try {
+                    unblock.await();
+                  } catch (InterruptedException e) {
+                    interrupted = true;
+                  }
+                }
+                if (interrupted)
+                  Thread.currentThread().interrupt();
+              }
+            },
+            new SseEmitter() {
+              @Override
+              public void send(@NonNull SseEventBuilder event) {
+                received.add(event);
+              }
+            }));
+    ExecutorService senders = Executors.newFixedThreadPool(1);
+    // gauges would still read the broadcaster of the setup
+    meterRegistry = new SimpleMeterRegistry();
+    broadcaster = new UserEventBroadcaster(3, Duration.ofMinutes(1), Duration.ofMillis(50), senders,
+            new ObjectMapper(), meterRegistry) {
+      @Override
+      SseEmitter newEmitter(long timeoutMillis) {
+        return emitters.poll();
+      }
+    };
+    try {
+      broadcaster.subscribe(false);
+      broadcaster.onUserEvent(event(1L));
+      Thread.sleep(100);
+      broadcaster.subscribe(false);
+      broadcaster.onUserEvent(event(2L));
+
+      // the only sender is blocked on the first subscriber until it is disconnected
+      assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+      broadcaster.disconnectStalled();
+      assertNotNull(received.poll(5, TimeUnit.SECONDS));
+      assertEquals(1, meterRegistry.get("users.events.subscribers").gauge().value());
+      assertEquals(1, meterRegistry.get("users.events.disconnected").counter().count());
+      assertEquals(2, ((ThreadPoolExecutor) senders).getCorePoolSize());
+
+      // the pool shrinks back once the blocked send returned
+      unblock.countDown();
+      long deadline = System.currentTimeMillis() + 5000;
+      while (meterRegistry.get("users.events.stalled").gauge().value() > 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+        broadcaster.disconnectStalled();
+      }
+      assertEquals(1, ((ThreadPoolExecutor) senders).getCorePoolSize());
+    } finally {
+      unblock.countDown();
+      senders.shutdownNow();
+    }
+  }
+
+  private void runPendingSends() {
+    List<Runnable> sends = new ArrayList<>(pendingSends);
+    pendingSends.clear();
+    sends.forEach(Runnable::run);
+  }
+
+  private static UserEvent event(Long userId) {
+    User user = new User();
+    user.setId(userId);
+    user.setUsername("user-" + userId);
+    return UserEvent.of(UserEvent.Type.UPDATED, user);
+  }
+
+  /**
+   * Runs sends only when the test asks for it, like a sender blocked on a slow client until then.
+   */
+  private class ManualExecutor extends AbstractExecutorService {
+    @Override
+    public void execute(Runnable command) {
+      pendingSends.add(command);
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+      return List.of();
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return false;
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return false;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+      return true;
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import ch.uzh.ifi.hase.soprafs22.model.UserIdentity;
+import ch.uzh.ifi.hase.soprafs22.repository.UserRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class UserSearchIndexTest {
+
+  @Mock
+  private UserRepository userRepository;
+
+  private MeterRegistry meterRegistry;
+
+  private UserSearchIndex searchIndex;
+
+  @BeforeEach
+  public void setup() {
+    MockitoAnnotations.openMocks(this);
+    meterRegistry = new SimpleMeterRegistry();
+    searchIndex = new UserSearchIndex(userRepository, meterRegistry);
+  }
+
+  @Test
+  public void notWarm_search_fallsBackToDatabase() {
+    doReturn(List.of(identity(1L, "user"))).when(userRepository)
+            .findByUsernameStartingWithIgnoreCaseOrderByUsername(eq("us"), any());
+
+    assertEquals(List.of(1L), searchIndex.search("us", 10));
+    assertEquals(1, meterRegistry.counter("users.search.index.lookups", "result", "miss").count());
+  }
+
+  @Test
+  public void warm_search_prefixMatchesFirst_ignoringCase() {
+    warmUp(identity(1L, "alice"), identity(2L, "Alicia"), identity(3L, "bob"), identity(4L, "malice"));
+
+    assertEquals(List.of(1L, 2L), searchIndex.search("ALI", 10));
+    assertEquals(List.of(1L), searchIndex.search("ali", 1));
+    assertEquals(List.of(3L), searchIndex.search("bo", 10));
+    verify(userRepository, never()).findByUsernameStartingWithIgnoreCaseOrderByUsername(any(), any());
+  }
+
+  @Test
+  public void warm_search_findsSimilarUsernames() {
+    warmUp(identity(1L, "jonathan"), identity(2L, "jonas"), identity(3L, "carla"));
+
+    List<Long> results = searchIndex.search("jonatan", 10);
+    assertEquals(1L, results.get(0));
+    assertFalse(results.contains(3L));
+    assertTrue(searchIndex.search("xyz", 10).isEmpty());
+  }
+
+  @Test
+  public void warm_rename_updatesIndex() {
+    warmUp(identity(1L, "alice"));
+    searchIndex.add(2L, "bob");
+    searchIndex.rename(1L, "alice", "carol");
+
+    assertTrue(searchIndex.search("ali", 10).isEmpty());
+    assertEquals(List.of(1L), searchIndex.search("car", 10));
+    assertEquals(List.of(2L), searchIndex.search("bo", 10));
+  }
+
+  private void warmUp(UserIdentity... users) {
+    doReturn(Stream.of(users)).when(userRepository).streamAllIdentities();
+    searchIndex.warmUp();
+  }
+
+  private static UserIdentity identity(Long id, String username) {
+    return new UserIdentity() {
+      @Override
+      public Long getId() {
+        return id;
+      }
+
+      @Override
+      public String getUsername() {
+        return username;
+      }
+    };
+  }
+}
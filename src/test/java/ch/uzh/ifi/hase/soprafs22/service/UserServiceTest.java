@@ -2,21 +2,33 @@ package ch.uzh.ifi.hase.soprafs22.service;
 
 import ch.uzh.ifi.hase.soprafs22.model.User;
 import ch.uzh.ifi.hase.soprafs22.model.UserDTO;
+import ch.uzh.ifi.hase.soprafs22.model.UserEvent;
+import ch.uzh.ifi.hase.soprafs22.model.UserImportResult;
 import ch.uzh.ifi.hase.soprafs22.repository.UserRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionTemplate;
 
-import java.util.Date;
-import java.util.List;
-import java.util.Optional;
+import javax.persistence.EntityManager;
+import java.util.*;
+import java.util.function.Consumer;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
 public class UserServiceTest {
@@ -24,6 +36,27 @@ public class UserServiceTest {
   @Mock
   private UserRepository userRepository;
 
+  @Mock
+  private UsernameIndex usernameIndex;
+
+  @Mock
+  private UserSearchIndex searchIndex;
+
+  @Mock
+  private EntityManager entityManager;
+
+  @Mock
+  private TransactionTemplate transactionTemplate;
+
+  @Mock
+  private ApplicationEventPublisher eventPublisher;
+
+  @Spy
+  private PasswordHasher passwordHasher = new PasswordHasher(4, 1, 1, 10, 5000, new SimpleMeterRegistry());
+
+  @Spy
+  private PresenceBuffer presenceBuffer = new PresenceBuffer(mock(JdbcTemplate.class), new SimpleMeterRegistry());
+
   @InjectMocks
   private UserService userService;
 
@@ -34,8 +67,15 @@ public class UserServiceTest {
       User createdUser = invocation.getArgument(0);
       if (createdUser.getId() == null)
         createdUser.setId(1L);
+      if (createdUser.getVersion() == null)
+        createdUser.setVersion(0L);
       return createdUser;
     }).when(userRepository).save(any());
+    doReturn(1).when(userRepository).updateData(any(), any(), any(), any(), any());
+    doAnswer(invocation -> {
+      invocation.<Consumer<TransactionStatus>>getArgument(0).accept(null);
+      return null;
+    }).when(transactionTemplate).executeWithoutResult(any());
   }
 
   @Test
@@ -46,8 +86,85 @@ public class UserServiceTest {
     User createdUser = userService.createUser(userDTO);
     Mockito.verify(userRepository, Mockito.times(1)).save(any());
     assertEquals(userDTO.getUsername(), createdUser.getUsername());
-    assertEquals(userDTO.getPassword(), createdUser.getPassword());
+    assertNotEquals(userDTO.getPassword(), createdUser.getPassword());
+    assertTrue(passwordHasher.matches(userDTO.getPassword(), createdUser.getPassword()));
+    Mockito.verify(eventPublisher).publishEvent(UserEvent.of(UserEvent.Type.CREATED, createdUser));
     assertTrue(createdUser.isLoggedIn());
+    Mockito.verify(usernameIndex, Mockito.times(1)).add(userDTO.getUsername());
+    Mockito.verify(searchIndex, Mockito.times(1)).add(createdUser.getId(), userDTO.getUsername());
+  }
+
+  @Test
+  public void searchUsers_keepsIndexOrder() {
+    User first = new User();
+    first.setId(2L);
+    User second = new User();
+    second.setId(1L);
+    doReturn(List.of(2L, 1L, 3L)).when(searchIndex).search("user", 10);
+    doReturn(List.of(second, first)).when(userRepository).findAllById(List.of(2L, 1L, 3L));
+
+    assertEquals(List.of(first, second), userService.searchUsers("user", 10));
+  }
+
+  @Test
+  public void getUsersByIds_loadsEachUserOnce() {
+    User first = new User();
+    first.setId(2L);
+    User second = new User();
+    second.setId(1L);
+    doReturn(List.of(second, first)).when(userRepository).findAllById(List.of(2L, 1L, 3L));
+
+    assertEquals(List.of(first, second), userService.getUsersByIds(Arrays.asList(2L, 1L, 2L, null, 3L)));
+    Mockito.verify(userRepository, times(1)).findAllById(any());
+  }
+
+  @Test
+  public void getUsersByIds_chunked() {
+    List<Long> ids = new ArrayList<>();
+    for (long id = 1; id <= UserService.LOOKUP_CHUNK_SIZE + 1; id++)
+      ids.add(id);
+    doReturn(List.of()).when(userRepository).findAllById(any());
+
+    assertTrue(userService.getUsersByIds(ids).isEmpty());
+    Mockito.verify(userRepository).findAllById(ids.subList(0, UserService.LOOKUP_CHUNK_SIZE));
+    Mockito.verify(userRepository).findAllById(List.of(UserService.LOOKUP_CHUNK_SIZE + 1L));
+  }
+
+  @Test
+  public void isExistingUsername_usesIndex() {
+    doReturn(true).when(usernameIndex).contains("user");
+    assertTrue(userService.isExistingUsername("user"));
+    assertFalse(userService.isExistingUsername("user-2"));
+    Mockito.verify(userRepository, Mockito.never()).existsByUsername(any());
+  }
+
+  @Test
+  public void importUsers_mixedInput_perRowResults() {
+    doReturn(new HashSet<>(Set.of("taken"))).when(userRepository).findExistingUsernames(any());
+    doAnswer(invocation -> {
+      long id = 1;
+      for (User user : invocation.<List<User>>getArgument(0))
+        user.setId(id++);
+      return invocation.getArgument(0);
+    }).when(userRepository).saveAll(any());
+
+    List<UserDTO> newUsers = new ArrayList<>();
+    for (String username : List.of("user-1", "taken", "", "user-2", "user-1")) {
+      UserDTO userDTO = new UserDTO();
+      userDTO.setUsername(username);
+      userDTO.setPassword("test");
+      newUsers.add(userDTO);
+    }
+    List<UserImportResult> results = userService.importUsers(newUsers.iterator());
+
+    assertEquals(5, results.size());
+    assertEquals(List.of(201, 409, 400, 201, 409), results.stream().map(UserImportResult::getStatus).toList());
+    assertEquals(1L, results.get(0).getId());
+    assertEquals(2L, results.get(3).getId());
+    Mockito.verify(userRepository, Mockito.times(1)).findExistingUsernames(any());
+    Mockito.verify(userRepository, Mockito.times(1)).saveAll(any());
+    Mockito.verify(usernameIndex, Mockito.times(1)).add("user-1");
+    Mockito.verify(usernameIndex, Mockito.times(1)).add("user-2");
   }
 
   @Test
@@ -76,6 +193,20 @@ public class UserServiceTest {
     assertEquals(createdUser.getId(), allUsers.get(0).getId());
   }
 
+  @Test
+  public void givenUsers_getUsersAfter() {
+    UserDTO userDTO = new UserDTO();
+    userDTO.setUsername("user");
+    userDTO.setPassword("test");
+    User createdUser = userService.createUser(userDTO);
+    Pageable page = PageRequest.of(0, 10, Sort.by("username"));
+    doReturn(List.of(createdUser)).when(userRepository).findAllBy(page);
+    doReturn(List.of()).when(userRepository).findByUsernameGreaterThan(createdUser.getUsername(), page);
+
+    assertEquals(List.of(createdUser), userService.getUsersAfter(null, 10));
+    assertTrue(userService.getUsersAfter(createdUser.getUsername(), 10).isEmpty());
+  }
+
   @Test
   public void givenUser_updateUserData() {
     UserDTO userDTO = new UserDTO();
@@ -94,11 +225,80 @@ public class UserServiceTest {
     updatedUserDTO.setLoggedIn(false);
 
     User updatedUser = userService.updateUserData(createdUser, updatedUserDTO);
+    assertNotSame(createdUser, updatedUser);
+    assertEquals(userDTO.getUsername(), createdUser.getUsername());
+    assertEquals(0L, createdUser.getVersion());
+    assertEquals(1L, updatedUser.getVersion());
     assertEquals(createdUser.getId(), updatedUser.getId());
     assertNotEquals(userDTO.getUsername(), updatedUser.getUsername());
     assertEquals(updatedUserDTO.getUsername(), updatedUser.getUsername());
     assertEquals(updatedUserDTO.getBirthday(), updatedUser.getBirthday());
     assertEquals(updatedUserDTO.isLoggedIn(), updatedUser.isLoggedIn());
+    Mockito.verify(usernameIndex, Mockito.times(1)).rename(userDTO.getUsername(), updatedUserDTO.getUsername());
+    Mockito.verify(searchIndex, Mockito.times(1))
+            .rename(createdUser.getId(), userDTO.getUsername(), updatedUserDTO.getUsername());
+  }
+
+  @Test
+  public void updateUserData_writesOnlyChangedData() {
+    UserDTO userDTO = new UserDTO();
+    userDTO.setUsername("user");
+    userDTO.setPassword("test");
+    User createdUser = userService.createUser(userDTO);
+
+    userDTO.setLoggedIn(false);
+    User loggedOutUser = userService.updateUserData(createdUser, userDTO);
+    assertFalse(loggedOutUser.isLoggedIn());
+    assertEquals(0L, loggedOutUser.getVersion());
+    Mockito.verify(userRepository, never()).updateData(any(), any(), any(), any(), any());
+
+    userDTO.setBirthday(new Date());
+    User updatedUser = userService.updateUserData(loggedOutUser, userDTO);
+    assertEquals(1L, updatedUser.getVersion());
+    Mockito.verify(userRepository).updateData(eq(1L), eq(0L), eq("user"), eq(userDTO.getBirthday()), any());
+  }
+
+  @Test
+  public void updateUserData_conflict_throwsException() {
+    User storedUser = new User();
+    storedUser.setId(1L);
+    storedUser.setVersion(1L);
+    storedUser.setUsername("changed");
+    User staleUser = new User();
+    staleUser.setId(1L);
+    staleUser.setVersion(0L);
+    staleUser.setUsername("user");
+    doReturn(0).when(userRepository).updateData(any(), any(), any(), any(), any());
+    doReturn(Optional.of(storedUser)).when(userRepository).findById(1L);
+
+    UserDTO userDTO = new UserDTO();
+    userDTO.setUsername("renamed");
+    assertThrows(OptimisticLockingFailureException.class, () -> userService.updateUserData(staleUser, userDTO));
+    Mockito.verify(usernameIndex, never()).rename(any(), any());
+    assertEquals("user", staleUser.getUsername());
+  }
+
+  @Test
+  public void updateUserData_conflict_presenceOnly_retried() {
+    User storedUser = new User();
+    storedUser.setId(1L);
+    storedUser.setVersion(1L);
+    storedUser.setUsername("renamed");
+    User staleUser = new User();
+    staleUser.setId(1L);
+    staleUser.setVersion(0L);
+    staleUser.setUsername("user");
+    doReturn(0).when(userRepository).updateData(any(), any(), any(), any(), any());
+    doReturn(Optional.of(storedUser)).when(userRepository).findById(1L);
+
+    UserDTO userDTO = new UserDTO();
+    userDTO.setUsername("renamed");
+    userDTO.setLoggedIn(false);
+    User updatedUser = userService.updateUserData(staleUser, userDTO);
+
+    assertSame(storedUser, updatedUser);
+    assertFalse(updatedUser.isLoggedIn());
+    Mockito.verify(userRepository, times(1)).updateData(any(), any(), any(), any(), any());
   }
 
   @Test
@@ -112,15 +312,71 @@ public class UserServiceTest {
     User updatedUser = userService.updateUserData(createdUser, userDTO);
     assertFalse(updatedUser.isLoggedIn());
 
-    doAnswer(invocation -> { updatedUser.setLoggedIn(true); return null; }).when(userRepository)
-            .findByUsernameAndPasswordAndLogIn(userDTO.getUsername(), userDTO.getPassword());
-    doReturn(Optional.of(updatedUser)).when(userRepository)
-            .findByUsernameAndPassword(userDTO.getUsername(), userDTO.getPassword());
+    doReturn(Optional.of(updatedUser)).when(userRepository).findByUsername(userDTO.getUsername());
     Optional<User> foundUser = userService.getUserByCredentialsAndLogIn(userDTO);
 
     assertTrue(foundUser.isPresent());
     assertEquals(updatedUser.getId(), foundUser.get().getId());
     assertEquals(updatedUser.getUsername(), foundUser.get().getUsername());
     assertTrue(foundUser.get().isLoggedIn());
+    Mockito.verify(eventPublisher).publishEvent(UserEvent.of(UserEvent.Type.LOGGED_IN, foundUser.get()));
+  }
+
+  @Test
+  public void givenUser_getByInvalidCredentials_notLoggedIn() {
+    UserDTO userDTO = new UserDTO();
+    userDTO.setUsername("user");
+    userDTO.setPassword("test");
+    User createdUser = userService.createUser(userDTO);
+    createdUser.setLoggedIn(false);
+    doReturn(Optional.of(createdUser)).when(userRepository).findByUsername(userDTO.getUsername());
+
+    userDTO.setPassword("wrong");
+    Optional<User> foundUser = userService.getUserByCredentialsAndLogIn(userDTO);
+
+    assertTrue(foundUser.isEmpty());
+    assertFalse(createdUser.isLoggedIn());
+  }
+
+  @Test
+  public void givenOutdatedHash_getByCredentialsAndLogIn_rehashed() {
+    UserDTO userDTO = new UserDTO();
+    userDTO.setUsername("user");
+    userDTO.setPassword("test");
+    User createdUser = userService.createUser(userDTO);
+    String outdatedHash = new PasswordHasher(5, 1, 1, 10, 5000, new SimpleMeterRegistry()).hash("test");
+    createdUser.setPassword(outdatedHash);
+    doReturn(Optional.of(createdUser)).when(userRepository).findByUsername(userDTO.getUsername());
+
+    Optional<User> foundUser = userService.getUserByCredentialsAndLogIn(userDTO);
+
+    assertTrue(foundUser.isPresent());
+    assertNotEquals(outdatedHash, foundUser.get().getPassword());
+    assertFalse(passwordHasher.needsRehash(foundUser.get().getPassword()));
+    assertTrue(passwordHasher.matches("test", foundUser.get().getPassword()));
+    Mockito.verify(userRepository).updatePassword(createdUser.getId(), outdatedHash, foundUser.get().getPassword());
+  }
+
+  @Test
+  public void importUsers_hashingRejected_stopsWithFailedRows() {
+    doReturn(new HashSet<>()).when(userRepository).findExistingUsernames(any());
+    doThrow(new PasswordHasher.HashingRejectedException("Too many pending credential checks, try again later"))
+            .when(passwordHasher).hashAll(any());
+
+    List<UserDTO> newUsers = new ArrayList<>();
+    for (int i = 0; i < UserService.IMPORT_CHUNK_SIZE + 2; i++) {
+      UserDTO userDTO = new UserDTO();
+      userDTO.setUsername("user-" + i);
+      userDTO.setPassword("test");
+      newUsers.add(userDTO);
+    }
+    List<UserImportResult> results = userService.importUsers(newUsers.iterator());
+
+    assertEquals(newUsers.size(), results.size());
+    assertTrue(results.stream().allMatch(result -> result.getStatus() == 503 && result.getId() == null));
+    assertEquals(UserService.IMPORT_CHUNK_SIZE + 1, results.get(UserService.IMPORT_CHUNK_SIZE + 1).getRow());
+    // the import stops at the first rejected chunk
+    Mockito.verify(passwordHasher, Mockito.times(1)).hashAll(any());
+    Mockito.verify(userRepository, Mockito.never()).saveAll(any());
   }
 }
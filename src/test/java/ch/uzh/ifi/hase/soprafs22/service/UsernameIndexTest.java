@@ -0,0 +1,64 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import ch.uzh.ifi.hase.soprafs22.repository.UserRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+public class UsernameIndexTest {
+
+  @Mock
+  private UserRepository userRepository;
+
+  private MeterRegistry meterRegistry;
+
+  private UsernameIndex usernameIndex;
+
+  @BeforeEach
+  public void setup() {
+    MockitoAnnotations.openMocks(this);
+    meterRegistry = new SimpleMeterRegistry();
+    usernameIndex = new UsernameIndex(userRepository, meterRegistry);
+  }
+
+  @Test
+  public void notWarm_contains_fallsBackToDatabase() {
+    doReturn(true).when(userRepository).existsByUsername("user");
+
+    assertTrue(usernameIndex.contains("user"));
+    verify(userRepository, times(1)).existsByUsername("user");
+    assertEquals(1, meterRegistry.counter("users.username.index.lookups", "result", "miss").count());
+  }
+
+  @Test
+  public void warm_contains_answersFromMemory() {
+    doReturn(Stream.of("user-1", "user-2")).when(userRepository).streamAllUsernames();
+    usernameIndex.warmUp();
+    usernameIndex.add("user-3");
+
+    assertTrue(usernameIndex.contains("user-1"));
+    assertTrue(usernameIndex.contains("user-3"));
+    assertFalse(usernameIndex.contains("user-4"));
+    assertFalse(usernameIndex.contains(null));
+    verify(userRepository, never()).existsByUsername(any());
+    assertEquals(3, meterRegistry.counter("users.username.index.lookups", "result", "hit").count());
+  }
+
+  @Test
+  public void warm_rename_freesPreviousUsername() {
+    doReturn(Stream.of("user-1")).when(userRepository).streamAllUsernames();
+    usernameIndex.warmUp();
+    usernameIndex.rename("user-1", "user-2");
+
+    assertFalse(usernameIndex.contains("user-1"));
+    assertTrue(usernameIndex.contains("user-2"));
+  }
+}